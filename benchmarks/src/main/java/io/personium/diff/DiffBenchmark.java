@@ -0,0 +1,106 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.diff;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.personium.common.es.response.DcSearchHit;
+import io.personium.common.es.response.DcSearchHits;
+
+/**
+ * diffの1ページ分の処理のベンチマーク.
+ * ESの検索結果からドキュメントIDと更新日時を取り出す処理と、WorkTableへ保存するSQLの組み立てとパラメタの設定を計測する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    private static final long SEED = 20170401L;
+    private static final long EPOCH = 1490000000000L;
+    private static final int EPOCH_RANGE = 100000000;
+    private static final int ID_RADIX = 16;
+
+    /** 1ページのドキュメント数(-nオプションの既定値は1000). */
+    @Param({"100", "1000" })
+    public int pageSize;
+
+    private App app;
+    private Connection connection;
+    private DcSearchHits hits;
+    private Map<String, Long> idMap;
+
+    /**
+     * 合成データを準備する.
+     */
+    @Setup
+    public void setUp() {
+        this.app = new App();
+        this.connection = SyntheticProxies.connection();
+        Random random = new Random(SEED);
+        List<DcSearchHit> list = new ArrayList<DcSearchHit>();
+        for (int i = 0; i < this.pageSize; i++) {
+            String id = Long.toString(random.nextLong() & Long.MAX_VALUE, ID_RADIX)
+                    + Long.toString(random.nextLong() & Long.MAX_VALUE, ID_RADIX);
+            list.add(SyntheticProxies.hit(id, EPOCH + random.nextInt(EPOCH_RANGE)));
+        }
+        this.hits = SyntheticProxies.hits(list);
+        this.idMap = new HashMap<String, Long>();
+        App.putUpdated(this.idMap, this.hits);
+    }
+
+    /**
+     * ESの検索結果からドキュメントIDと更新日時を取り出す.
+     * @return ドキュメントIDと更新日時
+     */
+    @Benchmark
+    public Map<String, Long> getPageFromElasticsearch() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        App.putUpdated(result, this.hits);
+        return result;
+    }
+
+    /**
+     * WorkTableへ保存するSQLを組み立て、パラメタを設定する.
+     * @return 設定したパラメタの数
+     */
+    @Benchmark
+    public int registToWorkTable() {
+        return this.app.registToWorkTable(this.connection, this.idMap);
+    }
+}
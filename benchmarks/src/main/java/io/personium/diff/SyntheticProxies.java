@@ -0,0 +1,138 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.diff;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.List;
+
+import io.personium.common.es.response.DcSearchHit;
+import io.personium.common.es.response.DcSearchHits;
+
+/**
+ * ESの検索結果とMySQLのコネクションのスタブ.
+ * diffが使用する操作のみに応答し、それ以外の操作は例外とする.
+ */
+final class SyntheticProxies {
+
+    private SyntheticProxies() {
+    }
+
+    /**
+     * ドキュメントIDと更新日時のみを持つ検索結果のヒットを作成する.
+     * @param id ドキュメントID
+     * @param updated 更新日時
+     * @return 検索結果のヒット
+     */
+    static DcSearchHit hit(final String id, final Object updated) {
+        return proxy(DcSearchHit.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getId".equals(name)) {
+                    return id;
+                } else if ("field".equals(name) && "u".equals(args[0])) {
+                    return updated;
+                }
+                return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * 検索結果のヒットの一覧を作成する.
+     * @param hits 検索結果のヒット
+     * @return 検索結果のヒットの一覧
+     */
+    static DcSearchHits hits(final List<DcSearchHit> hits) {
+        final DcSearchHit[] array = hits.toArray(new DcSearchHit[hits.size()]);
+        return proxy(DcSearchHits.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("iterator".equals(name)) {
+                    return Arrays.asList(array).iterator();
+                } else if ("hits".equals(name) || "getHits".equals(name)) {
+                    return array;
+                } else if ("getCount".equals(name) || "allPages".equals(name)) {
+                    return (long) array.length;
+                }
+                return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * SQLの実行を行わず、パラメタの設定のみを受け付けるコネクションを作成する.
+     * executeUpdateは設定されたパラメタの数を返す.
+     * @return コネクション
+     */
+    static Connection connection() {
+        return proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("prepareStatement".equals(name)) {
+                    return statement();
+                } else if ("close".equals(name)) {
+                    return null;
+                }
+                return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    private static PreparedStatement statement() {
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            private int parameters = 0;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.startsWith("set")) {
+                    this.parameters++;
+                    return null;
+                } else if ("executeUpdate".equals(name)) {
+                    return this.parameters;
+                } else if ("close".equals(name)) {
+                    return null;
+                }
+                return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("toString".equals(name)) {
+            return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
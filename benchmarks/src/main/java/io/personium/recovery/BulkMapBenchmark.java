@@ -0,0 +1,121 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1ページ分の行をドキュメントに変換し、ルーティングID毎(シャード毎)にまとめてバルク登録の単位に分割する処理のベンチマーク.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkMapBenchmark {
+
+    private static final String UNIT_PREFIX = "u0";
+    private static final String INDEX = UNIT_PREFIX + "_vet";
+    private static final int BULK_BYTES = 5 * 1024 * 1024;
+    private static final int BULK_MAX_DOCS = 10000;
+    private static final int BULK_BYTES_MIN = 1024 * 1024;
+    private static final int BULK_BYTES_MAX = 32 * 1024 * 1024;
+    private static final int BULK_LATENCY_TARGET = 1000;
+    private static final int SHARD_COUNT = 5;
+
+    /** 1ページの行数. */
+    @Param({"1000", "10000" })
+    public int rows;
+
+    /** 1ページに含まれるセルの数. */
+    @Param({"1", "50" })
+    public int cells;
+
+    /** 登録先シャード毎にまとめるかどうか. */
+    @Param({"false", "true" })
+    public boolean shardBatching;
+
+    /** dynamic_propertiesカラムのサイズの目安(文字数). */
+    @Param({"512" })
+    public int propertyBytes;
+
+    private EsRecovery esRecovery;
+    private List<Map<String, Object>> data;
+    private BulkSizeController sizer;
+    private ShardRouting routing;
+
+    /**
+     * 合成データを準備する.
+     */
+    @Setup
+    public void setUp() {
+        this.esRecovery = new EsRecovery();
+        SyntheticData synthetic = new SyntheticData(SyntheticData.SEED);
+        List<String> cellIds = new ArrayList<String>();
+        for (int i = 0; i < this.cells; i++) {
+            cellIds.add(synthetic.id());
+        }
+        this.data = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < this.rows; i++) {
+            this.data.add(synthetic.entityRow(cellIds.get(i % this.cells), this.propertyBytes));
+        }
+        this.sizer = new BulkSizeController(BULK_BYTES, BULK_MAX_DOCS, false, BULK_BYTES_MIN, BULK_BYTES_MAX,
+                BULK_LATENCY_TARGET);
+        if (this.shardBatching) {
+            // シャード毎にまとめる場合、リカバリ元はセルID、ID順に読み込む
+            Collections.sort(this.data, new Comparator<Map<String, Object>>() {
+                @Override
+                public int compare(Map<String, Object> o1, Map<String, Object> o2) {
+                    int result = ((String) o1.get("cell_id")).compareTo((String) o2.get("cell_id"));
+                    if (result != 0) {
+                        return result;
+                    }
+                    return ((String) o1.get("id")).compareTo((String) o2.get("id"));
+                }
+            });
+            this.routing = new ShardRouting(SHARD_COUNT);
+        }
+    }
+
+    /**
+     * 1ページ分の行を変換し、バルク登録の単位に分割する.
+     * @return バルク登録の単位毎のドキュメント
+     */
+    @Benchmark
+    public List<EsBulkBatch> map() {
+        return this.esRecovery.map(INDEX, "ENTITY", SyntheticResultSet.of(this.data), UNIT_PREFIX, this.sizer,
+                this.routing);
+    }
+}
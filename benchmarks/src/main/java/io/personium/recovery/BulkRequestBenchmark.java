@@ -0,0 +1,111 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MySQLの1行をESのドキュメントに変換する処理のベンチマーク.
+ * EsBulkEntity, EsBulkDavのsetSourceと、LONGTEXTカラムのJSON文字列を変換するjsonParseを計測する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkRequestBenchmark {
+
+    /** LONGTEXTカラムのサイズの目安(文字数). */
+    @Param({"1024", "16384", "262144" })
+    public int propertyBytes;
+
+    /** JSON文字列カラムを軽量パーサで変換するかどうか. */
+    @Param({"true", "false" })
+    public boolean fastJsonParser;
+
+    private EsRecovery esRecovery;
+    private ResultSet entityRow;
+    private ResultSet davRow;
+    private String json;
+
+    /**
+     * 合成データを準備する.
+     * @throws SQLException 発生しない
+     */
+    @Setup
+    public void setUp() throws SQLException {
+        this.esRecovery = new EsRecovery();
+        this.esRecovery.setFastJsonParser(this.fastJsonParser);
+        SyntheticData data = new SyntheticData(SyntheticData.SEED);
+        String cellId = data.id();
+        // setSourceは現在行を読むだけなので、1行目に位置付けたまま繰り返し変換する
+        this.entityRow = SyntheticResultSet.of(Collections.singletonList(data.entityRow(cellId, this.propertyBytes)));
+        this.entityRow.next();
+        this.davRow = SyntheticResultSet.of(Collections.singletonList(data.davRow(cellId, this.propertyBytes)));
+        this.davRow.next();
+        this.json = data.jsonObject(this.propertyBytes);
+    }
+
+    /**
+     * UserDataの1行を変換する.
+     * @return 変換したドキュメント
+     */
+    @Benchmark
+    public Map<String, Object> entitySetSource() {
+        EsRecovery.EsBulkEntity bulk = this.esRecovery.new EsBulkEntity("UserData");
+        bulk.setSource(this.entityRow);
+        return bulk.getSource();
+    }
+
+    /**
+     * WebDAVファイルの1行を変換する.
+     * @return 変換したドキュメント
+     */
+    @Benchmark
+    public Map<String, Object> davSetSource() {
+        EsRecovery.EsBulkDav bulk = this.esRecovery.new EsBulkDav("dav_node");
+        bulk.setSource(this.davRow);
+        return bulk.getSource();
+    }
+
+    /**
+     * LONGTEXTカラムのJSON文字列を変換する.
+     * @return 変換したJSONオブジェクト
+     */
+    @Benchmark
+    public HashMap<String, Object> jsonParse() {
+        return this.esRecovery.new EsBulkEntity("UserData").jsonParse(this.json);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UserDataのlinksカラムからリンク先IDを取り出す処理のベンチマーク.
+ * 1回の走査で取り出すLinksColumnParserと、以前の文字列加工の連鎖を比較する.
+ * 生成されるオブジェクトの量は「-prof gc」を指定して実行し、gc.alloc.rate.normで比較する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinksColumnParserBenchmark {
+
+    /** リンク先の数. */
+    @Param({"0", "2", "20" })
+    public int linkCount;
+
+    private String links;
+
+    /**
+     * 合成データを準備する.
+     */
+    @Setup
+    public void setUp() {
+        this.links = new SyntheticData(SyntheticData.SEED).links(this.linkCount);
+    }
+
+    /**
+     * LinksColumnParserで取り出す.
+     * @return リンク先ID
+     */
+    @Benchmark
+    public List<String> singlePass() {
+        List<String> result = new ArrayList<String>();
+        LinksColumnParser.parse(this.links, result);
+        return result;
+    }
+
+    /**
+     * 以前の文字列加工(ブラケットの除去、カンマでの分割、前後の空白の除去、ダブルクォーテーションの除去)で取り出す.
+     * @return リンク先ID
+     */
+    @Benchmark
+    public List<String> legacy() {
+        List<String> result = new ArrayList<String>();
+        String str = this.links.replace("[", "");
+        str = str.replace("]", "");
+        String[] array = str.split(",");
+        for (String link : array) {
+            link = link.trim();
+            link = link.replace("\"", "");
+            if (!link.isEmpty()) {
+                result.add(link);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の合成データ.
+ * MySQLのLONGTEXTカラムに格納されるJSON文字列や、各テーブルの1行分のカラムを生成する.
+ * 同じ乱数シードからは常に同じデータを生成する.
+ */
+final class SyntheticData {
+
+    /** 乱数シード. */
+    static final long SEED = 20170401L;
+
+    private static final int ID_LENGTH = 32;
+    private static final int VALUE_MIN_LENGTH = 8;
+    private static final int VALUE_MAX_LENGTH = 64;
+    private static final int VALUE_KINDS = 6;
+    private static final long EPOCH = 1490000000000L;
+    private static final int EPOCH_RANGE = 100000000;
+    private static final String HEX = "0123456789abcdef";
+    private static final String TEXT = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -_.:"
+            + "あいうえおかきくけこ日本語漢字全角文字列";
+
+    private final Random random;
+
+    /**
+     * コンストラクタ.
+     * @param seed 乱数シード
+     */
+    SyntheticData(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 32桁の16進数のIDを生成する.
+     * @return ID
+     */
+    String id() {
+        StringBuilder sb = new StringBuilder(ID_LENGTH);
+        for (int i = 0; i < ID_LENGTH; i++) {
+            sb.append(HEX.charAt(this.random.nextInt(HEX.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 指定したサイズ以上になるまでプロパティを並べたJSONオブジェクトの文字列を生成する.
+     * 文字列、エスケープを含む文字列、整数、小数、真偽値、nullの値を順に含む.
+     * @param bytes 文字列のサイズの目安(文字数)
+     * @return JSON文字列
+     */
+    String jsonObject(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + VALUE_MAX_LENGTH * 2);
+        sb.append('{');
+        int number = 0;
+        while (sb.length() < bytes || number == 0) {
+            if (number > 0) {
+                sb.append(',');
+            }
+            sb.append("\"P").append(number).append("\":");
+            switch (number % VALUE_KINDS) {
+            case 0:
+                sb.append('"').append(text()).append('"');
+                break;
+            case 1:
+                sb.append("\"\\\"").append(text()).append("\\\"\\n\\u3042\"");
+                break;
+            case 2:
+                sb.append(this.random.nextInt());
+                break;
+            case 3:
+                sb.append(this.random.nextDouble());
+                break;
+            case 4:
+                sb.append(this.random.nextBoolean());
+                break;
+            default:
+                sb.append("null");
+                break;
+            }
+            number++;
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * UserDataのlinksカラムの形式(["~","~",...])の文字列を生成する.
+     * @param count リンク先の数
+     * @return linksカラムの値
+     */
+    String links(int count) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(id()).append('"');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * ENTITYテーブルのUserDataの1行分のカラムを生成する.
+     * @param cellId セルID
+     * @param propertyBytes dynamic_propertiesカラムのサイズの目安(文字数)
+     * @return カラム名と値の対応
+     */
+    Map<String, Object> entityRow(String cellId, int propertyBytes) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("type", "UserData");
+        row.put("id", id());
+        row.put("cell_id", cellId);
+        row.put("box_id", id());
+        row.put("node_id", id());
+        row.put("entity_id", id());
+        row.put("published", time());
+        row.put("updated", time());
+        row.put("declared_properties", "{}");
+        row.put("dynamic_properties", jsonObject(propertyBytes));
+        row.put("hidden_properties", "{}");
+        row.put("links", links(2));
+        return row;
+    }
+
+    /**
+     * DAV_NODEテーブルのファイルの1行分のカラムを生成する.
+     * @param cellId セルID
+     * @param propertyBytes propertiesカラムのサイズの目安(文字数)
+     * @return カラム名と値の対応
+     */
+    Map<String, Object> davRow(String cellId, int propertyBytes) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", id());
+        row.put("cell_id", cellId);
+        row.put("box_id", id());
+        row.put("node_type", "dav.file");
+        row.put("parent_id", id());
+        row.put("published", time());
+        row.put("updated", time());
+        row.put("children", "{}");
+        row.put("acl", "{\"requireSchemaAuthz\":\"none\",\"ace\":[]}");
+        row.put("properties", jsonObject(propertyBytes));
+        row.put("file", "{\"t\":\"text/plain\",\"l\":" + propertyBytes + "}");
+        return row;
+    }
+
+    private String text() {
+        int length = VALUE_MIN_LENGTH + this.random.nextInt(VALUE_MAX_LENGTH - VALUE_MIN_LENGTH);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(TEXT.charAt(this.random.nextInt(TEXT.length())));
+        }
+        return sb.toString();
+    }
+
+    private long time() {
+        return EPOCH + this.random.nextInt(EPOCH_RANGE);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 合成データの行を返すResultSetのスタブ.
+ * EsRecoveryが変換時に使用するnext, getString, getLong等のみに応答し、それ以外の操作は例外とする.
+ */
+final class SyntheticResultSet implements InvocationHandler {
+
+    private final List<Map<String, Object>> rows;
+    private int position = -1;
+    private boolean lastNull = false;
+
+    private SyntheticResultSet(List<Map<String, Object>> rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * 合成データの行を先頭から返すResultSetを作成する.
+     * @param rows カラム名と値の対応の一覧
+     * @return ResultSet
+     */
+    static ResultSet of(List<Map<String, Object>> rows) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[] {ResultSet.class}, new SyntheticResultSet(rows));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("next".equals(name)) {
+            this.position++;
+            return this.position < this.rows.size();
+        } else if ("getString".equals(name)) {
+            Object value = column(args[0]);
+            if (value == null) {
+                return null;
+            }
+            return value.toString();
+        } else if ("getLong".equals(name)) {
+            Object value = column(args[0]);
+            if (value == null) {
+                return 0L;
+            }
+            return ((Number) value).longValue();
+        } else if ("wasNull".equals(name)) {
+            return this.lastNull;
+        } else if ("close".equals(name)) {
+            return null;
+        } else if ("isClosed".equals(name)) {
+            return false;
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("toString".equals(name)) {
+            return "SyntheticResultSet[rows=" + this.rows.size() + "]";
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private Object column(Object label) {
+        if (label instanceof Integer) {
+            throw new UnsupportedOperationException("column index");
+        }
+        Object value = this.rows.get(this.position).get(label);
+        this.lastNull = value == null;
+        return value;
+    }
+}
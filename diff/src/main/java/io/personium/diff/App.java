@@ -30,8 +30,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
-import javax.sql.DataSource;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -39,7 +37,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.dbcp.BasicDataSourceFactory;
 import org.apache.commons.dbutils.DbUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +44,7 @@ import org.slf4j.LoggerFactory;
 import io.personium.common.es.EsClient;
 import io.personium.common.es.response.DcIndicesStatusResponse;
 import io.personium.common.es.response.DcSearchHit;
+import io.personium.common.es.response.DcSearchHits;
 import io.personium.common.es.response.DcSearchResponse;
 import io.personium.common.es.response.EsClientException;
 import io.personium.common.es.util.IndexNameEncoder;
@@ -74,6 +72,10 @@ public class App {
     private static String indexPrefix = "u0";
     private static String binaryFilePath = "/persnium-nfs/dc-core/dav/";
     private static String excludeFilePath = null;
+    /** MySQLコネクションプールの上限. */
+    private static final int MYSQL_POOL_MAX_ACTIVE = 4;
+    /** コネクション毎にキャッシュするPreparedStatementの数. */
+    private static final int MYSQL_STATEMENT_CACHE_SIZE = 32;
 
     private long totalHits = 0L;
 
@@ -243,7 +245,8 @@ public class App {
      */
     public void execute() {
         EsClient client = new EsClient(clusterName, clusterHosts);
-        Connection conn = getMySqlConnection();
+        MySqlConnectionPool pool = createMySqlConnectionPool();
+        Connection conn = getMySqlConnection(pool);
 
         try {
             List<String> excludeUnitUser = listExcludeUnitUser(indexPrefix, excludeFilePath);
@@ -271,21 +274,32 @@ public class App {
             }
         } finally {
             DbUtils.closeQuietly(conn);
+            if (pool != null) {
+                pool.close();
+            }
             client.closeConnection();
         }
     }
 
-    private Connection getMySqlConnection() {
+    private MySqlConnectionPool createMySqlConnectionPool() {
+        try {
+            return new MySqlConnectionPool(mysqlHost, mysqlUser, mysqlPassword, MYSQL_POOL_MAX_ACTIVE,
+                    MYSQL_STATEMENT_CACHE_SIZE);
+        } catch (SQLException e) {
+            log.warn("Faild to connect MySQL");
+            log.info(e.getMessage());
+            return null;
+        }
+    }
+
+    private Connection getMySqlConnection(MySqlConnectionPool pool) {
         Connection conn = null;
-        Properties mysqlProperties = new Properties();
-        mysqlProperties.setProperty("driverClassName", "com.mysql.jdbc.Driver");
-        mysqlProperties.setProperty("url", "jdbc:mysql://" + mysqlHost);
-        mysqlProperties.setProperty("username", mysqlUser);
-        mysqlProperties.setProperty("password", mysqlPassword);
+        if (pool == null) {
+            return conn;
+        }
         try {
-            DataSource ds = BasicDataSourceFactory.createDataSource(mysqlProperties);
-            conn = ds.getConnection();
-        } catch (Exception e) {
+            conn = pool.getConnection(null);
+        } catch (SQLException e) {
             log.warn("Faild to connect MySQL");
             log.info(e.getMessage());
         }
@@ -826,7 +840,17 @@ public class App {
         if (num == 0) {
             return result;
         }
-        for (DcSearchHit hit : scrollResponse.getHits()) {
+        putUpdated(result, scrollResponse.getHits());
+        return result;
+    }
+
+    /**
+     * 検索結果のドキュメントIDと更新日時を格納する.
+     * @param result 格納先
+     * @param hits 検索結果
+     */
+    static void putUpdated(Map<String, Long> result, DcSearchHits hits) {
+        for (DcSearchHit hit : hits) {
             String id = hit.getId();
             Object uval = hit.field("u");
             Long updated = 0L;
@@ -837,7 +861,6 @@ public class App {
             }
             result.put(id, updated);
         }
-        return result;
     }
 
     @SuppressWarnings("unchecked")
@@ -878,7 +901,13 @@ public class App {
         return result;
     }
 
-    private int registToWorkTable(Connection connection, Map<String, Long> idMap) {
+    /**
+     * ESから取得したドキュメントIDと更新日時をWorkTableに保存する.
+     * @param connection MySQLコネクション
+     * @param idMap ドキュメントIDと更新日時
+     * @return 保存した件数
+     */
+    int registToWorkTable(Connection connection, Map<String, Long> idMap) {
         int expectedRows = idMap.keySet().size();
         int actualRows = 0;
         StringBuilder sql = new StringBuilder("insert into data_check.CHECK_ES(id, updated) values");
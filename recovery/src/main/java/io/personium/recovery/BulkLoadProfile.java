@@ -0,0 +1,125 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 一括登録中にインデックスへ適用する設定のプロファイル.
+ * <p>
+ * 名前で選んだ組み込みの設定に、個別に指定した設定を上書きして使用する.
+ * 一括登録後は元の値へ戻すが、インデックスに明示的に設定されていない項目は、ESのデフォルト値へ戻す.
+ * デフォルト値が分からない項目は、元に戻せないため適用しない.
+ */
+class BulkLoadProfile {
+
+    private static Logger log = LoggerFactory.getLogger(BulkLoadProfile.class);
+
+    /** プロファイル名：レプリカ数以外は変更しない. */
+    static final String NONE = "none";
+    /** プロファイル名：リフレッシュを止め、トランザクションログのフラッシュを減らし、マージのI/O制限を外す. */
+    static final String BULK = "bulk";
+
+    /**
+     * 組み込みのプロファイル「bulk」の設定.
+     * マージのI/O制限は、ES 1.xのインデックス単位のストアの制限(index.store.throttle.type)で外す.
+     */
+    private static final String[][] BULK_SETTINGS = {
+        {"index.refresh_interval", "-1" },
+        {"index.translog.flush_threshold_size", "1gb" },
+        {"index.store.throttle.type", "none" } };
+    /** 一括登録後に戻すESのデフォルト値. */
+    private static final String[][] DEFAULT_SETTINGS = {
+        {"index.refresh_interval", "1s" },
+        {"index.translog.flush_threshold_size", "200mb" },
+        {"index.translog.flush_threshold_ops", "unlimited" },
+        {"index.translog.interval", "5s" },
+        {"index.merge.policy.segments_per_tier", "10" },
+        {"index.store.throttle.type", "node" } };
+
+    private final String name;
+    private final Map<String, String> settings = new LinkedHashMap<String, String>();
+    private final Map<String, String> defaults = new LinkedHashMap<String, String>();
+
+    /**
+     * コンストラクタ.
+     * @param name プロファイル名
+     * @param overrides 上書きする設定(カンマ区切りの項目名=値)、ない場合はnull
+     * @param defaults 一括登録後に戻すデフォルト値(カンマ区切りの項目名=値)、ない場合はnull
+     */
+    BulkLoadProfile(String name, String overrides, String defaults) {
+        this.name = name;
+        if (BULK.equals(name)) {
+            for (String[] setting : BULK_SETTINGS) {
+                this.settings.put(setting[0], setting[1]);
+            }
+        }
+        for (String[] setting : DEFAULT_SETTINGS) {
+            this.defaults.put(setting[0], setting[1]);
+        }
+        this.settings.putAll(parse(overrides));
+        this.defaults.putAll(parse(defaults));
+    }
+
+    /**
+     * @return プロファイル名
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return 一括登録中に適用する設定
+     */
+    Map<String, String> getSettings() {
+        return Collections.unmodifiableMap(this.settings);
+    }
+
+    /**
+     * @param key 設定項目名
+     * @return 一括登録後に戻すデフォルト値、分からない場合はnull
+     */
+    String getDefault(String key) {
+        return this.defaults.get(key);
+    }
+
+    /**
+     * カンマ区切りの項目名=値を解析する. 不正な項目は無視する.
+     * @param value 設定値
+     * @return 項目名と値
+     */
+    static Map<String, String> parse(String value) {
+        Map<String, String> parsed = new LinkedHashMap<String, String>();
+        if (value == null || "".equals(value.trim())) {
+            return parsed;
+        }
+        for (String entry : value.split(",")) {
+            int equal = entry.indexOf('=');
+            if (equal <= 0) {
+                log.warn("invalid index setting is ignored. [" + entry + "]");
+                continue;
+            }
+            parsed.put(entry.substring(0, equal).trim(), entry.substring(equal + 1).trim());
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 一括登録用に変更したインデックスの設定を、元に戻す値とともに記録するファイル.
+ * <p>
+ * {インデックス名}/{設定項目名}={元に戻す値} をプロパティ形式で記録する.
+ * 設定を変更する前に記録し、元に戻した後に削除するため、異常終了した場合は次回の実行時に記録から元に戻せる.
+ * 更新のたびに一時ファイルへ書き出してから置き換えるため、異常終了時にも壊れたファイルは残らない.
+ */
+class BulkLoadState {
+
+    /** インデックス名と設定項目名の区切り. インデックス名には使用できない文字とする. */
+    private static final char SEPARATOR = '/';
+
+    private final File file;
+    private final Properties values = new Properties();
+
+    private BulkLoadState(String path) {
+        this.file = new File(path);
+    }
+
+    /**
+     * 記録ファイルを開く. 前回の実行で元に戻していない設定があれば読み込む.
+     * @param path 記録ファイルのパス
+     * @return 記録
+     * @throws IOException ファイルの読み込みに失敗した場合
+     */
+    static BulkLoadState open(String path) throws IOException {
+        BulkLoadState state = new BulkLoadState(path);
+        if (state.file.exists()) {
+            InputStream is = new FileInputStream(state.file);
+            try {
+                state.values.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return 元に戻していない設定のあるインデックス名
+     */
+    synchronized Set<String> getIndices() {
+        Set<String> indices = new TreeSet<String>();
+        for (String key : this.values.stringPropertyNames()) {
+            indices.add(key.substring(0, key.indexOf(SEPARATOR)));
+        }
+        return indices;
+    }
+
+    /**
+     * インデックスの元に戻す設定を取得する.
+     * @param index インデックス名
+     * @return 設定項目名と元に戻す値、記録がない場合はnull
+     */
+    synchronized Map<String, String> get(String index) {
+        String prefix = index + SEPARATOR;
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String key : this.values.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                settings.put(key.substring(prefix.length()), this.values.getProperty(key));
+            }
+        }
+        if (settings.isEmpty()) {
+            return null;
+        }
+        return settings;
+    }
+
+    /**
+     * インデックスの元に戻す設定を記録する.
+     * @param index インデックス名
+     * @param settings 設定項目名と元に戻す値
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void record(String index, Map<String, String> settings) throws IOException {
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            this.values.setProperty(index + SEPARATOR + setting.getKey(), setting.getValue());
+        }
+        save();
+    }
+
+    /**
+     * 設定を元に戻したインデックスの記録を削除する. 記録が空になった場合はファイルを削除する.
+     * @param index インデックス名
+     * @throws IOException ファイルの書き込み・削除に失敗した場合
+     */
+    synchronized void remove(String index) throws IOException {
+        String prefix = index + SEPARATOR;
+        boolean removed = false;
+        for (String key : this.values.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                this.values.remove(key);
+                removed = true;
+            }
+        }
+        if (!removed) {
+            return;
+        }
+        if (this.values.isEmpty()) {
+            Files.deleteIfExists(this.file.toPath());
+        } else {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            this.values.store(os, "personium recovery index settings to restore");
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
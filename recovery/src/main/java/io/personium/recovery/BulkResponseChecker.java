@@ -0,0 +1,266 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.EsBulkRequest;
+import io.personium.common.es.response.DcBulkItemResponse;
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * ESへのバルク登録結果をチェックするクラス.
+ * <p>
+ * 登録に失敗したドキュメントのうち、ESのキュー溢れやタイムアウト等の一時的な失敗は、
+ * 待ち時間を指数的に延ばしながら小さな単位で再登録する。再登録の上限回数を超えた場合や、
+ * マッピング不整合等の恒久的な失敗の場合は、デッドレタージャーナルへ記録する.
+ */
+class BulkResponseChecker {
+
+    private static Logger log = LoggerFactory.getLogger(BulkResponseChecker.class);
+
+    /** 一時的な失敗と判断するエラーメッセージ. */
+    private static final String[] RETRYABLE_MESSAGES = {
+        "EsRejectedExecutionException", "Timeout", "timed out", "UnavailableShardsException",
+        "NoNodeAvailableException", "NodeNotConnectedException" };
+    /** ESのキューが溢れて拒否されたことを表すエラーメッセージ. */
+    private static final String REJECTED_MESSAGE = "EsRejectedExecutionException";
+
+    private final DeadLetterJournal journal;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final int retryBulkSize;
+    private final RecoveryMetrics metrics;
+
+    /**
+     * コンストラクタ.
+     * @param journal デッドレタージャーナル
+     * @param maxRetries 再登録の上限回数
+     * @param backoffMillis 1回目の再登録までの待ち時間(ミリ秒)、以降は再登録ごとに2倍にする
+     * @param retryBulkSize 再登録時の1回のバルク登録の件数
+     * @param metrics 失敗件数の集計先
+     */
+    BulkResponseChecker(DeadLetterJournal journal, int maxRetries, long backoffMillis, int retryBulkSize,
+            RecoveryMetrics metrics) {
+        this.journal = journal;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.retryBulkSize = retryBulkSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * ESへのバルク登録結果をチェックし、失敗したドキュメントを再登録またはジャーナルへ記録する.
+     * @param esRecovery 再登録に使用するEsRecovery
+     * @param index インデックス名
+     * @param tableName ドキュメントの読み込み元テーブル名
+     * @param batch 登録したドキュメント
+     * @param response 対象Indexへのバルク登録結果、登録データなしの場合はnull
+     * @param unitPrefix ESのプレフィックス
+     * @throws IOException ジャーナルへの書き込みに失敗した場合
+     * @throws InterruptedException 再登録の待機中に割り込まれた場合
+     */
+    void check(EsRecovery esRecovery, String index, String tableName, EsBulkBatch batch, DcBulkResponse response,
+            String unitPrefix) throws IOException, InterruptedException {
+        if (!hasFailures(batch.getCellResponse()) && !hasFailures(response)) {
+            return;
+        }
+        Map<String, Failure> failures = new LinkedHashMap<String, Failure>();
+        collectFailures(index, batch, batch.getCellResponse(), response, failures);
+
+        int attempt = 0;
+        while (!failures.isEmpty()) {
+            List<Failure> retryable = new ArrayList<Failure>();
+            for (Failure failure : failures.values()) {
+                this.metrics.addFailure(failure.message != null && failure.message.contains(REJECTED_MESSAGE));
+                if (attempt < this.maxRetries && failure.request != null && isRetryable(failure.message)) {
+                    retryable.add(failure);
+                } else {
+                    this.journal.write(failure.index, tableName, failure.id, failure.message);
+                    this.metrics.addDeadLetter();
+                    log.error(String.format("Failed to recover index data [%s] on elasticsearch. [%s/%s] %s",
+                            failure.index, tableName, failure.id, failure.message));
+                }
+            }
+            failures.clear();
+            if (retryable.isEmpty()) {
+                break;
+            }
+            this.metrics.addRetried(retryable.size());
+
+            Thread.sleep(this.backoffMillis << attempt);
+            attempt++;
+            log.info(String.format("Retry bulk request. [%s] documents=%d attempt=%d", index, retryable.size(),
+                    attempt));
+            for (int from = 0; from < retryable.size(); from += this.retryBulkSize) {
+                List<Failure> chunk = retryable.subList(from, Math.min(from + this.retryBulkSize, retryable.size()));
+                resend(esRecovery, index, chunk, unitPrefix, failures);
+            }
+        }
+    }
+
+    /**
+     * 失敗したドキュメントを再登録し、再度失敗したドキュメントを収集する.
+     * @param esRecovery 再登録に使用するEsRecovery
+     * @param index インデックス名
+     * @param chunk 再登録するドキュメント
+     * @param unitPrefix ESのプレフィックス
+     * @param failures 再度失敗したドキュメントの格納先
+     */
+    private void resend(EsRecovery esRecovery, String index, List<Failure> chunk, String unitPrefix,
+            Map<String, Failure> failures) {
+        EsBulkBatch retryBatch = new EsBulkBatch();
+        for (Failure failure : chunk) {
+            if (failure.cell) {
+                retryBatch.addCell(failure.request, 0, failure.index);
+            } else {
+                retryBatch.add(failure.routingId, failure.request, 0);
+            }
+        }
+        DcBulkResponse response;
+        try {
+            response = esRecovery.send(index, retryBatch, unitPrefix);
+        } catch (RuntimeException e) {
+            // バルク登録自体が失敗した場合は、全件を再度失敗したものとして扱う
+            log.warn("Failed to retry bulk request [" + index + "] " + e.toString());
+            for (Failure failure : chunk) {
+                failures.put(key(failure.request.getType(), failure.id), new Failure(failure, e.toString()));
+            }
+            return;
+        }
+        collectFailures(index, retryBatch, retryBatch.getCellResponse(), response, failures);
+    }
+
+    /**
+     * バルク登録結果から失敗したドキュメントを収集する.
+     * Cellは変換元インデックス名が記録されている場合は、そのインデックスのドキュメントとして収集する.
+     * @param index インデックス名
+     * @param batch 登録したドキュメント
+     * @param cellResponse u0_adへのCell登録結果
+     * @param response 対象Indexへのバルク登録結果
+     * @param failures 失敗したドキュメントの格納先
+     */
+    private void collectFailures(String index, EsBulkBatch batch, DcBulkResponse cellResponse,
+            DcBulkResponse response, Map<String, Failure> failures) {
+        Map<String, Failure> requests = new LinkedHashMap<String, Failure>();
+        if (hasFailures(cellResponse)) {
+            List<EsBulkRequest> cells = batch.getCellList();
+            for (int i = 0; i < cells.size(); i++) {
+                EsBulkRequest request = cells.get(i);
+                String origin = batch.getCellOrigin(i);
+                if (origin == null) {
+                    origin = index;
+                }
+                requests.put(key(request.getType(), request.getId()), new Failure(request, null, true, origin));
+            }
+            addFailures(index, cellResponse, requests, failures);
+        }
+        if (hasFailures(response)) {
+            for (Map.Entry<String, List<EsBulkRequest>> entry : batch.getBulkMap().entrySet()) {
+                for (EsBulkRequest request : entry.getValue()) {
+                    requests.put(key(request.getType(), request.getId()),
+                            new Failure(request, entry.getKey(), false, index));
+                }
+            }
+            addFailures(index, response, requests, failures);
+        }
+    }
+
+    private void addFailures(String index, DcBulkResponse response, Map<String, Failure> requests,
+            Map<String, Failure> failures) {
+        for (DcBulkItemResponse item : response.items()) {
+            if (!item.isFailed()) {
+                continue;
+            }
+            String key = key(item.getType(), item.getId());
+            Failure request = requests.get(key);
+            if (request == null) {
+                // 登録したドキュメントが特定できない場合は再登録せずにジャーナルへ記録する
+                failures.put(key, new Failure(item.getId(), item.getFailureMessage(), index));
+            } else {
+                failures.put(key, new Failure(request, item.getFailureMessage()));
+            }
+        }
+    }
+
+    private static boolean hasFailures(DcBulkResponse response) {
+        return response != null && response.hasFailures();
+    }
+
+    private static boolean isRetryable(String message) {
+        if (message == null) {
+            return false;
+        }
+        for (String retryable : RETRYABLE_MESSAGES) {
+            if (message.contains(retryable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String type, String id) {
+        return type + "/" + id;
+    }
+
+    /**
+     * 登録に失敗したドキュメント.
+     */
+    private static class Failure {
+        private final EsBulkRequest request;
+        private final String routingId;
+        private final boolean cell;
+        /** デッドレタージャーナルへ記録するインデックス名. */
+        private final String index;
+        private final String id;
+        private final String message;
+
+        Failure(EsBulkRequest request, String routingId, boolean cell, String index) {
+            this.request = request;
+            this.routingId = routingId;
+            this.cell = cell;
+            this.index = index;
+            this.id = request.getId();
+            this.message = null;
+        }
+
+        Failure(Failure failure, String message) {
+            this.request = failure.request;
+            this.routingId = failure.routingId;
+            this.cell = failure.cell;
+            this.index = failure.index;
+            this.id = failure.id;
+            this.message = message;
+        }
+
+        Failure(String id, String message, String index) {
+            this.request = null;
+            this.routingId = null;
+            this.cell = false;
+            this.index = index;
+            this.id = id;
+            this.message = message;
+        }
+    }
+}
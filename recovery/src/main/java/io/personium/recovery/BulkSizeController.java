@@ -0,0 +1,157 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.response.DcBulkItemResponse;
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * バルク登録の単位を、ドキュメントの推定サイズ(バイト)と最大件数で決めるコントローラ.
+ * <p>
+ * 適応制御を有効にした場合は、バルク登録ごとの応答時間と拒否(EsRejectedExecutionException)の発生状況から
+ * 目標サイズを増減する.
+ * <ul>
+ * <li>拒否が発生した場合：目標サイズを半分にする.</li>
+ * <li>応答時間が目標を超えた場合：目標サイズを1/4減らす.</li>
+ * <li>応答時間が目標の半分未満の場合：目標サイズを1/4増やす.</li>
+ * </ul>
+ * 目標サイズは最小値・最大値の範囲に収める。複数のバルク登録スレッドから共有されるためスレッドセーフとする.
+ */
+class BulkSizeController {
+
+    private static Logger log = LoggerFactory.getLogger(BulkSizeController.class);
+
+    /** 目標サイズを増減する割合の分母（1/4ずつ増減する）. */
+    private static final int STEP_DIVISOR = 4;
+    /** 応答時間が十分に短いと判断する目標応答時間に対する割合の分母（1/2未満）. */
+    private static final int FAST_DIVISOR = 2;
+    /** 拒否と判断するエラーメッセージ. */
+    private static final String REJECTED_MESSAGE = "EsRejectedExecutionException";
+
+    private final int maxDocs;
+    private final boolean adaptive;
+    private final long minBytes;
+    private final long maxBytes;
+    private final long latencyTargetMillis;
+    private volatile long targetBytes;
+
+    /**
+     * コンストラクタ.
+     * @param targetBytes 1回のバルク登録の目標サイズ(バイト)
+     * @param maxDocs 1回のバルク登録の最大件数
+     * @param adaptive 適応制御を行うかどうか
+     * @param minBytes 適応制御時の目標サイズの下限(バイト)
+     * @param maxBytes 適応制御時の目標サイズの上限(バイト)
+     * @param latencyTargetMillis 適応制御時の目標応答時間(ミリ秒)
+     */
+    BulkSizeController(long targetBytes, int maxDocs, boolean adaptive, long minBytes, long maxBytes,
+            long latencyTargetMillis) {
+        this.maxDocs = maxDocs;
+        this.adaptive = adaptive;
+        this.minBytes = Math.min(minBytes, maxBytes);
+        this.maxBytes = maxBytes;
+        this.latencyTargetMillis = latencyTargetMillis;
+        if (adaptive) {
+            this.targetBytes = clamp(targetBytes);
+        } else {
+            this.targetBytes = targetBytes;
+        }
+    }
+
+    /**
+     * バルク登録の単位に達したかどうかを判定する.
+     * @param batch 変換中のドキュメント
+     * @return 次のドキュメントを新しい単位にする場合はtrue
+     */
+    boolean isFull(EsBulkBatch batch) {
+        return batch.getDocumentCount() >= this.maxDocs || batch.getEstimatedBytes() >= this.targetBytes;
+    }
+
+    /**
+     * ドキュメント単独でバルク登録の単位を超えるかどうかを判定する.
+     * @param size ドキュメントの推定サイズ(バイト)
+     * @return 単独で目標サイズ以上となる場合はtrue
+     */
+    boolean isOversized(long size) {
+        return size >= this.targetBytes;
+    }
+
+    /**
+     * 現在の目標サイズを取得する.
+     * @return 目標サイズ(バイト)
+     */
+    long getTargetBytes() {
+        return this.targetBytes;
+    }
+
+    /**
+     * バルク登録の結果を反映して目標サイズを調整する.
+     * @param batch 登録したドキュメント
+     * @param latencyMillis バルク登録の応答時間(ミリ秒)
+     * @param response バルク登録結果のレスポンス、登録データなしの場合はnull
+     */
+    void onBulkCompleted(EsBulkBatch batch, long latencyMillis, DcBulkResponse response) {
+        if (!this.adaptive || batch.getDocumentCount() == 0) {
+            return;
+        }
+        boolean rejected = isRejected(response);
+        synchronized (this) {
+            long current = this.targetBytes;
+            long next = current;
+            if (rejected) {
+                next = current / 2;
+            } else if (latencyMillis > this.latencyTargetMillis) {
+                next = current - current / STEP_DIVISOR;
+            } else if (latencyMillis < this.latencyTargetMillis / FAST_DIVISOR
+                    && batch.getEstimatedBytes() >= current - current / STEP_DIVISOR) {
+                // 目標サイズに満たないまま送信された単位（ページ末尾等）では増やさない
+                next = current + current / STEP_DIVISOR;
+            }
+            next = clamp(next);
+            if (next != current) {
+                this.targetBytes = next;
+                log.debug(String.format("bulk size target changed. [%d -> %d] latency=%dms rejected=%b",
+                        current, next, latencyMillis, rejected));
+            }
+        }
+    }
+
+    /**
+     * レスポンスにESのキュー溢れによる拒否が含まれるかどうかを判定する.
+     * @param response バルク登録結果のレスポンス
+     * @return 拒否が含まれる場合はtrue
+     */
+    static boolean isRejected(DcBulkResponse response) {
+        if (response == null || !response.hasFailures()) {
+            return false;
+        }
+        for (DcBulkItemResponse item : response.items()) {
+            if (item.isFailed() && item.getFailureMessage() != null
+                    && item.getFailureMessage().contains(REJECTED_MESSAGE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long clamp(long bytes) {
+        return Math.max(this.minBytes, Math.min(this.maxBytes, bytes));
+    }
+}
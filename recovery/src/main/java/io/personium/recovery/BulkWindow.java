@@ -0,0 +1,162 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * 同時に実行中のバルク登録数を一定数に制限するウィンドウ.
+ * <p>
+ * 登録を依頼したスレッドは、実行中のバルク登録がウィンドウの大きさに達している場合は空きが出るまで待機する.
+ * バルク登録はウィンドウのスレッドで実行し、完了するごとにコールバックで結果を通知する。
+ * 失敗したドキュメントの再登録はコールバック内で行うため、その間もウィンドウの枠を占有する.
+ * 全てのパイプラインで共有し、ESへ同時に送信するバルク登録数の上限とする.
+ */
+class BulkWindow {
+
+    /**
+     * ウィンドウで実行するバルク登録.
+     */
+    interface Bulk {
+        /**
+         * バルク登録を送信する.
+         * @return バルク登録結果のレスポンス、登録データなしの場合はnull
+         */
+        DcBulkResponse send();
+
+        /**
+         * バルク登録の完了を通知する.
+         * 例外をスローした場合は、続けて{@link #onFailed(Throwable)}を呼び出す.
+         * @param response バルク登録結果のレスポンス、登録データなしの場合はnull
+         * @param latencyMillis 送信から応答までの時間(ミリ秒)
+         * @throws Exception 結果の処理に失敗した場合
+         */
+        void onCompleted(DcBulkResponse response, long latencyMillis) throws Exception;
+
+        /**
+         * バルク登録または結果の処理の失敗を通知する.
+         * @param cause 発生した例外
+         */
+        void onFailed(Throwable cause);
+    }
+
+    private final int size;
+    private final Semaphore slots;
+    private final ExecutorService executor;
+    private final RecoveryMetrics metrics;
+    /** 実行中のバルク登録数. */
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    /** ウィンドウの空きを待っている依頼元の数. */
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    /** 実行中のバルク登録数の最大値. */
+    private final AtomicInteger peak = new AtomicInteger(0);
+
+    /**
+     * コンストラクタ.
+     * @param size 同時に実行するバルク登録数
+     * @param metrics 待ち時間の集計先
+     */
+    BulkWindow(int size, RecoveryMetrics metrics) {
+        this.size = size;
+        this.slots = new Semaphore(size);
+        this.executor = Executors.newFixedThreadPool(size, new RecoveryThreadFactory("bulk"));
+        this.metrics = metrics;
+    }
+
+    /**
+     * バルク登録を依頼する. ウィンドウに空きがない場合は待機する.
+     * @param bulk バルク登録
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void submit(final Bulk bulk) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        this.waiting.incrementAndGet();
+        try {
+            this.slots.acquire();
+        } finally {
+            this.waiting.decrementAndGet();
+        }
+        this.metrics.record(RecoveryMetrics.Stage.BULK_WINDOW_WAIT, System.currentTimeMillis() - start);
+        int current = this.inFlight.incrementAndGet();
+        int max = this.peak.get();
+        while (current > max && !this.peak.compareAndSet(max, current)) {
+            max = this.peak.get();
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long sent = System.currentTimeMillis();
+                        DcBulkResponse response = bulk.send();
+                        bulk.onCompleted(response, System.currentTimeMillis() - sent);
+                    } catch (Throwable e) {
+                        bulk.onFailed(e);
+                    } finally {
+                        inFlight.decrementAndGet();
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            this.inFlight.decrementAndGet();
+            this.slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 同時に実行するバルク登録数
+     */
+    int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return 実行中のバルク登録数
+     */
+    int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * @return ウィンドウの空きを待っている依頼元の数
+     */
+    int getWaiting() {
+        return this.waiting.get();
+    }
+
+    /**
+     * @return 実行中のバルク登録数の最大値
+     */
+    int getPeak() {
+        return this.peak.get();
+    }
+
+    /**
+     * ウィンドウのスレッドを終了する.
+     * 実行中のバルク登録の完了は待たないため、依頼元で完了を待ち合わせてから呼び出すこと.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+}
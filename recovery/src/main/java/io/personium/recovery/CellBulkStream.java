@@ -0,0 +1,356 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * ユーザのインデックスのCellを、インデックスを跨いでまとめてu0_adへ登録するストリーム.
+ * <p>
+ * 各パイプラインが変換したCellを蓄積し、件数・推定サイズが上限に達した時点、
+ * または最初のCellの追加から一定時間が経過した時点で、1回のバルク登録として{@link BulkWindow}へ依頼する.
+ * 登録結果の確認はバルク登録の完了ごとに行い、登録に失敗したCellは変換元のインデックスでデッドレタージャーナルへ記録する.
+ * <p>
+ * Cellを追加した依頼元へは、そのCellまでの全てのバルク登録の結果の確認が完了した時点で通知する.
+ * いずれかのバルク登録が失敗した場合は、以降の通知は行わない。チェックポイントの記録を通知で行うことで、
+ * 登録の済んでいないCellを含むページやテーブルが完了として記録されないようにする.
+ */
+class CellBulkStream {
+
+    private static Logger log = LoggerFactory.getLogger(CellBulkStream.class);
+
+    /**
+     * 登録結果の確認の完了を受け取るリスナー.
+     */
+    interface Listener {
+        /**
+         * 登録結果の確認が完了したことを通知する.
+         * @throws Exception 通知先での処理に失敗した場合
+         */
+        void onFlushed() throws Exception;
+    }
+
+    private final String adIndex;
+    private final String tableName;
+    private final String unitPrefix;
+    private final EsRecovery esRecovery;
+    private final BulkResponseChecker checker;
+    private final BulkWindow window;
+    private final RecoveryMetrics metrics;
+    private final RecoveryThrottle throttle;
+    private final int flushDocs;
+    private final long flushBytes;
+    private final long flushInterval;
+    private ScheduledExecutorService timer;
+
+    /** 蓄積中のCell. */
+    private EsBulkBatch buffer = new EsBulkBatch();
+    /** 蓄積中のCellの変換元インデックス名. */
+    private Set<String> bufferOrigins = new LinkedHashSet<String>();
+    /** 蓄積中の最初のCellを追加した時刻(ミリ秒). */
+    private long bufferStarted = 0;
+    /** 次に依頼するバルク登録の連番. */
+    private long nextFlush = 0;
+    /** 先頭から連続して登録結果の確認まで完了したバルク登録の数. */
+    private long completedFlushes = 0;
+    /** 登録結果の確認まで完了したが、前のバルク登録が未完了のため通知していない連番. */
+    private final Set<Long> completedOutOfOrder = new HashSet<Long>();
+    /** 完了を待っているバルク登録の連番毎のリスナー. */
+    private final TreeMap<Long, List<Listener>> listeners = new TreeMap<Long, List<Listener>>();
+    /** 依頼し、リスナーへの通知まで完了していないバルク登録の数. */
+    private int pendingFlushes = 0;
+    /** 登録に失敗したCellの変換元インデックス名. */
+    private final Set<String> failedIndices = new LinkedHashSet<String>();
+    private boolean failed = false;
+
+    /**
+     * コンストラクタ.
+     * @param esRecovery バルク登録に使用するEsRecovery
+     * @param checker バルク登録結果のチェッカー
+     * @param window バルク登録を実行するウィンドウ
+     * @param metrics 所要時間の集計先
+     * @param throttle バルク登録の結果を通知する流量制限
+     * @param tableName Cellの読み込み元テーブル名（デッドレタージャーナルへの記録に使用）
+     * @param unitPrefix ESのプレフィックス
+     * @param flushDocs 1回のバルク登録のCell数の上限
+     * @param flushBytes 1回のバルク登録の推定サイズ(バイト)の上限
+     * @param flushInterval 蓄積したCellを登録するまでの最大の待ち時間(ミリ秒)
+     */
+    CellBulkStream(EsRecovery esRecovery, BulkResponseChecker checker, BulkWindow window, RecoveryMetrics metrics,
+            RecoveryThrottle throttle, String tableName, String unitPrefix, int flushDocs, long flushBytes,
+            long flushInterval) {
+        this.esRecovery = esRecovery;
+        this.checker = checker;
+        this.window = window;
+        this.metrics = metrics;
+        this.throttle = throttle;
+        this.tableName = tableName;
+        this.unitPrefix = unitPrefix;
+        this.adIndex = unitPrefix + "_ad";
+        this.flushDocs = flushDocs;
+        this.flushBytes = flushBytes;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * 一定時間が経過したCellを登録するスレッドを開始する.
+     */
+    void start() {
+        if (this.flushInterval <= 0) {
+            return;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(new RecoveryThreadFactory("cell-stream"));
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Flush flush = null;
+                    synchronized (CellBulkStream.this) {
+                        if (buffer.getDocumentCount() > 0
+                                && System.currentTimeMillis() - bufferStarted >= flushInterval) {
+                            flush = takeBuffer();
+                        }
+                    }
+                    submit(flush);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cellを追加する. 件数・推定サイズが上限に達した場合は、蓄積したCellのバルク登録を依頼する.
+     * @param index Cellの変換元インデックス名
+     * @param cells Cellのみを含むバルク登録の単位
+     * @param listener 追加したCellの登録結果の確認の完了を受け取るリスナー
+     * @throws InterruptedException バルク登録の依頼の待機中に割り込まれた場合
+     */
+    void add(String index, EsBulkBatch cells, Listener listener) throws InterruptedException {
+        Flush flush = null;
+        synchronized (this) {
+            if (this.buffer.getDocumentCount() == 0) {
+                this.bufferStarted = System.currentTimeMillis();
+            }
+            this.buffer.addCells(cells, index);
+            this.bufferOrigins.add(index);
+            addListener(this.nextFlush, listener);
+            if (isFull()) {
+                flush = takeBuffer();
+            }
+        }
+        submit(flush);
+    }
+
+    /**
+     * これまでに追加した全てのCellの登録結果の確認が完了した時点で通知する.
+     * 登録中のCellがない場合は、呼び出し元のスレッドで直ちに通知する.
+     * 蓄積中のCellの登録は早めないため、通知は最大で登録までの待ち時間だけ遅れる.
+     * @param listener 完了を受け取るリスナー
+     * @throws Exception 直ちに通知した場合に、通知先での処理に失敗した場合
+     */
+    void afterFlushed(Listener listener) throws Exception {
+        synchronized (this) {
+            long last = this.nextFlush - 1;
+            if (this.buffer.getDocumentCount() > 0) {
+                last = this.nextFlush;
+            }
+            if (last >= this.completedFlushes) {
+                addListener(last, listener);
+                return;
+            }
+        }
+        listener.onFlushed();
+    }
+
+    /**
+     * 蓄積中のCellを登録し、全てのバルク登録の結果の確認と通知が完了するまで待つ.
+     * 完了後に、登録に使用したEsRecoveryの接続を閉じる.
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void close() throws InterruptedException {
+        try {
+            if (this.timer != null) {
+                // 実行中の登録の依頼は完了させ、以降の定期実行は取り消す
+                this.timer.shutdown();
+                while (!this.timer.awaitTermination(this.flushInterval, TimeUnit.MILLISECONDS)) {
+                    log.debug("waiting for cell stream timer termination");
+                }
+            }
+            Flush flush = null;
+            synchronized (this) {
+                if (this.buffer.getDocumentCount() > 0) {
+                    flush = takeBuffer();
+                }
+            }
+            submit(flush);
+            synchronized (this) {
+                while (this.pendingFlushes > 0) {
+                    wait();
+                }
+            }
+        } finally {
+            this.esRecovery.close();
+        }
+    }
+
+    /**
+     * @return 登録に失敗したCellの変換元インデックス名
+     */
+    synchronized Set<String> getFailedIndices() {
+        return new LinkedHashSet<String>(this.failedIndices);
+    }
+
+    private boolean isFull() {
+        return (this.flushDocs > 0 && this.buffer.getDocumentCount() >= this.flushDocs)
+                || (this.flushBytes > 0 && this.buffer.getEstimatedBytes() >= this.flushBytes);
+    }
+
+    private void addListener(long seq, Listener listener) {
+        List<Listener> list = this.listeners.get(seq);
+        if (list == null) {
+            list = new ArrayList<Listener>();
+            this.listeners.put(seq, list);
+        }
+        list.add(listener);
+    }
+
+    /**
+     * 蓄積中のCellを取り出し、連番を採番する. 同期した状態で呼び出すこと.
+     * @return 取り出したCellのバルク登録
+     */
+    private Flush takeBuffer() {
+        Flush flush = new Flush(this.nextFlush++, this.buffer, this.bufferOrigins);
+        this.buffer = new EsBulkBatch();
+        this.bufferOrigins = new LinkedHashSet<String>();
+        this.pendingFlushes++;
+        return flush;
+    }
+
+    /**
+     * 取り出したCellのバルク登録をウィンドウへ依頼する.
+     * @param flush 取り出したCellのバルク登録、nullの場合は何もしない
+     * @throws InterruptedException ウィンドウの空きの待機中に割り込まれた場合
+     */
+    private void submit(final Flush flush) throws InterruptedException {
+        if (flush == null) {
+            return;
+        }
+        boolean submitted = false;
+        try {
+            this.window.submit(new BulkWindow.Bulk() {
+                @Override
+                public DcBulkResponse send() {
+                    esRecovery.send(adIndex, flush.cells, unitPrefix);
+                    return flush.cells.getCellResponse();
+                }
+
+                @Override
+                public void onCompleted(DcBulkResponse response, long latencyMillis) throws Exception {
+                    metrics.record(RecoveryMetrics.Stage.BULK_SUBMIT, latencyMillis);
+                    throttle.onBulkCompleted(latencyMillis, response);
+                    long start = System.currentTimeMillis();
+                    // Cellのみの登録のため、登録結果はflush.cellsに設定されている
+                    checker.check(esRecovery, adIndex, tableName, flush.cells, null, unitPrefix);
+                    metrics.record(RecoveryMetrics.Stage.BULK_RESPONSE, System.currentTimeMillis() - start);
+                    complete(flush, null);
+                }
+
+                @Override
+                public void onFailed(Throwable cause) {
+                    complete(flush, cause);
+                }
+            });
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                complete(flush, new RecoveryException("Cell bulk request is not submitted."));
+            }
+        }
+    }
+
+    /**
+     * バルク登録の完了を記録し、先頭から連続して完了したバルク登録までを待っているリスナーへ通知する.
+     * @param flush 完了したバルク登録
+     * @param cause 失敗した場合の例外、成功した場合はnull
+     */
+    private void complete(Flush flush, Throwable cause) {
+        List<Listener> ready = new ArrayList<Listener>();
+        synchronized (this) {
+            if (cause != null) {
+                log.error(String.format("Failed to recover cells into [%s] on elasticsearch. %s %s", this.adIndex,
+                        flush.origins, cause.toString()));
+                this.failedIndices.addAll(flush.origins);
+                this.failed = true;
+            } else if (!this.failed) {
+                this.completedOutOfOrder.add(flush.seq);
+                while (this.completedOutOfOrder.remove(this.completedFlushes)) {
+                    this.completedFlushes++;
+                }
+                Map<Long, List<Listener>> done = this.listeners.headMap(this.completedFlushes);
+                for (List<Listener> list : done.values()) {
+                    ready.addAll(list);
+                }
+                done.clear();
+            }
+        }
+        for (Listener listener : ready) {
+            try {
+                listener.onFlushed();
+            } catch (Exception e) {
+                log.error("Failed to complete cell recovery. " + e.toString());
+                synchronized (this) {
+                    this.failedIndices.add(this.adIndex);
+                }
+            }
+        }
+        // 通知が済むまでは完了を待ち合わせる呼び出し元へ戻らないよう、最後に未完了数を減らす
+        synchronized (this) {
+            this.pendingFlushes--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 取り出したCellのバルク登録.
+     */
+    private static class Flush {
+        private final long seq;
+        private final EsBulkBatch cells;
+        private final Set<String> origins;
+
+        Flush(long seq, EsBulkBatch cells, Set<String> origins) {
+            this.seq = seq;
+            this.cells = cells;
+            this.origins = origins;
+        }
+    }
+}
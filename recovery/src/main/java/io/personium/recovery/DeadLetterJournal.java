@@ -0,0 +1,173 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ESへの登録に失敗したドキュメントを記録するデッドレタージャーナル.
+ * <p>
+ * 1ドキュメントを1行とし、「インデックス名 TAB テーブル名 TAB ID TAB 失敗理由」の形式で追記する.
+ * ドキュメントの内容はMySQLにあるため記録せず、再投入時はIDを基にMySQLから読み直す.
+ * ファイルは最初の記録時に作成する.
+ */
+class DeadLetterJournal {
+
+    private static Logger log = LoggerFactory.getLogger(DeadLetterJournal.class);
+
+    private static final String SEPARATOR = "\t";
+    private static final int INDEX_COLUMN = 0;
+    private static final int TABLE_COLUMN = 1;
+    private static final int ID_COLUMN = 2;
+    private static final int MIN_COLUMNS = 3;
+
+    private final String path;
+    private BufferedWriter writer;
+    private int count = 0;
+
+    /**
+     * コンストラクタ.
+     * @param path ジャーナルファイルのパス
+     */
+    DeadLetterJournal(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return ジャーナルファイルのパス
+     */
+    String getPath() {
+        return this.path;
+    }
+
+    /**
+     * 登録に失敗したドキュメントを記録する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @param id ドキュメントのID
+     * @param reason 失敗理由
+     * @throws IOException ジャーナルへの書き込みに失敗した場合
+     */
+    synchronized void write(String index, String tableName, String id, String reason) throws IOException {
+        if (this.writer == null) {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.path, true),
+                    StandardCharsets.UTF_8));
+        }
+        String message = "";
+        if (reason != null) {
+            message = reason.replaceAll("[\\t\\r\\n]+", " ");
+        }
+        this.writer.write(index + SEPARATOR + tableName + SEPARATOR + id + SEPARATOR + message);
+        this.writer.newLine();
+        // 異常終了時にも記録が残るよう、1件ごとに書き出す
+        this.writer.flush();
+        this.count++;
+    }
+
+    /**
+     * @return 記録したドキュメント数
+     */
+    synchronized int getCount() {
+        return this.count;
+    }
+
+    /**
+     * ジャーナルファイルを閉じる.
+     */
+    synchronized void close() {
+        if (this.writer == null) {
+            return;
+        }
+        try {
+            this.writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.warn("Failed to close dead letter journal [" + this.path + "]");
+        }
+        this.writer = null;
+    }
+
+    /**
+     * ジャーナルファイルを読み込む.
+     * @param file ジャーナルファイル
+     * @return 記録されたドキュメントの一覧
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8));
+        try {
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                String[] columns = line.split(SEPARATOR, -1);
+                if (columns.length < MIN_COLUMNS) {
+                    log.warn("Invalid dead letter journal line ignored. [" + line + "]");
+                    continue;
+                }
+                entries.add(new Entry(columns[INDEX_COLUMN], columns[TABLE_COLUMN], columns[ID_COLUMN]));
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * ジャーナルに記録されたドキュメント.
+     */
+    static class Entry {
+        private final String index;
+        private final String tableName;
+        private final String id;
+
+        Entry(String index, String tableName, String id) {
+            this.index = index;
+            this.tableName = tableName;
+            this.id = id;
+        }
+
+        String getIndex() {
+            return this.index;
+        }
+
+        String getTableName() {
+            return this.tableName;
+        }
+
+        String getId() {
+            return this.id;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+
+import io.personium.common.es.EsBulkRequest;
+import io.personium.common.es.EsIndex;
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * ESへ接続せずに、変換したドキュメントを出力先へ直列化するだけのEsRecovery.
+ * MySQLからの読み込みとドキュメントへの変換の処理性能をESクラスタに影響を与えずに計測するために使用する.
+ */
+class DryRunEsRecovery extends EsRecovery {
+
+    private final DryRunSink sink;
+
+    /**
+     * コンストラクタ.
+     * @param sink 出力先
+     */
+    DryRunEsRecovery(DryRunSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * 変換済みのドキュメントを出力先へ直列化する.
+     * 登録は行わないため、常に失敗なしとしてnullを返す.
+     * @param index 対象Index
+     * @param batch 変換済みのドキュメント
+     * @param unitPrefix ESのプレフィックス
+     * @return null
+     */
+    @Override
+    public DcBulkResponse send(String index, EsBulkBatch batch, String unitPrefix) {
+        try {
+            this.sink.write(unitPrefix + "_" + EsIndex.CATEGORY_AD, EsIndex.CELL_ROUTING_KEY_NAME,
+                    batch.getCellList());
+            for (Map.Entry<String, List<EsBulkRequest>> entry : batch.getBulkMap().entrySet()) {
+                this.sink.write(index, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+
+    /**
+     * 登録を行わないため、リフレッシュも行わない.
+     * @param index インデックス名
+     */
+    @Override
+    public void refreshIndex(String index) {
+    }
+}
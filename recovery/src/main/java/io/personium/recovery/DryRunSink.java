@@ -0,0 +1,120 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+import io.personium.common.es.EsBulkRequest;
+
+/**
+ * ドライランで変換したドキュメントを、ESのバルクAPIのリクエストボディ(NDJSON)に直列化する出力先.
+ * 出力ファイルを指定しない場合は直列化のみ行い、内容は破棄する.
+ * 複数のバルク登録スレッドから共有する.
+ */
+class DryRunSink {
+
+    /** 出力バッファのサイズ(バイト). */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * コンストラクタ.
+     * @param path 出力ファイルのパス、nullの場合は出力しない
+     * @throws IOException 出力ファイルを開けない場合
+     */
+    DryRunSink(String path) throws IOException {
+        if (path == null) {
+            this.out = null;
+        } else {
+            this.out = new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * ドキュメントをバルクAPIのリクエストボディに直列化して出力する.
+     * @param index 登録先インデックス名
+     * @param routingId ルーティングID
+     * @param requests ドキュメント
+     * @throws IOException 出力に失敗した場合
+     */
+    void write(String index, String routingId, List<EsBulkRequest> requests) throws IOException {
+        if (requests.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (EsBulkRequest request : requests) {
+            Map<String, Object> meta = new LinkedHashMap<String, Object>();
+            meta.put("_index", index);
+            meta.put("_type", request.getType());
+            meta.put("_id", request.getId());
+            if (routingId != null) {
+                meta.put("_routing", routingId);
+            }
+            Map<String, Object> action = new LinkedHashMap<String, Object>();
+            action.put("index", meta);
+            sb.append(JSONValue.toJSONString(action)).append('\n');
+            sb.append(JSONValue.toJSONString(request.getSource())).append('\n');
+        }
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        this.documents.addAndGet(requests.size());
+        this.bytes.addAndGet(body.length);
+        if (this.out != null) {
+            synchronized (this.out) {
+                this.out.write(body);
+            }
+        }
+    }
+
+    /**
+     * @return 直列化したドキュメントの件数
+     */
+    long getDocuments() {
+        return this.documents.get();
+    }
+
+    /**
+     * @return 直列化したリクエストボディのサイズ(バイト)
+     */
+    long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * 出力ファイルを閉じる.
+     * @throws IOException 出力に失敗した場合
+     */
+    void close() throws IOException {
+        if (this.out != null) {
+            synchronized (this.out) {
+                this.out.close();
+            }
+        }
+    }
+}
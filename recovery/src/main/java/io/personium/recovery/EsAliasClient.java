@@ -0,0 +1,333 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ElasticsearchのHTTP APIでエイリアス・インデックステンプレート・インデックス設定・スクロール検索を操作するクライアント.
+ * ESアダプタはエイリアスの操作、シャード数を指定したインデックスの作成、設定の取得、セグメントのマージ、
+ * スクロール検索の解放を提供しないため、再構築したインデックスへの切り替え、作成するインデックスのシャード数の指定、
+ * 一括登録前の設定の記録と一括登録後のマージ、不要Cellの検索後のスクロールの解放はHTTP APIで行う.
+ * 接続先はESのホスト一覧(ホスト名:トランスポートのポート)のホスト名とHTTPのポートから求め、
+ * 接続できないホストがあれば次のホストへ接続する.
+ */
+class EsAliasClient {
+
+    private static Logger log = LoggerFactory.getLogger(EsAliasClient.class);
+
+    /** HTTPステータス：成功. */
+    private static final int HTTP_OK = 200;
+    /** HTTPステータス：成功とみなす範囲の上限(含まない). */
+    private static final int HTTP_REDIRECT = 300;
+    /** HTTPステータス：存在しない. */
+    private static final int HTTP_NOT_FOUND = 404;
+    /** 接続のタイムアウト(ミリ秒). */
+    private static final int CONNECT_TIMEOUT = 10000;
+    /** 待ち合わせ以外の応答のタイムアウト(ミリ秒). */
+    private static final int READ_TIMEOUT = 60000;
+    /** 待ち合わせの応答のタイムアウトに加える余裕(ミリ秒). */
+    private static final int WAIT_MARGIN = 10000;
+    private static final int MILLIS_PER_SECOND = 1000;
+    private static final int READ_BUFFER_SIZE = 4096;
+    /** シャード数を指定するテンプレートの優先度. 既存のテンプレートより後に適用し、シャード数を上書きする. */
+    private static final int SHARD_TEMPLATE_ORDER = 1000;
+
+    private final List<String> baseUrls = new ArrayList<String>();
+
+    /**
+     * コンストラクタ.
+     * @param hosts ESのホスト一覧(カンマ区切りのホスト名:ポート)
+     * @param httpPort HTTPのポート
+     */
+    EsAliasClient(String hosts, int httpPort) {
+        for (String host : hosts.split(",")) {
+            String name = host.trim();
+            int colon = name.lastIndexOf(':');
+            if (colon >= 0) {
+                name = name.substring(0, colon);
+            }
+            if (!name.isEmpty()) {
+                this.baseUrls.add("http://" + name + ":" + httpPort);
+            }
+        }
+    }
+
+    /**
+     * エイリアスが指しているインデックスを取得する.
+     * @param alias エイリアス名
+     * @return インデックス名の一覧、エイリアスが存在しない場合は空
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    List<String> getAliasedIndices(String alias) throws IOException {
+        List<String> indices = new ArrayList<String>();
+        Object response = request("GET", "/_alias/" + alias, null, READ_TIMEOUT);
+        if (response instanceof JSONObject) {
+            for (Object key : ((JSONObject) response).keySet()) {
+                indices.add((String) key);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * インデックスまたはエイリアスが存在するかを判定する.
+     * @param name インデックス名またはエイリアス名
+     * @return 存在する場合はtrue
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    boolean exists(String name) throws IOException {
+        return request("HEAD", "/" + name, null, READ_TIMEOUT) != null;
+    }
+
+    /**
+     * インデックスの全シャード(レプリカを含む)が割り当てられるまで待つ.
+     * @param index インデックス名
+     * @param timeoutSeconds 待ち合わせる時間(秒)
+     * @return 割り当てが完了した場合はtrue、時間内に完了しなかった場合はfalse
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    boolean waitForGreen(String index, int timeoutSeconds) throws IOException {
+        String path = String.format("/_cluster/health/%s?wait_for_status=green&timeout=%ds", index, timeoutSeconds);
+        Object response = request("GET", path, null, timeoutSeconds * MILLIS_PER_SECOND + WAIT_MARGIN);
+        if (!(response instanceof JSONObject)) {
+            return false;
+        }
+        JSONObject health = (JSONObject) response;
+        log.info(String.format("Cluster health of [%s] : %s", index, health.get("status")));
+        return "green".equals(health.get("status")) && !Boolean.TRUE.equals(health.get("timed_out"));
+    }
+
+    /**
+     * エイリアスの向き先を1回の操作で切り替える.
+     * 切り替え前のインデックスからのエイリアスの削除と、切り替え後のインデックスへの追加は同時に反映される.
+     * @param alias エイリアス名
+     * @param index 切り替え後のインデックス名
+     * @param previous 切り替え前のインデックス名の一覧
+     * @throws IOException ESとの通信に失敗した場合、または切り替えに失敗した場合
+     */
+    @SuppressWarnings("unchecked")
+    void switchAlias(String alias, String index, List<String> previous) throws IOException {
+        JSONArray actions = new JSONArray();
+        for (String old : previous) {
+            actions.add(aliasAction("remove", old, alias));
+        }
+        actions.add(aliasAction("add", index, alias));
+        JSONObject body = new JSONObject();
+        body.put("actions", actions);
+        Object response = request("POST", "/_aliases", body.toJSONString(), READ_TIMEOUT);
+        if (!(response instanceof JSONObject) || !Boolean.TRUE.equals(((JSONObject) response).get("acknowledged"))) {
+            throw new IOException("alias update is not acknowledged. [" + alias + " -> " + index + "]");
+        }
+    }
+
+    /**
+     * 指定した名前のインデックスにのみ適用する、シャード数を指定するテンプレートを登録する.
+     * @param name テンプレート名
+     * @param index 適用するインデックス名
+     * @param shards シャード数
+     * @throws IOException ESとの通信に失敗した場合、または登録に失敗した場合
+     */
+    @SuppressWarnings("unchecked")
+    void putShardTemplate(String name, String index, int shards) throws IOException {
+        JSONObject settings = new JSONObject();
+        settings.put("index.number_of_shards", shards);
+        JSONObject body = new JSONObject();
+        body.put("template", index);
+        body.put("order", SHARD_TEMPLATE_ORDER);
+        body.put("settings", settings);
+        Object response = request("PUT", "/_template/" + name, body.toJSONString(), READ_TIMEOUT);
+        if (!(response instanceof JSONObject) || !Boolean.TRUE.equals(((JSONObject) response).get("acknowledged"))) {
+            throw new IOException("index template is not acknowledged. [" + name + "]");
+        }
+    }
+
+    /**
+     * テンプレートを削除する. 存在しない場合は何もしない.
+     * @param name テンプレート名
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    void deleteTemplate(String name) throws IOException {
+        request("DELETE", "/_template/" + name, null, READ_TIMEOUT);
+    }
+
+    /**
+     * インデックスに明示的に設定されている設定を取得する. ESのデフォルト値のままの項目は含まない.
+     * @param index インデックス名
+     * @return 設定項目名(index.refresh_interval等)と値、インデックスが存在しない場合は空
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    Map<String, String> getSettings(String index) throws IOException {
+        Map<String, String> settings = new HashMap<String, String>();
+        Object response = request("GET", "/" + index + "/_settings?flat_settings=true", null, READ_TIMEOUT);
+        if (!(response instanceof JSONObject)) {
+            return settings;
+        }
+        // エイリアスを指定した場合も、応答のキーは実体のインデックス名となる
+        for (Object indexSettings : ((JSONObject) response).values()) {
+            Object flat = ((JSONObject) indexSettings).get("settings");
+            if (flat instanceof JSONObject) {
+                for (Object entry : ((JSONObject) flat).entrySet()) {
+                    Map.Entry<?, ?> setting = (Map.Entry<?, ?>) entry;
+                    settings.put(String.valueOf(setting.getKey()), String.valueOf(setting.getValue()));
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * インデックスのセグメントを指定した数以下にマージする. マージが完了するまで待つ.
+     * @param index インデックス名
+     * @param segments マージ後のシャードあたりのセグメント数
+     * @param timeoutSeconds 完了を待つ時間(秒)
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    void optimize(String index, int segments, int timeoutSeconds) throws IOException {
+        String path = String.format("/%s/_optimize?max_num_segments=%d", index, segments);
+        request("POST", path, null, timeoutSeconds * MILLIS_PER_SECOND + WAIT_MARGIN);
+    }
+
+    /**
+     * スクロール検索のコンテキストを解放する. 解放できなかった場合も、保持期間の経過後にESが解放する.
+     * @param scrollId スクロールID
+     * @throws IOException ESとの通信に失敗した場合
+     */
+    void clearScroll(String scrollId) throws IOException {
+        request("DELETE", "/_search/scroll/" + URLEncoder.encode(scrollId, "UTF-8"), null, READ_TIMEOUT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject aliasAction(String type, String index, String alias) {
+        JSONObject target = new JSONObject();
+        target.put("index", index);
+        target.put("alias", alias);
+        JSONObject action = new JSONObject();
+        action.put(type, target);
+        return action;
+    }
+
+    /**
+     * 接続できるホストへリクエストを送信する.
+     * @param method HTTPメソッド
+     * @param path パス
+     * @param body リクエストボディ、ない場合はnull
+     * @param readTimeout 応答のタイムアウト(ミリ秒)
+     * @return 応答のJSON(ボディがない場合は空のJSONObject)、存在しない(404)場合はnull
+     * @throws IOException 全てのホストとの通信に失敗した場合、またはエラーが応答された場合
+     */
+    private Object request(String method, String path, String body, int readTimeout) throws IOException {
+        IOException failure = null;
+        for (String baseUrl : this.baseUrls) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(readTimeout);
+            byte[] content = null;
+            if (body != null) {
+                content = body.getBytes(StandardCharsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(content.length);
+                connection.setRequestProperty("Content-Type", "application/json");
+            }
+            try {
+                connection.connect();
+            } catch (IOException e) {
+                log.warn("Cannot connect to " + baseUrl + " : " + e.getMessage());
+                failure = e;
+                continue;
+            }
+            try {
+                return send(connection, content);
+            } finally {
+                connection.disconnect();
+            }
+        }
+        if (failure == null) {
+            failure = new IOException("no elasticsearch host");
+        }
+        throw failure;
+    }
+
+    private static Object send(HttpURLConnection connection, byte[] content) throws IOException {
+        if (content != null) {
+            OutputStream os = connection.getOutputStream();
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+        }
+        int status = connection.getResponseCode();
+        if (status == HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status < HTTP_OK || status >= HTTP_REDIRECT) {
+            throw new IOException(String.format("%s %s failed. [status=%d] %s", connection.getRequestMethod(),
+                    connection.getURL(), status, readAll(connection.getErrorStream())));
+        }
+        String text = readAll(connection.getInputStream());
+        if (text.isEmpty()) {
+            return new JSONObject();
+        }
+        try {
+            Object json = new JSONParser().parse(text);
+            if (json instanceof Map) {
+                return json;
+            }
+            return new JSONObject();
+        } catch (ParseException e) {
+            throw new IOException("invalid response from elasticsearch : " + text, e);
+        }
+    }
+
+    private static String readAll(InputStream is) throws IOException {
+        if (is == null) {
+            return "";
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            int length = is.read(chunk);
+            while (length >= 0) {
+                buffer.write(chunk, 0, length);
+                length = is.read(chunk);
+            }
+        } finally {
+            is.close();
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.personium.common.es.EsBulkRequest;
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * 1ページ分のレコードから変換した、Bulk登録対象のドキュメント.
+ */
+public class EsBulkBatch {
+
+    /** u0_adへ登録するCellのリスト. */
+    private final List<EsBulkRequest> cellList = new ArrayList<EsBulkRequest>();
+    /** Cellの変換元インデックス名（cellListと同じ順序）、変換元を区別しない場合はnull. */
+    private List<String> cellOrigins;
+    /** 対象Indexへ登録するドキュメント（ルーティングID毎のリスト）. */
+    private final Map<String, List<EsBulkRequest>> bulkMap = new HashMap<String, List<EsBulkRequest>>();
+    /** 変換したレコード件数. */
+    private int count = 0;
+    /** 登録するドキュメントの件数. */
+    private int documentCount = 0;
+    /** 登録するドキュメントの推定サイズ(バイト). */
+    private long estimatedBytes = 0;
+    /** u0_adへのCell登録結果. */
+    private DcBulkResponse cellResponse;
+
+    /**
+     * u0_adへ登録するCellのリストを取得する.
+     * @return Cellのリスト
+     */
+    public List<EsBulkRequest> getCellList() {
+        return cellList;
+    }
+
+    /**
+     * Cellの変換元インデックス名を取得する.
+     * @param i cellListでの位置
+     * @return 変換元インデックス名、変換元を記録していない場合はnull
+     */
+    String getCellOrigin(int i) {
+        if (this.cellOrigins == null) {
+            return null;
+        }
+        return this.cellOrigins.get(i);
+    }
+
+    /**
+     * 対象Indexへ登録するドキュメントを取得する.
+     * @return ルーティングID毎のドキュメントのリスト
+     */
+    public Map<String, List<EsBulkRequest>> getBulkMap() {
+        return bulkMap;
+    }
+
+    /**
+     * u0_adへのCell登録結果を取得する.
+     * @return Cell登録結果、Cellを登録していない場合はnull
+     */
+    public DcBulkResponse getCellResponse() {
+        return cellResponse;
+    }
+
+    /**
+     * @param cellResponse u0_adへのCell登録結果
+     */
+    void setCellResponse(DcBulkResponse cellResponse) {
+        this.cellResponse = cellResponse;
+    }
+
+    /**
+     * u0_adへ登録するCellを追加する.
+     * @param cell Cell
+     * @param size 推定サイズ(バイト)
+     */
+    void addCell(EsBulkRequest cell, long size) {
+        this.cellList.add(cell);
+        this.documentCount++;
+        this.estimatedBytes += size;
+    }
+
+    /**
+     * 変換元インデックス名とともにu0_adへ登録するCellを追加する.
+     * 複数のインデックスのCellをまとめて登録する場合に、失敗したCellを変換元で記録するために使用する.
+     * @param cell Cell
+     * @param size 推定サイズ(バイト)
+     * @param origin 変換元インデックス名
+     */
+    void addCell(EsBulkRequest cell, long size, String origin) {
+        if (this.cellOrigins == null) {
+            this.cellOrigins = new ArrayList<String>();
+            for (int i = 0; i < this.cellList.size(); i++) {
+                this.cellOrigins.add(null);
+            }
+        }
+        this.cellOrigins.add(origin);
+        addCell(cell, size);
+    }
+
+    /**
+     * 他のバルク登録の単位のCellを、変換元インデックス名とともに全て追加する.
+     * 推定サイズ、変換したレコード件数も合算する.
+     * @param cells Cellのみを含むバルク登録の単位
+     * @param origin 変換元インデックス名
+     */
+    void addCells(EsBulkBatch cells, String origin) {
+        for (EsBulkRequest cell : cells.cellList) {
+            addCell(cell, 0, origin);
+        }
+        this.estimatedBytes += cells.estimatedBytes;
+        this.count += cells.count;
+    }
+
+    /**
+     * 対象Indexへ登録するドキュメントを追加する.
+     * @param routingId ルーティングID
+     * @param request ドキュメント
+     * @param size 推定サイズ(バイト)
+     */
+    void add(String routingId, EsBulkRequest request, long size) {
+        List<EsBulkRequest> list = this.bulkMap.get(routingId);
+        if (list == null) {
+            list = new ArrayList<EsBulkRequest>();
+            this.bulkMap.put(routingId, list);
+        }
+        list.add(request);
+        this.documentCount++;
+        this.estimatedBytes += size;
+    }
+
+    /**
+     * 登録するドキュメントの件数を取得する.
+     * @return ドキュメントの件数
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * 登録するドキュメントの推定サイズを取得する.
+     * @return 推定サイズ(バイト)
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * 変換したレコード件数を取得する.
+     * @return 変換したレコード件数
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 変換したレコード件数を加算する.
+     */
+    void incrementCount() {
+        this.count++;
+    }
+}
@@ -19,9 +19,12 @@ package io.personium.recovery;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -36,6 +39,7 @@ import io.personium.common.es.impl.EsTypeImpl;
 import io.personium.common.es.impl.InternalEsClient;
 import io.personium.common.es.response.DcBulkResponse;
 import io.personium.common.es.response.DcRefreshResponse;
+import io.personium.common.es.response.DcSearchHit;
 import io.personium.common.es.response.DcSearchResponse;
 import io.personium.core.model.impl.es.odata.EsQueryHandlerHelper;
 
@@ -49,11 +53,23 @@ public class EsRecovery {
     /** ESクライアント. */
     InternalEsClient client;
 
-    JSONParser parser = new JSONParser();
+    /** JSONパーサ（スレッドセーフではないため、変換を行うスレッド毎に保持する）. */
+    private final ThreadLocal<JSONParser> parser = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
+
+    /** JSON文字列カラムを軽量パーサで変換するかどうか. */
+    private boolean fastJsonParser = true;
 
     /** バルク登録した件数. */
     private int restoredCount = 0;
 
+    /** 登録先のインデックス名をデータベース名とは別に指定する場合の、データベース名と登録先の対応. */
+    private Map<String, String> indexTargets = Collections.emptyMap();
+
     /**
      * ES接続等の初期処理を行う.
      * @param hosts ESのホスト名
@@ -63,6 +79,49 @@ public class EsRecovery {
         this.client = InternalEsClient.getInstance(cluster, hosts);
     }
 
+    /**
+     * ESクライアントの接続を閉じる.
+     * 閉じた後は使用できないため、このEsRecoveryを使用する処理が全て完了してから呼び出すこと.
+     */
+    public void close() {
+        if (this.client != null) {
+            this.client.closeConnection();
+            this.client = null;
+        }
+    }
+
+    /**
+     * JSON文字列カラムを軽量パーサで変換するかどうかを設定する.
+     * falseの場合は全てjson-simpleで変換する.
+     * @param fastJsonParser 軽量パーサで変換する場合はtrue
+     */
+    public void setFastJsonParser(boolean fastJsonParser) {
+        this.fastJsonParser = fastJsonParser;
+    }
+
+    /**
+     * 登録先のインデックス名をデータベース名とは別に指定する.
+     * インデックスを再構築する場合に、エイリアスで公開中のインデックスとは別のインデックスへ登録するために使用する.
+     * 登録中に対応を追加・削除するため、スレッドセーフなMapを指定すること.
+     * @param indexTargets データベース名と登録先のインデックス名の対応
+     */
+    public void setIndexTargets(Map<String, String> indexTargets) {
+        this.indexTargets = indexTargets;
+    }
+
+    /**
+     * データベース名に対応する登録先のインデックス名を求める.
+     * @param index データベース名
+     * @return 登録先のインデックス名、別に指定されていない場合はデータベース名
+     */
+    String resolveIndex(String index) {
+        String target = this.indexTargets.get(index);
+        if (target == null) {
+            return index;
+        }
+        return target;
+    }
+
     /**
      * @return the client
      */
@@ -70,6 +129,9 @@ public class EsRecovery {
         return client;
     }
 
+    /** 1ドキュメントあたりの固定部分（アクション行、ID、日時等）の推定サイズ(バイト). */
+    static final int DOCUMENT_OVERHEAD_BYTES = 256;
+
     /**
      * AbstractEsBulkRequest.
      */
@@ -78,6 +140,8 @@ public class EsRecovery {
         HashMap<String, Object> map;
         String id = "";
         String cellId = "";
+        /** バルク登録時の推定サイズ. JSON文字列のカラムの長さに固定部分を加えたもの. */
+        long estimatedSize = DOCUMENT_OVERHEAD_BYTES;
 
         public AbstractEsBulkRequest(String t) {
         }
@@ -102,13 +166,35 @@ public class EsRecovery {
             return this.map;
         }
 
+        /**
+         * MySQLのレコードからドキュメントを設定する.
+         * @param rs 現在行を指すResultSet
+         */
+        public abstract void setSource(ResultSet rs);
+
+        /**
+         * バルク登録時の推定サイズを取得する.
+         * @return 推定サイズ(バイト)
+         */
+        public long getEstimatedSize() {
+            return estimatedSize;
+        }
+
         @SuppressWarnings("unchecked")
         protected HashMap<String, Object> jsonParse(String str) {
             try {
                 if (null == str) {
                     return null;
                 } else {
-                    return (HashMap<String, Object>) parser.parse(str);
+                    this.estimatedSize += str.length();
+                    if (fastJsonParser) {
+                        HashMap<String, Object> parsed = JsonColumnParser.parseObject(str);
+                        if (parsed != null) {
+                            return parsed;
+                        }
+                    }
+                    // 軽量パーサで解析できない形式の場合はjson-simpleで解析する
+                    return (HashMap<String, Object>) parser.get().parse(str);
                 }
             } catch (ParseException e) {
                 log.warn("ERROR DATA:[" + str + "]");
@@ -239,19 +325,11 @@ public class EsRecovery {
                 map.put("h", jsonParse(rs.getString("hidden_properties")));
                 if (this.type.equals("UserData")) {
                     String str = rs.getString("links");
+                    this.estimatedSize += str.length();
                     // MySQLには["~","~",...] という形式で格納されているため、
                     // ブラケットとダブルクォーテーションを取り除く
-                    str = trimBracket(str);
-
-                    String[] array = str.split(",");
                     List<String> links = new ArrayList<String>();
-                    for (String link : array) {
-                        link = link.trim();
-                        link = trimDoubleQuotation(link);
-                        if (!link.isEmpty()) {
-                            links.add(link);
-                        }
-                    }
+                    LinksColumnParser.parse(str, links);
                     map.put("l", links);
                 } else {
                     map.put("l", jsonParse(rs.getString("links")));
@@ -260,17 +338,6 @@ public class EsRecovery {
                 e.printStackTrace();
             }
         }
-
-        protected String trimBracket(String str) {
-            str = str.replace("[", "");
-            str = str.replace("]", "");
-            return str;
-        }
-
-        protected String trimDoubleQuotation(String str) {
-            str = str.replace("\"", "");
-            return str;
-        }
     }
 
     /**
@@ -282,76 +349,202 @@ public class EsRecovery {
      * @return Bulk登録のレスポンス
      */
     public DcBulkResponse bulk(String index, String tableType, ResultSet data, String unitPrefix) {
-        this.restoredCount = 0;
-        ArrayList<EsBulkRequest> cellList = new ArrayList<EsBulkRequest>();
-        Map<String, List<EsBulkRequest>> bulkMap = new HashMap<String, List<EsBulkRequest>>();
-        DcBulkResponse bulkRequest = null;
+        EsBulkBatch batch = map(index, tableType, data, unitPrefix);
+        this.restoredCount = batch.getCount();
+        return send(index, batch, unitPrefix);
+    }
+
+    /**
+     * Bulk登録するデータをESのドキュメントに変換する.
+     * @param index 対象Index
+     * @param tableType 対象Type
+     * @param data 登録するデータ(ResultSetの配列)
+     * @param unitPrefix ESのプレフィックス
+     * @return 変換したドキュメント
+     */
+    public EsBulkBatch map(String index, String tableType, ResultSet data, String unitPrefix) {
+        return map(index, tableType, data, unitPrefix, null).get(0);
+    }
+
+    /**
+     * Bulk登録するデータをESのドキュメントに変換し、バルク登録の単位に分割する.
+     * @param index 対象Index
+     * @param tableType 対象Type
+     * @param data 登録するデータ(ResultSetの配列)
+     * @param unitPrefix ESのプレフィックス
+     * @param sizer バルク登録の単位を決めるコントローラ、nullの場合は分割しない
+     * @return 変換したドキュメント（バルク登録の単位毎）
+     */
+    public List<EsBulkBatch> map(String index, String tableType, ResultSet data, String unitPrefix,
+            BulkSizeController sizer) {
+        return map(index, tableType, data, unitPrefix, sizer, null);
+    }
+
+    /**
+     * Bulk登録するデータをESのドキュメントに変換し、バルク登録の単位に分割する.
+     * routingを指定した場合は、対象Indexへ登録するドキュメントを登録先シャード毎にまとめてから、シャード番号順に分割する.
+     * 1回のバルク登録で書き込むシャードの数が少なくなるよう、dataはセルID順に並んでいることが望ましい.
+     * @param index 対象Index
+     * @param tableType 対象Type
+     * @param data 登録するデータ(ResultSetの配列)
+     * @param unitPrefix ESのプレフィックス
+     * @param sizer バルク登録の単位を決めるコントローラ、nullの場合は分割しない
+     * @param routing 登録先シャードの計算に使用するルーティング、nullの場合はシャード毎にまとめない
+     * @return 変換したドキュメント（バルク登録の単位毎）
+     */
+    List<EsBulkBatch> map(String index, String tableType, ResultSet data, String unitPrefix,
+            BulkSizeController sizer, ShardRouting routing) {
+        List<EsBulkBatch> batches = new ArrayList<EsBulkBatch>();
+        EsBulkBatch batch = new EsBulkBatch();
+        batches.add(batch);
+        // シャード番号毎、ルーティングID毎のドキュメント
+        Map<Integer, Map<String, List<AbstractEsBulkRequest>>> shards = null;
+        if (routing != null) {
+            shards = new TreeMap<Integer, Map<String, List<AbstractEsBulkRequest>>>();
+        }
         try {
             while (data.next()) {
+                if (sizer != null && sizer.isFull(batch)) {
+                    batch = new EsBulkBatch();
+                    batches.add(batch);
+                }
                 if ("cell".equals(tableType.toLowerCase())) {
                     if (!index.equals(unitPrefix + "_" + EsIndex.CATEGORY_AD)) {
                         EsBulkCell bulk = new EsBulkCell(tableType);
                         bulk.setSource(data);
-                        cellList.add(bulk);
+                        batch = batchFor(batches, batch, sizer, bulk.getEstimatedSize());
+                        batch.addCell(bulk, bulk.getEstimatedSize());
                     }
-                } else if ("link".equals(tableType.toLowerCase())) {
-                    EsBulkLink bulk = new EsBulkLink(tableType);
+                    batch.incrementCount();
+                    continue;
+                }
+                AbstractEsBulkRequest bulk;
+                String routingId;
+                if ("link".equals(tableType.toLowerCase())) {
+                    bulk = new EsBulkLink(tableType);
                     bulk.setSource(data);
-
-                    // セルID毎にリストを作成する
-                    String routingId = bulk.getCellId();
-                    List<EsBulkRequest> list;
-                    if (bulkMap.containsKey(routingId)) {
-                        list = bulkMap.get(routingId);
-                    } else {
-                        list = new ArrayList<EsBulkRequest>();
-                        bulkMap.put(routingId, list);
-                    }
-                    list.add(bulk);
+                    routingId = bulk.getCellId();
                 } else if ("dav_node".equals(tableType.toLowerCase())) {
-                    EsBulkDav bulk = new EsBulkDav(tableType);
+                    bulk = new EsBulkDav(tableType);
                     bulk.setSource(data);
-
-                    // セルID毎にリストを作成する
-                    String routingId = bulk.getCellId();
-                    List<EsBulkRequest> list;
-                    if (bulkMap.containsKey(routingId)) {
-                        list = bulkMap.get(routingId);
-                    } else {
-                        list = new ArrayList<EsBulkRequest>();
-                        bulkMap.put(routingId, list);
-                    }
-                    list.add(bulk);
+                    routingId = bulk.getCellId();
                 } else {
-                    EsBulkEntity bulk = new EsBulkEntity(tableType);
+                    bulk = new EsBulkEntity(tableType);
                     bulk.setSource(data);
-
-                    // セルID毎にリストを作成する
-                    String routingId = bulk.getCellId();
+                    routingId = bulk.getCellId();
                     if ("domain".equals(bulk.getType().toLowerCase())) {
                         routingId = EsIndex.CELL_ROUTING_KEY_NAME;
                     }
+                }
+                if (shards == null) {
+                    // セルID毎にリストを作成する
+                    batch = batchFor(batches, batch, sizer, bulk.getEstimatedSize());
+                    batch.add(routingId, bulk, bulk.getEstimatedSize());
+                    batch.incrementCount();
+                } else {
+                    addToShard(shards, routing, routingId, bulk);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        if (shards != null) {
+            packShards(batches, shards, sizer);
+        }
+        return batches;
+    }
 
-                    List<EsBulkRequest> list;
-                    if (bulkMap.containsKey(routingId)) {
-                        list = bulkMap.get(routingId);
-                    } else {
-                        list = new ArrayList<EsBulkRequest>();
-                        bulkMap.put(routingId, list);
+    /**
+     * ドキュメントを追加するバルク登録の単位を求める.
+     * 単独で目標サイズを超えるドキュメントは、他のドキュメントと同じ単位に含めずに単独で登録する.
+     * 追加後は単位の目標サイズに達するため、次のドキュメントは新しい単位に追加される.
+     * @param batches バルク登録の単位のリスト
+     * @param batch 追加中の単位
+     * @param sizer バルク登録の単位を決めるコントローラ、nullの場合は分割しない
+     * @param size ドキュメントの推定サイズ(バイト)
+     * @return ドキュメントを追加する単位
+     */
+    private static EsBulkBatch batchFor(List<EsBulkBatch> batches, EsBulkBatch batch, BulkSizeController sizer,
+            long size) {
+        if (sizer == null || batch.getDocumentCount() == 0 || !sizer.isOversized(size)) {
+            return batch;
+        }
+        EsBulkBatch alone = new EsBulkBatch();
+        batches.add(alone);
+        return alone;
+    }
+
+    /**
+     * ドキュメントを登録先シャード毎のリストへ追加する.
+     * @param shards シャード番号毎、ルーティングID毎のドキュメント
+     * @param routing ルーティング
+     * @param routingId ルーティングID
+     * @param bulk ドキュメント
+     */
+    private void addToShard(Map<Integer, Map<String, List<AbstractEsBulkRequest>>> shards, ShardRouting routing,
+            String routingId, AbstractEsBulkRequest bulk) {
+        // ルーティングIDがない場合、ESはドキュメントIDでシャードを決める
+        int shard;
+        if (routingId != null) {
+            shard = routing.shardOf(routingId);
+        } else {
+            shard = routing.shardOf(bulk.getId());
+        }
+        Map<String, List<AbstractEsBulkRequest>> routings = shards.get(shard);
+        if (routings == null) {
+            routings = new LinkedHashMap<String, List<AbstractEsBulkRequest>>();
+            shards.put(shard, routings);
+        }
+        List<AbstractEsBulkRequest> list = routings.get(routingId);
+        if (list == null) {
+            list = new ArrayList<AbstractEsBulkRequest>();
+            routings.put(routingId, list);
+        }
+        list.add(bulk);
+    }
+
+    /**
+     * シャード毎にまとめたドキュメントを、シャード番号順にバルク登録の単位へ詰める.
+     * @param batches バルク登録の単位のリスト（最後の要素から詰める）
+     * @param shards シャード番号毎、ルーティングID毎のドキュメント
+     * @param sizer バルク登録の単位を決めるコントローラ、nullの場合は分割しない
+     */
+    private void packShards(List<EsBulkBatch> batches, Map<Integer, Map<String, List<AbstractEsBulkRequest>>> shards,
+            BulkSizeController sizer) {
+        EsBulkBatch batch = batches.get(batches.size() - 1);
+        for (Map<String, List<AbstractEsBulkRequest>> routings : shards.values()) {
+            for (Map.Entry<String, List<AbstractEsBulkRequest>> entry : routings.entrySet()) {
+                for (AbstractEsBulkRequest bulk : entry.getValue()) {
+                    if (sizer != null && sizer.isFull(batch)) {
+                        batch = new EsBulkBatch();
+                        batches.add(batch);
                     }
-                    list.add(bulk);
+                    batch = batchFor(batches, batch, sizer, bulk.getEstimatedSize());
+                    batch.add(entry.getKey(), bulk, bulk.getEstimatedSize());
+                    batch.incrementCount();
                 }
-                this.restoredCount++;
-            }
-            if (cellList.size() > 0) {
-                client.bulkRequest(unitPrefix + "_ad", EsIndex.CELL_ROUTING_KEY_NAME, cellList, false);
             }
+        }
+    }
 
-            if (bulkMap.size() > 0) {
-                bulkRequest = client.asyncBulkCreate(index, bulkMap);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * 変換済みのドキュメントをBulk登録する.
+     * Cellはu0_adへ同期で登録し、それ以外は対象Indexへ非同期で登録する.
+     * Cellの登録結果はbatchに設定する.
+     * @param index 対象Index
+     * @param batch 変換済みのドキュメント
+     * @param unitPrefix ESのプレフィックス
+     * @return Bulk登録のレスポンス、対象Indexへの登録データがない場合はnull
+     */
+    public DcBulkResponse send(String index, EsBulkBatch batch, String unitPrefix) {
+        DcBulkResponse bulkRequest = null;
+        if (batch.getCellList().size() > 0) {
+            batch.setCellResponse(client.bulkRequest(unitPrefix + "_ad", EsIndex.CELL_ROUTING_KEY_NAME,
+                    batch.getCellList(), false));
+        }
+
+        if (batch.getBulkMap().size() > 0) {
+            bulkRequest = client.asyncBulkCreate(resolveIndex(index), batch.getBulkMap());
         }
         return bulkRequest;
     }
@@ -370,66 +563,85 @@ public class EsRecovery {
      * @param index インデックス名
      */
     public void refreshIndex(String index) {
-        DcRefreshResponse res = client.refresh(index);
+        DcRefreshResponse res = client.refresh(resolveIndex(index));
         log.info("refresh success shards = " + res.getSuccessfulShards());
         log.info("refresh failed  shards = " + res.getFailedShards());
     }
 
     /**
-     * Cellの一覧取得.
-     * @param index 取得対象インデックス
-     * @param typeName 取得対象タイプ名
-     * @param unituseName 取得対象ユニットユーザ名
-     * @param size 取得件数
-     * @return 検索結果
+     * Cellをまとめて削除する.
+     * @param adIndex Cellを登録しているインデックス名(u0_ad)
+     * @param cellIds 削除するCellのID
+     * @return Bulk削除のレスポンス
      */
-    public DcSearchResponse listCell(EsIndex index, String typeName, String unituseName, long size) {
-        Map<String, Object> query = buildScrollSearchQueryforCell(unituseName, size);
-        EsType type = new EsTypeImpl(index.getName(), typeName, null, 0, 0, client);
-        DcSearchResponse scrollResponse = type.search(query);
-        return scrollResponse;
+    public DcBulkResponse deleteCells(String adIndex, List<String> cellIds) {
+        List<EsBulkRequest> requests = new ArrayList<EsBulkRequest>();
+        for (String cellId : cellIds) {
+            requests.add(new EsBulkDeleteCell(cellId));
+        }
+        return client.bulkRequest(adIndex, EsIndex.CELL_ROUTING_KEY_NAME, requests, false);
+    }
+
+    /**
+     * Cellの削除リクエスト.
+     */
+    static class EsBulkDeleteCell implements EsBulkRequest {
+        private final String id;
+
+        EsBulkDeleteCell(String id) {
+            this.id = id;
+        }
+
+        public BULK_REQUEST_TYPE getRequestType() {
+            return BULK_REQUEST_TYPE.DELETE;
+        }
+
+        public String getType() {
+            return "Cell";
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Map<String, Object> getSource() {
+            return null;
+        }
     }
 
     /**
-     * Cell一覧取得用クエリの作成.
-     * @param unitUserName ユニットユーザ名
-     * @param size 取得件数
-     * @return 生成したクエリ
+     * インデックス内のドキュメントの最新の更新日時(u)を取得する.
+     * @param index 対象インデックス
+     * @return 最新の更新日時（エポックミリ秒）、ドキュメントが存在しない場合はnull
      */
-    private Map<String, Object> buildScrollSearchQueryforCell(String unitUserName, long size) {
+    public Long findLatestUpdated(EsIndex index) {
         Map<String, Object> query = new HashMap<String, Object>();
-        query.put("size", size);
+        query.put("size", 1);
 
         List<String> fields = new ArrayList<String>();
         fields.add("u");
-        fields.add("h");
         // ESのバージョンに合わせたクエリの作成
         EsQueryHandlerHelper.composeSourceFilter(query, fields);
 
-        Map<String, Object> filter = new HashMap<String, Object>();
-        if (unitUserName.equals("anon")) {
-            Map<String, Object> missing = new HashMap<String, Object>();
-            missing.put("field", "h.Owner");
-            filter.put("missing", missing);
-        } else {
-            Map<String, Object> term = new HashMap<String, Object>();
-            Map<String, Object> wildcardQuery = new HashMap<String, Object>();
-            Map<String, Object> wildcard = new HashMap<String, Object>();
-            Map<String, Object> queryOwner = new HashMap<String, Object>();
-            Map<String, Object> termOwner = new HashMap<String, Object>();
-            wildcardQuery.put("query", wildcard);
-            wildcard.put("wildcard", queryOwner);
-            queryOwner.put("h.Owner.untouched", "*#" + unitUserName);
-            List<Map<String, Object>> or = new ArrayList<Map<String, Object>>();
-            or.add(wildcardQuery);
-            term.put("term", termOwner);
-            termOwner.put("h.Owner.untouched", unitUserName);
-            or.add(term);
-            filter.put("or", or);
-        }
-        query.put("filter", filter);
-
-        return query;
+        Map<String, Object> order = new HashMap<String, Object>();
+        order.put("order", "desc");
+        Map<String, Object> sortField = new HashMap<String, Object>();
+        sortField.put("u", order);
+        List<Map<String, Object>> sort = new ArrayList<Map<String, Object>>();
+        sort.add(sortField);
+        query.put("sort", sort);
+
+        DcSearchResponse response = index.search(null, query);
+        if (response == null) {
+            return null;
+        }
+        for (DcSearchHit hit : response.getHits().getHits()) {
+            Object updated = hit.getSource().get("u");
+            if (updated instanceof Number) {
+                return ((Number) updated).longValue();
+            }
+        }
+        return null;
     }
 
     /**
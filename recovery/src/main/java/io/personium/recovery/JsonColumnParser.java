@@ -0,0 +1,310 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * MySQLのJSON文字列カラムをESへ登録するMapへ変換する軽量パーサ.
+ * <p>
+ * カラムの値はcoreが書き込んだ正しいJSONであるため、字句解析器を介さずに1回の走査で検証しながらMapを組み立てる.
+ * 戻り値の型はjson-simpleと合わせ、オブジェクトはHashMap、配列はArrayList、整数はLong、小数はDoubleとする.
+ * 想定外の形式の場合はnullを返却するため、呼び出し元でjson-simpleによる解析に切り替えること.
+ */
+final class JsonColumnParser {
+
+    /** 16進数の基数. */
+    private static final int HEX_RADIX = 16;
+    /** \\uXXXX形式の16進数の桁数. */
+    private static final int UNICODE_DIGITS = 4;
+
+    private final String text;
+    private int pos;
+
+    private JsonColumnParser(String text) {
+        this.text = text;
+        this.pos = 0;
+    }
+
+    /**
+     * JSONオブジェクトの文字列をMapへ変換する.
+     * @param text JSON文字列
+     * @return 変換したMap、JSONオブジェクトとして解析できない場合はnull
+     */
+    static HashMap<String, Object> parseObject(String text) {
+        JsonColumnParser parser = new JsonColumnParser(text);
+        try {
+            parser.skipWhitespace();
+            if (!parser.consume('{')) {
+                return null;
+            }
+            HashMap<String, Object> result = parser.readObject();
+            parser.skipWhitespace();
+            if (parser.pos != text.length()) {
+                return null;
+            }
+            return result;
+        } catch (InvalidJsonException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private HashMap<String, Object> readObject() {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        skipWhitespace();
+        if (consume('}')) {
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (!consume('"')) {
+                throw new InvalidJsonException();
+            }
+            String key = readString();
+            skipWhitespace();
+            if (!consume(':')) {
+                throw new InvalidJsonException();
+            }
+            map.put(key, readValue());
+            skipWhitespace();
+            if (consume('}')) {
+                return map;
+            }
+            if (!consume(',')) {
+                throw new InvalidJsonException();
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> list = new ArrayList<Object>();
+        skipWhitespace();
+        if (consume(']')) {
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipWhitespace();
+            if (consume(']')) {
+                return list;
+            }
+            if (!consume(',')) {
+                throw new InvalidJsonException();
+            }
+        }
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (this.pos >= this.text.length()) {
+            throw new InvalidJsonException();
+        }
+        char c = this.text.charAt(this.pos++);
+        switch (c) {
+        case '{':
+            return readObject();
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            expect("rue");
+            return Boolean.TRUE;
+        case 'f':
+            expect("alse");
+            return Boolean.FALSE;
+        case 'n':
+            expect("ull");
+            return null;
+        default:
+            this.pos--;
+            return readNumber();
+        }
+    }
+
+    /**
+     * 開始の"の直後から文字列を読み込む.
+     * @return 文字列
+     */
+    private String readString() {
+        int start = this.pos;
+        int end = this.text.indexOf('"', start);
+        if (end < 0) {
+            throw new InvalidJsonException();
+        }
+        int escape = this.text.indexOf('\\', start);
+        if (escape < 0 || escape > end) {
+            // エスケープを含まない場合は部分文字列をそのまま使用する
+            this.pos = end + 1;
+            return this.text.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start + UNICODE_DIGITS);
+        sb.append(this.text, start, escape);
+        this.pos = escape;
+        while (true) {
+            if (this.pos >= this.text.length()) {
+                throw new InvalidJsonException();
+            }
+            char c = this.text.charAt(this.pos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (this.pos >= this.text.length()) {
+                throw new InvalidJsonException();
+            }
+            char e = this.text.charAt(this.pos++);
+            switch (e) {
+            case '"':
+            case '\\':
+            case '/':
+                sb.append(e);
+                break;
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                sb.append(readUnicode());
+                break;
+            default:
+                throw new InvalidJsonException();
+            }
+        }
+    }
+
+    /**
+     * 数値を読み込む. JSONの数値の書式(-?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?)に従わない場合は不正とする.
+     * @return 整数はLong、小数部または指数部を含む場合はDouble
+     */
+    private Object readNumber() {
+        int start = this.pos;
+        consume('-');
+        if (!consume('0')) {
+            requireDigits();
+        }
+        boolean decimal = false;
+        if (consume('.')) {
+            decimal = true;
+            requireDigits();
+        }
+        if (consume('e') || consume('E')) {
+            decimal = true;
+            if (!consume('+')) {
+                consume('-');
+            }
+            requireDigits();
+        }
+        String number = this.text.substring(start, this.pos);
+        if (decimal) {
+            return Double.valueOf(number);
+        }
+        // Longの範囲を超える整数はjson-simpleでも変換できないため、NumberFormatExceptionとして不正とする
+        return Long.valueOf(number);
+    }
+
+    /**
+     * 1桁以上の数字を読み込む.
+     */
+    private void requireDigits() {
+        int start = this.pos;
+        while (this.pos < this.text.length() && isDigit(this.text.charAt(this.pos))) {
+            this.pos++;
+        }
+        if (start == this.pos) {
+            throw new InvalidJsonException();
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * \\uの直後から4桁の16進数を読み込む.
+     * @return 文字
+     */
+    private char readUnicode() {
+        if (this.pos + UNICODE_DIGITS > this.text.length()) {
+            throw new InvalidJsonException();
+        }
+        int code = 0;
+        for (int i = 0; i < UNICODE_DIGITS; i++) {
+            char c = this.text.charAt(this.pos++);
+            // Character.digitは全角数字等も受け付けるため、ASCIIの16進数字のみを判定する
+            if (!(isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                throw new InvalidJsonException();
+            }
+            code = code * HEX_RADIX + Character.digit(c, HEX_RADIX);
+        }
+        return (char) code;
+    }
+
+    private void expect(String rest) {
+        if (!this.text.startsWith(rest, this.pos)) {
+            throw new InvalidJsonException();
+        }
+        this.pos += rest.length();
+    }
+
+    private boolean consume(char c) {
+        if (this.pos < this.text.length() && this.text.charAt(this.pos) == c) {
+            this.pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.text.length()) {
+            char c = this.text.charAt(this.pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            this.pos++;
+        }
+    }
+
+    /**
+     * 想定外の形式のJSONであることを表す例外.
+     * 解析を打ち切るためだけに使用するため、スタックトレースは取得しない.
+     */
+    @SuppressWarnings("serial")
+    private static final class InvalidJsonException extends RuntimeException {
+        InvalidJsonException() {
+            super(null, null, false, false);
+        }
+    }
+}
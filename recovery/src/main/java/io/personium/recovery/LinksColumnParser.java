@@ -0,0 +1,111 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.List;
+
+/**
+ * UserDataのlinksカラムからリンク先IDを取り出すパーサ.
+ * <p>
+ * linksカラムはMySQLに["~","~",...] という形式で格納されている.
+ * 以前はブラケットの除去、カンマでの分割、前後の空白の除去、ダブルクォーテーションの除去の順に文字列を加工していたが、
+ * 行ごとに多数の中間文字列が生成されるため、元の文字列を添字で1回走査して、リンク先IDのみを生成する.
+ * 不正な形式の場合も以前の加工と同じ結果となるよう、以下の規則で取り出す.
+ * <ul>
+ * <li>ブラケット([ ])は位置に関わらず無視する.</li>
+ * <li>カンマで区切った各要素の前後の空白文字（' '以下の文字）を除去した後、ダブルクォーテーションを全て除去する.</li>
+ * <li>結果が空文字となる要素は無視する.</li>
+ * </ul>
+ */
+final class LinksColumnParser {
+
+    private LinksColumnParser() {
+    }
+
+    /**
+     * linksカラムからリンク先IDを取り出す.
+     * @param text linksカラムの値
+     * @param links 取り出したリンク先IDの格納先
+     */
+    static void parse(String text, List<String> links) {
+        int length = text.length();
+        int segmentStart = 0;
+        while (segmentStart <= length) {
+            int segmentEnd = text.indexOf(',', segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = length;
+            }
+            addLink(text, segmentStart, segmentEnd, links);
+            segmentStart = segmentEnd + 1;
+        }
+    }
+
+    /**
+     * カンマで区切った1要素からリンク先IDを取り出す.
+     * @param text linksカラムの値
+     * @param start 要素の開始位置
+     * @param end 要素の終了位置（この位置の文字は含まない）
+     * @param links 取り出したリンク先IDの格納先
+     */
+    private static void addLink(String text, int start, int end, List<String> links) {
+        // ブラケットを無視した上で、前後の空白文字を除去する
+        int first = start;
+        while (first < end && isIgnorableAtEdge(text.charAt(first))) {
+            first++;
+        }
+        int last = end;
+        while (last > first && isIgnorableAtEdge(text.charAt(last - 1))) {
+            last--;
+        }
+
+        // 除去する文字を含まない場合は部分文字列をそのまま使用する
+        boolean plain = true;
+        int count = 0;
+        for (int i = first; i < last; i++) {
+            char c = text.charAt(i);
+            if (isRemoved(c)) {
+                plain = false;
+            } else {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (plain) {
+            links.add(text.substring(first, last));
+            return;
+        }
+        char[] chars = new char[count];
+        int pos = 0;
+        for (int i = first; i < last; i++) {
+            char c = text.charAt(i);
+            if (!isRemoved(c)) {
+                chars[pos++] = c;
+            }
+        }
+        links.add(new String(chars));
+    }
+
+    private static boolean isIgnorableAtEdge(char c) {
+        return c <= ' ' || c == '[' || c == ']';
+    }
+
+    private static boolean isRemoved(char c) {
+        return c == '"' || c == '[' || c == ']';
+    }
+}
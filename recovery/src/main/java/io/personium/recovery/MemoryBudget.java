@@ -0,0 +1,112 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リカバリ中に保持するページ・ドキュメントのヒープ使用量の予算.
+ * <p>
+ * 読み込んだページの推定保持サイズを、そのページのバルク登録結果の確認が終わるまで予約する。
+ * 予算を超える場合は、他のページが解放されるまで読み込みを待機させる.
+ * 1ページで予算を超える場合でも、他に予約がなければ単独で処理できるよう予約を許可する.
+ * 全てのパイプラインで共有するため、スレッドセーフとする.
+ */
+class MemoryBudget {
+
+    private static Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+
+    /**
+     * 1文字あたりの推定保持サイズ(バイト).
+     * 読み込んだ文字列(UTF-16)と、変換後のドキュメント(JSONを解析したMap等)の両方を保持する期間があるため、その合計とする.
+     */
+    static final int RETAINED_BYTES_PER_CHAR = 8;
+    /** 1レコードあたりの固定部分の推定保持サイズ(バイト). */
+    static final int RETAINED_BYTES_PER_ROW = 1024;
+    /** 1ページに割り当てる予算の割合の分母. 読み込み・変換・バルク登録の各段階で並行してページを保持できるようにする. */
+    private static final int PAGE_SHARE_DIVISOR = 4;
+
+    private final long limit;
+    private long used = 0;
+    private long peak = 0;
+
+    /**
+     * コンストラクタ.
+     * @param limit 予算(バイト)、0の場合は無制限
+     */
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return 予算(バイト)、0の場合は無制限
+     */
+    long getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * 1ページに割り当てる予算を求める.
+     * @return 1ページの予算(バイト)、無制限の場合は0
+     */
+    long getPageLimit() {
+        return this.limit / PAGE_SHARE_DIVISOR;
+    }
+
+    /**
+     * @return 予約中のサイズの最大値(バイト)
+     */
+    synchronized long getPeak() {
+        return this.peak;
+    }
+
+    /**
+     * 指定したサイズを予約する. 予算を超える場合は、他の予約が解放されるか、指定した時間が経過するまで待機する.
+     * 呼び出し元は予約できなかった場合に自身の処理の中断を確認し、必要であれば再度呼び出すこと.
+     * @param bytes 予約するサイズ(バイト)
+     * @param timeoutMillis 待機する最大時間(ミリ秒)
+     * @return 予約できた場合はtrue、時間内に予約できなかった場合はfalse
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    synchronized boolean tryAcquire(long bytes, long timeoutMillis) throws InterruptedException {
+        if (this.limit > 0 && this.used > 0 && this.used + bytes > this.limit) {
+            log.debug(String.format("waiting for memory budget. [used=%d, request=%d, limit=%d]", this.used,
+                    bytes, this.limit));
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (this.used > 0 && this.used + bytes > this.limit) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        this.used += bytes;
+        this.peak = Math.max(this.peak, this.used);
+        return true;
+    }
+
+    /**
+     * 予約したサイズを解放する.
+     * @param bytes 解放するサイズ(バイト)
+     */
+    synchronized void release(long bytes) {
+        this.used -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.BasicDataSourceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MySQLサーバへのコネクションプール.
+ * ユニットユーザ毎のDBへの接続を、DB毎に接続し直さずにプール内のコネクションの切り替え(setCatalog)で行う.
+ * 貸し出し時にコネクションを検証し、PreparedStatementをコネクション毎にキャッシュする.
+ */
+class MySqlConnectionPool {
+
+    private static Logger log = LoggerFactory.getLogger(MySqlConnectionPool.class);
+
+    /** JDBCドライバ. */
+    private static final String DRIVER_CLASS_NAME = "com.mysql.jdbc.Driver";
+    /** 貸し出し時にコネクションを検証するクエリ. */
+    private static final String VALIDATION_QUERY = "SELECT 1";
+    /** 検証クエリのタイムアウト(秒). */
+    private static final int VALIDATION_QUERY_TIMEOUT = 5;
+
+    private final BasicDataSource dataSource;
+
+    /**
+     * コンストラクタ.
+     * @param url MySQLサーバのJDBC URL（DB名を含まない）
+     * @param user ユーザ名
+     * @param password パスワード
+     * @param maxActive 同時に貸し出すコネクション数の上限
+     * @param statementCacheSize コネクション毎にキャッシュするPreparedStatementの数、0の場合はキャッシュしない
+     * @throws RecoveryException コネクションプールの作成に失敗した場合
+     */
+    MySqlConnectionPool(String url, String user, String password, int maxActive, int statementCacheSize)
+            throws RecoveryException {
+        Properties properties = new Properties();
+        properties.setProperty("driverClassName", DRIVER_CLASS_NAME);
+        properties.setProperty("url", url + "/");
+        properties.setProperty("username", user);
+        properties.setProperty("password", password);
+        properties.setProperty("maxActive", String.valueOf(maxActive));
+        properties.setProperty("maxIdle", String.valueOf(maxActive));
+        properties.setProperty("validationQuery", VALIDATION_QUERY);
+        properties.setProperty("validationQueryTimeout", String.valueOf(VALIDATION_QUERY_TIMEOUT));
+        properties.setProperty("testOnBorrow", "true");
+        if (statementCacheSize > 0) {
+            properties.setProperty("poolPreparedStatements", "true");
+            properties.setProperty("maxOpenPreparedStatements", String.valueOf(statementCacheSize));
+        }
+        try {
+            DataSource ds = BasicDataSourceFactory.createDataSource(properties);
+            this.dataSource = (BasicDataSource) ds;
+        } catch (Exception e) {
+            throw new RecoveryException("Failed to create mySQL connection pool", e);
+        }
+        log.info(String.format("mySQL connection pool created. [maxActive=%d, statementCache=%d]", maxActive,
+                statementCacheSize));
+    }
+
+    /**
+     * プールからコネクションを取得する.
+     * 取得したコネクションはcloseでプールへ返却する.
+     * @param dbName 接続するDB名、nullの場合はDBを選択しない
+     * @return コネクション
+     * @throws SQLException 接続に失敗した場合、DBが存在しない場合
+     */
+    Connection getConnection(String dbName) throws SQLException {
+        Connection connection = this.dataSource.getConnection();
+        if (dbName != null) {
+            try {
+                connection.setCatalog(dbName);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * プール内の全コネクションを切断する.
+     */
+    void close() {
+        log.info(String.format("mySQL connection pool closed. [active=%d, idle=%d]", this.dataSource.getNumActive(),
+                this.dataSource.getNumIdle()));
+        try {
+            this.dataSource.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close mySQL connection pool", e);
+        }
+    }
+}
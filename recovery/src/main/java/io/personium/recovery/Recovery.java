@@ -51,6 +51,61 @@ public class Recovery {
     private static final String ES_ROUTING_FLAG = "io.personium.core.es.routingFlag";
     static final String EXECUTE_COUNT = "io.personium.core.execute.count";
     static final String CHECK_COUNT = "io.personium.core.es.bulk.check.count";
+    static final String INDEX_THREADS = "io.personium.core.recovery.index.threads";
+    private static final String TABLE_PARALLEL = "io.personium.core.recovery.table.parallel";
+    static final String READER_TYPE = "io.personium.core.recovery.reader";
+    static final String PIPELINE_MAPPER_THREADS = "io.personium.core.recovery.pipeline.mapper.threads";
+    static final String PIPELINE_SENDER_THREADS = "io.personium.core.recovery.pipeline.sender.threads";
+    static final String PIPELINE_QUEUE_SIZE = "io.personium.core.recovery.pipeline.queue.size";
+    static final String BULK_INFLIGHT = "io.personium.core.recovery.bulk.inflight";
+    private static final String CELL_STREAM = "io.personium.core.recovery.cell.stream";
+    static final String CELL_STREAM_DOCS = "io.personium.core.recovery.cell.stream.docs";
+    static final String CELL_STREAM_BYTES = "io.personium.core.recovery.cell.stream.bytes";
+    static final String CELL_STREAM_INTERVAL = "io.personium.core.recovery.cell.stream.interval";
+    private static final String PLAN = "io.personium.core.recovery.plan";
+    static final String PLAN_ROWS = "io.personium.core.recovery.plan.rate.rows";
+    static final String PLAN_BYTES = "io.personium.core.recovery.plan.rate.bytes";
+    private static final String PLAN_SHARDS = "io.personium.core.recovery.plan.shards";
+    static final String PLAN_SHARD_SIZE = "io.personium.core.recovery.plan.shard.size";
+    static final String PLAN_SHARD_MAX = "io.personium.core.recovery.plan.shard.max";
+    static final String BULKLOAD_PROFILE = "io.personium.core.recovery.bulkload.profile";
+    private static final String BULKLOAD_SETTINGS = "io.personium.core.recovery.bulkload.settings";
+    private static final String BULKLOAD_DEFAULTS = "io.personium.core.recovery.bulkload.defaults";
+    private static final String BULKLOAD_STATE_FILE = "io.personium.core.recovery.bulkload.state.file";
+    private static final String BULKLOAD_POST = "io.personium.core.recovery.bulkload.post";
+    static final String BULKLOAD_MERGE_SEGMENTS = "io.personium.core.recovery.bulkload.merge.segments";
+    static final String BULKLOAD_MERGE_TIMEOUT = "io.personium.core.recovery.bulkload.merge.timeout";
+    static final String BULK_BYTES = "io.personium.core.recovery.bulk.bytes";
+    static final String BULK_MAX_DOCS = "io.personium.core.recovery.bulk.max.docs";
+    private static final String BULK_ADAPTIVE = "io.personium.core.recovery.bulk.adaptive";
+    static final String BULK_BYTES_MIN = "io.personium.core.recovery.bulk.bytes.min";
+    static final String BULK_BYTES_MAX = "io.personium.core.recovery.bulk.bytes.max";
+    static final String BULK_LATENCY_TARGET = "io.personium.core.recovery.bulk.latency.target";
+    static final String RETRY_MAX = "io.personium.core.recovery.retry.max";
+    static final String RETRY_BACKOFF = "io.personium.core.recovery.retry.backoff";
+    static final String RETRY_BULK_SIZE = "io.personium.core.recovery.retry.bulk.size";
+    private static final String DEAD_LETTER_FILE = "io.personium.core.recovery.deadletter.file";
+    static final String DELTA_MARGIN = "io.personium.core.recovery.delta.margin";
+    private static final String JSON_FAST_PARSER = "io.personium.core.recovery.json.fast";
+    private static final String CHECKPOINT_FILE = "io.personium.core.recovery.checkpoint.file";
+    private static final String SHARD_BATCHING = "io.personium.core.recovery.shard.batching";
+    static final String SHARD_COUNT = "io.personium.core.recovery.shard.count";
+    static final String CELL_DELETE_BULK_SIZE = "io.personium.core.recovery.cell.delete.bulk.size";
+    static final String CELL_DELETE_THREADS = "io.personium.core.recovery.cell.delete.threads";
+    static final String JDBC_POOL_MAX = "io.personium.core.recovery.jdbc.pool.max";
+    static final String JDBC_STATEMENT_CACHE = "io.personium.core.recovery.jdbc.statement.cache";
+    private static final String METRICS_JSON_FILE = "io.personium.core.recovery.metrics.json.file";
+    private static final String METRICS_PROMETHEUS_FILE = "io.personium.core.recovery.metrics.prometheus.file";
+    static final String METRICS_INTERVAL = "io.personium.core.recovery.metrics.interval";
+    static final String ES_HTTP_PORT = "io.personium.core.recovery.es.http.port";
+    static final String REBUILD_HEALTH_TIMEOUT = "io.personium.core.recovery.rebuild.health.timeout";
+    static final String THROTTLE_DOCS = "io.personium.core.recovery.throttle.docs";
+    static final String THROTTLE_BYTES = "io.personium.core.recovery.throttle.bytes";
+    static final String THROTTLE_ROWS = "io.personium.core.recovery.throttle.rows";
+    static final String THROTTLE_AUTO = "io.personium.core.recovery.throttle.auto";
+    static final String THROTTLE_AUTO_LATENCY = "io.personium.core.recovery.throttle.auto.latency";
+    static final String MEMORY_BUDGET = "io.personium.core.recovery.memory.budget";
+    private static final String THROTTLE_CONTROL_FILE = "io.personium.core.recovery.throttle.control.file";
     private static final String UNIT_PREFIX = "io.personium.core.es.unitPrefix";
     private static String versionNumber = "";
 
@@ -73,6 +128,20 @@ public class Recovery {
         Option optClear = new Option("c", "clear", false, "リストア処理前にelasticsearchをクリアする");
         Option optReplicas = new Option("r", "replicas", true, "リストア後に設定するレプリカ数。");
         Option optVersion = new Option("v", "version", false, "バージョン情報を表示する");
+        Option optReplay = new Option("j", "replay", true, "登録に失敗したドキュメントを記録したデッドレタージャーナル。"
+                + "指定した場合は記録されたドキュメントのみ再登録する。");
+        Option optSince = new Option("s", "since", true, "差分リカバリの対象とする更新日時（エポックミリ秒）。"
+                + "autoを指定した場合はインデックスの最新の更新日時から求める。");
+        Option optResume = new Option("R", "resume", false, "前回中断したリカバリを、チェックポイントに記録された続きから再開する。");
+        Option optDump = new Option("D", "dump", true, "MySQLの代わりにリカバリ元とするmysqldumpのダンプファイル、"
+                + "またはデータベース毎のダンプファイル(*.sql, *.sql.gz)を格納したディレクトリ。");
+        Option optCell = new Option("C", "cell", true, "指定したIDのCellのデータのみリカバリする。"
+                + "Cellが属するインデックスを-iで指定する。");
+        Option optRebuild = new Option("b", "rebuild", false, "公開中のインデックスはそのままに、バージョンを付加した"
+                + "新しいインデックスへリカバリし、完了後にインデックス名のエイリアスを切り替える。");
+        Option optDryRun = new Option("n", "dry-run", false, "ESへは登録せず、読み込みと変換の処理性能を計測する。");
+        Option optOutput = new Option("o", "dry-run-output", true, "ドライランで変換したバルク登録のリクエストボディを"
+                + "NDJSON形式で出力するファイル。");
         // 必須
         // optIndex.setRequired(true);
 //        optProp.setRequired(true);
@@ -83,6 +152,14 @@ public class Recovery {
         options.addOption(optClear);
         options.addOption(optReplicas);
         options.addOption(optVersion);
+        options.addOption(optReplay);
+        options.addOption(optResume);
+        options.addOption(optSince);
+        options.addOption(optDump);
+        options.addOption(optCell);
+        options.addOption(optRebuild);
+        options.addOption(optDryRun);
+        options.addOption(optOutput);
         CommandLineParser parser = new GnuParser();
         CommandLine commandLine = null;
         try {
@@ -105,30 +182,98 @@ public class Recovery {
         if (commandLine.hasOption("t")) {
             log.info("Command line option \"t\" or \"type\" is deprecated. Option ignored.");
         }
-        if (!commandLine.hasOption("r")) {
+        if (!commandLine.hasOption("r") && !commandLine.hasOption("j") && !commandLine.hasOption("s")
+                && !commandLine.hasOption("n") && !commandLine.hasOption("C")) {
             (new HelpFormatter()).printHelp("io.personium.recovery.Recovery", options);
             log.warn("Command line option \"r\" is required.");
             System.exit(1);
         }
 
+        // ドライランはESへ接続せず、チェックポイントも使用しないため、ESを操作するオプション、再開とは併用できない
+        if (commandLine.hasOption("n") && (commandLine.hasOption("j") || commandLine.hasOption("c")
+                || commandLine.hasOption("s") || commandLine.hasOption("R"))) {
+            log.warn("Cannot specify -n option with -j, -c, -s or -R option.");
+            log.warn("Recovery failure");
+            System.exit(1);
+        }
+        if (commandLine.hasOption("o") && !commandLine.hasOption("n")) {
+            log.info("Command line option \"o\" is only for dry run. Option ignored.");
+        }
+
+        // デッドレタージャーナルの再投入はIDを指定してMySQLから読み直すため、ダンプファイルからは行えない
+        if (commandLine.hasOption("D") && commandLine.hasOption("j")) {
+            log.warn("Cannot specify both -D and -j option.");
+            log.warn("Recovery failure");
+            System.exit(1);
+        }
+
+        // Cell単位のリカバリは既存のインデックスへ上書き登録するため、インデックスを操作するオプションとは併用できない
+        // また、チェックポイントを記録しないため、中断したリカバリの再開とも併用できない
+        if (commandLine.hasOption("C")) {
+            if (commandLine.hasOption("j") || commandLine.hasOption("c") || commandLine.hasOption("s")
+                    || commandLine.hasOption("R")) {
+                log.warn("Cannot specify -C option with -j, -c, -s or -R option.");
+                log.warn("Recovery failure");
+                System.exit(1);
+            }
+            if (!commandLine.hasOption("i")) {
+                log.warn("Command line option \"i\" is required with -C option.");
+                log.warn("Recovery failure");
+                System.exit(1);
+            }
+        }
+
+        // 再構築は新しいインデックスへの全件リカバリのため、既存のインデックスへ登録するオプションとは併用できない
+        if (commandLine.hasOption("b") && (commandLine.hasOption("c") || commandLine.hasOption("s")
+                || commandLine.hasOption("j") || commandLine.hasOption("C") || commandLine.hasOption("n"))) {
+            log.warn("Cannot specify -b option with -c, -s, -j, -C or -n option.");
+            log.warn("Recovery failure");
+            System.exit(1);
+        }
+
         RecoveryManager recoveryManager = new RecoveryManager();
         // 指定されたindex
         recoveryManager.setIndexNames(commandLine.getOptionValue("i"));
         // elasticsearchをクリア指定
         recoveryManager.setClear(commandLine.hasOption("c"));
+        // 公開中のまま再構築する指定
+        recoveryManager.setRebuild(commandLine.hasOption("b"));
+        // 差分リカバリ指定
+        if (commandLine.hasOption("s")) {
+            if (commandLine.hasOption("c")) {
+                log.warn("Cannot specify both -c and -s option.");
+                log.warn("Recovery failure");
+                System.exit(1);
+            }
+            try {
+                recoveryManager.setSince(commandLine.getOptionValue("s"));
+            } catch (NumberFormatException e) {
+                log.warn("Command line option \"s\"'s value is not epoch milliseconds or \"auto\".");
+                System.exit(1);
+            }
+        }
+        // リカバリ元のダンプファイル指定
+        recoveryManager.setDumpPath(commandLine.getOptionValue("D"));
+        // リカバリ対象のCell指定
+        recoveryManager.setCellId(commandLine.getOptionValue("C"));
+        // 前回中断したリカバリの再開指定
+        recoveryManager.setResume(commandLine.hasOption("R"));
 
         // リストア後に設定するレプリカ数を設定
         // 0 以上の整数（ESクラスタのノード数まではわからないのでintの範囲でチェック）であること
-        try {
-            int replicas = Integer.parseInt(commandLine.getOptionValue("r"));
-            if (replicas < 0) {
+        // デッドレタージャーナルの再投入時、差分リカバリ時はレプリカ数を変更しないため指定不要
+        if (commandLine.hasOption("r")) {
+            try {
+                int replicas = Integer.parseInt(commandLine.getOptionValue("r"));
+                if (replicas < 0) {
+                    log.warn("Command line option \"r\"'s value is not integer.");
+                    System.exit(1);
+                }
+                recoveryManager.setReplicas(replicas);
+            } catch (NumberFormatException e) {
                 log.warn("Command line option \"r\"'s value is not integer.");
                 System.exit(1);
             }
-            recoveryManager.setReplicas(replicas);
-        } catch (NumberFormatException e) {
-            log.warn("Command line option \"r\"'s value is not integer.");
-            System.exit(1);
         }
 
         try {
@@ -153,6 +298,61 @@ public class Recovery {
                 recoveryManager.setAdsPassword(properties.getProperty(ADS_JDBC_PASSWORD));
                 recoveryManager.setExecuteCnt(properties.getProperty(EXECUTE_COUNT));
                 recoveryManager.setCheckCount(properties.getProperty(CHECK_COUNT));
+                recoveryManager.setIndexThreads(properties.getProperty(INDEX_THREADS));
+                recoveryManager.setTableParallel(properties.getProperty(TABLE_PARALLEL));
+                recoveryManager.setReaderType(properties.getProperty(READER_TYPE));
+                recoveryManager.setMapperThreads(properties.getProperty(PIPELINE_MAPPER_THREADS));
+                recoveryManager.setSenderThreads(properties.getProperty(PIPELINE_SENDER_THREADS));
+                recoveryManager.setPipelineQueueSize(properties.getProperty(PIPELINE_QUEUE_SIZE));
+                recoveryManager.setBulkInflight(properties.getProperty(BULK_INFLIGHT));
+                recoveryManager.setCellStream(properties.getProperty(CELL_STREAM));
+                recoveryManager.setCellStreamDocs(properties.getProperty(CELL_STREAM_DOCS));
+                recoveryManager.setCellStreamBytes(properties.getProperty(CELL_STREAM_BYTES));
+                recoveryManager.setCellStreamInterval(properties.getProperty(CELL_STREAM_INTERVAL));
+                recoveryManager.setPlan(properties.getProperty(PLAN));
+                recoveryManager.setPlanRowsPerSecond(properties.getProperty(PLAN_ROWS));
+                recoveryManager.setPlanBytesPerSecond(properties.getProperty(PLAN_BYTES));
+                recoveryManager.setPlanShards(properties.getProperty(PLAN_SHARDS));
+                recoveryManager.setPlanShardSize(properties.getProperty(PLAN_SHARD_SIZE));
+                recoveryManager.setPlanShardMax(properties.getProperty(PLAN_SHARD_MAX));
+                recoveryManager.setBulkLoadProfile(properties.getProperty(BULKLOAD_PROFILE));
+                recoveryManager.setBulkLoadSettings(properties.getProperty(BULKLOAD_SETTINGS));
+                recoveryManager.setBulkLoadDefaults(properties.getProperty(BULKLOAD_DEFAULTS));
+                recoveryManager.setBulkLoadStateFile(properties.getProperty(BULKLOAD_STATE_FILE));
+                recoveryManager.setBulkLoadPost(properties.getProperty(BULKLOAD_POST));
+                recoveryManager.setBulkLoadMergeSegments(properties.getProperty(BULKLOAD_MERGE_SEGMENTS));
+                recoveryManager.setBulkLoadMergeTimeout(properties.getProperty(BULKLOAD_MERGE_TIMEOUT));
+                recoveryManager.setBulkBytes(properties.getProperty(BULK_BYTES));
+                recoveryManager.setBulkMaxDocs(properties.getProperty(BULK_MAX_DOCS));
+                recoveryManager.setBulkAdaptive(properties.getProperty(BULK_ADAPTIVE));
+                recoveryManager.setBulkBytesMin(properties.getProperty(BULK_BYTES_MIN));
+                recoveryManager.setBulkBytesMax(properties.getProperty(BULK_BYTES_MAX));
+                recoveryManager.setBulkLatencyTarget(properties.getProperty(BULK_LATENCY_TARGET));
+                recoveryManager.setRetryMax(properties.getProperty(RETRY_MAX));
+                recoveryManager.setRetryBackoff(properties.getProperty(RETRY_BACKOFF));
+                recoveryManager.setRetryBulkSize(properties.getProperty(RETRY_BULK_SIZE));
+                recoveryManager.setDeadLetterFile(properties.getProperty(DEAD_LETTER_FILE));
+                recoveryManager.setDeltaMargin(properties.getProperty(DELTA_MARGIN));
+                recoveryManager.setFastJsonParser(properties.getProperty(JSON_FAST_PARSER));
+                recoveryManager.setCheckpointFile(properties.getProperty(CHECKPOINT_FILE));
+                recoveryManager.setShardBatching(properties.getProperty(SHARD_BATCHING));
+                recoveryManager.setShardCount(properties.getProperty(SHARD_COUNT));
+                recoveryManager.setCellDeleteBulkSize(properties.getProperty(CELL_DELETE_BULK_SIZE));
+                recoveryManager.setCellDeleteThreads(properties.getProperty(CELL_DELETE_THREADS));
+                recoveryManager.setJdbcPoolMax(properties.getProperty(JDBC_POOL_MAX));
+                recoveryManager.setJdbcStatementCache(properties.getProperty(JDBC_STATEMENT_CACHE));
+                recoveryManager.setMetricsJsonFile(properties.getProperty(METRICS_JSON_FILE));
+                recoveryManager.setMetricsPrometheusFile(properties.getProperty(METRICS_PROMETHEUS_FILE));
+                recoveryManager.setMetricsInterval(properties.getProperty(METRICS_INTERVAL));
+                recoveryManager.setEsHttpPort(properties.getProperty(ES_HTTP_PORT));
+                recoveryManager.setRebuildHealthTimeout(properties.getProperty(REBUILD_HEALTH_TIMEOUT));
+                recoveryManager.setThrottleDocs(properties.getProperty(THROTTLE_DOCS));
+                recoveryManager.setThrottleBytes(properties.getProperty(THROTTLE_BYTES));
+                recoveryManager.setThrottleRows(properties.getProperty(THROTTLE_ROWS));
+                recoveryManager.setThrottleAuto(properties.getProperty(THROTTLE_AUTO));
+                recoveryManager.setThrottleAutoLatency(properties.getProperty(THROTTLE_AUTO_LATENCY));
+                recoveryManager.setThrottleControlFile(properties.getProperty(THROTTLE_CONTROL_FILE));
+                recoveryManager.setMemoryBudget(properties.getProperty(MEMORY_BUDGET));
                 recoveryManager.setUnitPrefix(properties.getProperty(UNIT_PREFIX));
             }
         } catch (FileNotFoundException e) {
@@ -196,7 +396,15 @@ public class Recovery {
 
         // リカバリの実行
         try {
-            recoveryManager.recovery();
+            if (commandLine.hasOption("n")) {
+                recoveryManager.dryRun(commandLine.getOptionValue("o"));
+            } else if (commandLine.hasOption("C")) {
+                recoveryManager.recoverCell(commandLine.getOptionValue("i"));
+            } else if (commandLine.hasOption("j")) {
+                recoveryManager.replay(commandLine.getOptionValue("j"));
+            } else {
+                recoveryManager.recovery();
+            }
         } catch (Exception e) {
             LockUtility.release();
             log.error("Recovery failure");
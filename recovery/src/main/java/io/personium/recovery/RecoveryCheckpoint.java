@@ -0,0 +1,261 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リカバリの進捗を記録するチェックポイントファイル.
+ * <p>
+ * 以下をプロパティ形式で記録し、--resume 指定時は記録済みの処理をスキップする.
+ * <ul>
+ * <li>index.{インデックス名}：started（インデックス作成済み）またはdone（リカバリ完了）</li>
+ * <li>table.{インデックス名}.{テーブル名}：done（テーブルのリカバリ完了）</li>
+ * <li>key.{インデックス名}.{テーブル名}：バルク登録結果まで確認済みの最後の主キー</li>
+ * <li>since.{インデックス名}：差分リカバリの更新日時の下限</li>
+ * <li>target.{インデックス名}：再構築時の登録先のインデックス名</li>
+ * </ul>
+ * 更新のたびに一時ファイルへ書き出してから置き換えるため、異常終了時にも壊れたファイルは残らない.
+ */
+class RecoveryCheckpoint {
+
+    private static Logger log = LoggerFactory.getLogger(RecoveryCheckpoint.class);
+
+    private static final String INDEX_PREFIX = "index.";
+    private static final String TABLE_PREFIX = "table.";
+    private static final String KEY_PREFIX = "key.";
+    private static final String SINCE_PREFIX = "since.";
+    private static final String TARGET_PREFIX = "target.";
+    private static final String STARTED = "started";
+    private static final String DONE = "done";
+
+    private final File file;
+    private final Properties progress = new Properties();
+
+    /**
+     * コンストラクタ.
+     * @param path チェックポイントファイルのパス、nullの場合はファイルへ記録しない
+     */
+    private RecoveryCheckpoint(String path) {
+        if (path == null) {
+            this.file = null;
+        } else {
+            this.file = new File(path);
+        }
+    }
+
+    /**
+     * ファイルへ記録しないチェックポイントを作成する.
+     * ドライランのように、進捗を次回へ引き継がない場合に使用する.
+     * @return チェックポイント
+     */
+    static RecoveryCheckpoint inMemory() {
+        return new RecoveryCheckpoint(null);
+    }
+
+    /**
+     * チェックポイントファイルを開く.
+     * @param path チェックポイントファイルのパス
+     * @param resume 前回の進捗を引き継ぐ場合はtrue、falseの場合は前回の進捗を破棄する
+     * @return チェックポイント
+     * @throws IOException ファイルの読み込み・削除に失敗した場合
+     */
+    static RecoveryCheckpoint open(String path, boolean resume) throws IOException {
+        RecoveryCheckpoint checkpoint = new RecoveryCheckpoint(path);
+        if (!checkpoint.file.exists()) {
+            if (resume) {
+                log.info("Checkpoint file does not exist. Recovery starts from the beginning. [" + path + "]");
+            }
+            return checkpoint;
+        }
+        if (resume) {
+            InputStream is = new FileInputStream(checkpoint.file);
+            try {
+                checkpoint.progress.load(is);
+            } finally {
+                is.close();
+            }
+            log.info("Resume recovery from checkpoint [" + path + "]");
+        } else {
+            checkpoint.delete();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * インデックスの作成が済んでいるか（前回途中まで処理したか）を判定する.
+     * @param index インデックス名
+     * @return 作成済みまたはリカバリ完了の場合はtrue
+     */
+    synchronized boolean isIndexStarted(String index) {
+        return this.progress.containsKey(INDEX_PREFIX + index);
+    }
+
+    /**
+     * インデックスのリカバリが完了しているかを判定する.
+     * @param index インデックス名
+     * @return リカバリ完了の場合はtrue
+     */
+    synchronized boolean isIndexDone(String index) {
+        return DONE.equals(this.progress.getProperty(INDEX_PREFIX + index));
+    }
+
+    /**
+     * インデックスの作成が済んだことを記録する.
+     * @param index インデックス名
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void markIndexStarted(String index) throws IOException {
+        this.progress.setProperty(INDEX_PREFIX + index, STARTED);
+        save();
+    }
+
+    /**
+     * インデックスのリカバリが完了したことを記録する.
+     * @param index インデックス名
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void markIndexDone(String index) throws IOException {
+        this.progress.setProperty(INDEX_PREFIX + index, DONE);
+        save();
+    }
+
+    /**
+     * 差分リカバリの更新日時の下限を取得する.
+     * @param index インデックス名
+     * @return 更新日時の下限、記録がない場合はnull
+     */
+    synchronized Long getIndexSince(String index) {
+        String value = this.progress.getProperty(SINCE_PREFIX + index);
+        if (value == null) {
+            return null;
+        }
+        return Long.valueOf(value);
+    }
+
+    /**
+     * 差分リカバリの更新日時の下限を記録する.
+     * @param index インデックス名
+     * @param since 更新日時の下限
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void setIndexSince(String index, long since) throws IOException {
+        this.progress.setProperty(SINCE_PREFIX + index, String.valueOf(since));
+        save();
+    }
+
+    /**
+     * 再構築時の登録先のインデックス名を取得する.
+     * @param index インデックス名
+     * @return 登録先のインデックス名、記録がない場合はnull
+     */
+    synchronized String getIndexTarget(String index) {
+        return this.progress.getProperty(TARGET_PREFIX + index);
+    }
+
+    /**
+     * 再構築時の登録先のインデックス名を記録する.
+     * @param index インデックス名
+     * @param target 登録先のインデックス名
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void setIndexTarget(String index, String target) throws IOException {
+        this.progress.setProperty(TARGET_PREFIX + index, target);
+        save();
+    }
+
+    /**
+     * テーブルのリカバリが完了しているかを判定する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @return リカバリ完了の場合はtrue
+     */
+    synchronized boolean isTableDone(String index, String tableName) {
+        return DONE.equals(this.progress.getProperty(TABLE_PREFIX + index + "." + tableName));
+    }
+
+    /**
+     * テーブルのリカバリが完了したことを記録する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void markTableDone(String index, String tableName) throws IOException {
+        this.progress.setProperty(TABLE_PREFIX + index + "." + tableName, DONE);
+        this.progress.remove(KEY_PREFIX + index + "." + tableName);
+        save();
+    }
+
+    /**
+     * バルク登録結果まで確認済みの最後の主キーを取得する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @return 主キー、記録がない場合はnull
+     */
+    synchronized String getTableKey(String index, String tableName) {
+        return this.progress.getProperty(KEY_PREFIX + index + "." + tableName);
+    }
+
+    /**
+     * バルク登録結果まで確認済みの最後の主キーを記録する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @param key 主キー
+     * @throws IOException ファイルの書き込みに失敗した場合
+     */
+    synchronized void commitTableKey(String index, String tableName, String key) throws IOException {
+        this.progress.setProperty(KEY_PREFIX + index + "." + tableName, key);
+        save();
+    }
+
+    /**
+     * チェックポイントファイルを削除する.
+     * @throws IOException 削除に失敗した場合
+     */
+    synchronized void delete() throws IOException {
+        this.progress.clear();
+        if (this.file != null) {
+            Files.deleteIfExists(this.file.toPath());
+        }
+    }
+
+    private void save() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+        File tmp = new File(this.file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            this.progress.store(os, "personium recovery checkpoint");
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -16,15 +16,35 @@
  */
 package io.personium.recovery;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,15 +52,18 @@ import org.slf4j.LoggerFactory;
 import io.personium.common.es.EsIndex;
 import io.personium.common.es.impl.EsIndexImpl;
 import io.personium.common.es.response.DcBulkResponse;
-import io.personium.common.es.response.DcSearchHit;
-import io.personium.common.es.response.DcSearchResponse;
 import io.personium.common.es.response.EsClientException.EsIndexAlreadyExistsException;
 import io.personium.common.es.response.EsClientException.EsIndexMissingException;
 import io.personium.recovery.tables.CellTableHandler;
+import io.personium.recovery.tables.CopiedTableReader;
 import io.personium.recovery.tables.DavNodeTableHandler;
+import io.personium.recovery.tables.DumpTableReader;
 import io.personium.recovery.tables.EntityTableHandler;
 import io.personium.recovery.tables.ITableHandler;
+import io.personium.recovery.tables.ITableReader;
+import io.personium.recovery.tables.KeysetTableReader;
 import io.personium.recovery.tables.LinkTableHandler;
+import io.personium.recovery.tables.MySqlDumpIndex;
 
 /**
  * MySQL -> ElasticSearch リカバリツール.
@@ -50,7 +73,71 @@ public class RecoveryManager {
     private static Logger log = LoggerFactory.getLogger(RecoveryManager.class);
 
     private static final int DEFAULT_EXECUTE_COUNT = 10000;
-    private static final int DEFAULT_CHECK_COUNT = 10;
+    private static final int DEFAULT_INDEX_THREADS = 1;
+    private static final int DEFAULT_PIPELINE_THREADS = 1;
+    private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 1;
+    private static final int DEFAULT_BULK_BYTES = 5 * 1024 * 1024;
+    private static final int DEFAULT_BULK_MAX_DOCS = 10000;
+    private static final int DEFAULT_BULK_BYTES_MIN = 1024 * 1024;
+    private static final int DEFAULT_BULK_BYTES_MAX = 32 * 1024 * 1024;
+    private static final int DEFAULT_BULK_LATENCY_TARGET = 1000;
+    private static final int DEFAULT_RETRY_MAX = 3;
+    private static final int DEFAULT_RETRY_BACKOFF = 1000;
+    private static final int DEFAULT_RETRY_BULK_SIZE = 100;
+    private static final int DEFAULT_SHARD_COUNT = 5;
+    private static final int DEFAULT_CELL_DELETE_BULK_SIZE = 1000;
+    private static final int DEFAULT_CELL_DELETE_THREADS = 1;
+    /** コネクションプールの上限：ワーカー数に合わせる. */
+    private static final int DEFAULT_JDBC_POOL_MAX = 0;
+    private static final int DEFAULT_JDBC_STATEMENT_CACHE = 32;
+    private static final String DEFAULT_METRICS_JSON_FILE =
+            "/personium/personium-recovery/personium-recovery-metrics.json";
+    private static final int DEFAULT_METRICS_INTERVAL = 10;
+    private static final String DEFAULT_DEAD_LETTER_FILE =
+            "/personium/personium-recovery/personium-recovery-deadletter.tsv";
+    private static final int DEFAULT_DELTA_MARGIN = 10 * 60 * 1000;
+    /** 差分リカバリの更新日時をインデックスの最新の更新日時から求める指定. */
+    static final String SINCE_AUTO = "auto";
+    private static final String DEFAULT_CHECKPOINT_FILE =
+            "/personium/personium-recovery/personium-recovery.checkpoint";
+    private static final int DEFAULT_ES_HTTP_PORT = 9200;
+    private static final int DEFAULT_REBUILD_HEALTH_TIMEOUT = 300;
+    /** 再構築したインデックス名の、元のインデックス名に付加する接尾辞. */
+    static final String REBUILD_SUFFIX = "_v";
+    /** 再構築したインデックス名に付加するバージョンの書式. */
+    private static final String REBUILD_VERSION_FORMAT = "yyyyMMddHHmmss";
+    /** 再投入中のデッドレタージャーナルの退避先に付加する接尾辞. 後ろに退避した日時を付加する. */
+    private static final String REPLAYED_JOURNAL_SUFFIX = ".replayed.";
+    /** 再投入中のデッドレタージャーナルの退避先に付加する日時の書式. */
+    private static final String REPLAYED_JOURNAL_TIME_FORMAT = "yyyyMMddHHmmss";
+    /** 再投入の中断時に、未処理のドキュメントをデッドレタージャーナルへ書き戻す際の失敗理由. */
+    private static final String REPLAY_ABORTED_REASON = "replay aborted";
+    private static final int DEFAULT_THROTTLE_AUTO_LATENCY = 2000;
+    /** ヒープ使用量の予算のデフォルト：最大ヒープサイズに対する割合の分母. */
+    private static final int DEFAULT_MEMORY_BUDGET_DIVISOR = 2;
+    private static final int DEFAULT_BULK_INFLIGHT = 0;
+    private static final int DEFAULT_CELL_STREAM_DOCS = 1000;
+    private static final int DEFAULT_CELL_STREAM_INTERVAL = 1000;
+    private static final int DEFAULT_PLAN_ROWS_PER_SECOND = 5000;
+    private static final int DEFAULT_PLAN_BYTES_PER_SECOND = 10 * 1024 * 1024;
+    private static final int DEFAULT_PLAN_SHARD_SIZE = 30 * 1024;
+    private static final int DEFAULT_PLAN_SHARD_MAX = 30;
+    /** シャード数を指定するインデックステンプレート名の接頭辞. */
+    private static final String PLAN_TEMPLATE_PREFIX = "personium-recovery-";
+    private static final String DEFAULT_BULKLOAD_STATE_FILE =
+            "/personium/personium-recovery/personium-recovery-settings.properties";
+    private static final int DEFAULT_BULKLOAD_MERGE_SEGMENTS = 1;
+    private static final int DEFAULT_BULKLOAD_MERGE_TIMEOUT = 3600;
+    private static final String REPLICAS_SETTING = "index.number_of_replicas";
+    /** 流量制限の制御ファイルを確認する間隔(秒). */
+    private static final int THROTTLE_CONTROL_INTERVAL = 5;
+    private static final double MILLIS_PER_SECOND = 1000d;
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+
+    /** 読み込み方式：リカバリ元テーブルを主キー順に直接読み込む. */
+    static final String READER_KEYSET = "keyset";
+    /** 読み込み方式：リカバリ用一時テーブルへコピーしてから読み込む. */
+    static final String READER_COPY = "copy";
 
     private static final String[] TABLE_TYPES = {"ENTITY", "CELL", "DAV_NODE", "LINK" };
 
@@ -62,17 +149,102 @@ public class RecoveryManager {
     private String adsJdbcUrl;
     private String adsUser;
     private String adsPassword;
-    private EsRecovery recovery;
     private int executeCnt = DEFAULT_EXECUTE_COUNT;
     private String unitPrefix;
-    private int checkCount = DEFAULT_CHECK_COUNT;
+    private int indexThreads = DEFAULT_INDEX_THREADS;
+    private boolean tableParallel = false;
+    private String readerType = READER_KEYSET;
+    private int mapperThreads = DEFAULT_PIPELINE_THREADS;
+    private int senderThreads = DEFAULT_PIPELINE_THREADS;
+    private int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+    private int bulkInflight = DEFAULT_BULK_INFLIGHT;
+    private BulkWindow bulkWindow;
+    private boolean cellStreamEnabled = true;
+    private int cellStreamDocs = DEFAULT_CELL_STREAM_DOCS;
+    private int cellStreamBytes = DEFAULT_BULK_BYTES;
+    private int cellStreamInterval = DEFAULT_CELL_STREAM_INTERVAL;
+    private CellBulkStream cellStream;
+    private boolean planEnabled = true;
+    private int planRowsPerSecond = DEFAULT_PLAN_ROWS_PER_SECOND;
+    private int planBytesPerSecond = DEFAULT_PLAN_BYTES_PER_SECOND;
+    private boolean planShards = false;
+    private int planShardSize = DEFAULT_PLAN_SHARD_SIZE;
+    private int planShardMax = DEFAULT_PLAN_SHARD_MAX;
+    private RecoveryPlan plan;
+    private String bulkLoadProfileName = BulkLoadProfile.NONE;
+    private String bulkLoadSettings;
+    private String bulkLoadDefaults;
+    private String bulkLoadStateFile = DEFAULT_BULKLOAD_STATE_FILE;
+    private boolean bulkLoadPost = false;
+    private int bulkLoadMergeSegments = DEFAULT_BULKLOAD_MERGE_SEGMENTS;
+    private int bulkLoadMergeTimeout = DEFAULT_BULKLOAD_MERGE_TIMEOUT;
+    private BulkLoadProfile bulkLoadProfile;
+    private BulkLoadState bulkLoadState;
+    private int bulkBytes = DEFAULT_BULK_BYTES;
+    private int bulkMaxDocs = DEFAULT_BULK_MAX_DOCS;
+    private boolean bulkAdaptive = false;
+    private int bulkBytesMin = DEFAULT_BULK_BYTES_MIN;
+    private int bulkBytesMax = DEFAULT_BULK_BYTES_MAX;
+    private int bulkLatencyTarget = DEFAULT_BULK_LATENCY_TARGET;
+    private BulkSizeController sizeController;
+    private int retryMax = DEFAULT_RETRY_MAX;
+    private int retryBackoff = DEFAULT_RETRY_BACKOFF;
+    private int retryBulkSize = DEFAULT_RETRY_BULK_SIZE;
+    private String deadLetterFile = DEFAULT_DEAD_LETTER_FILE;
+    private DeadLetterJournal deadLetterJournal;
+    private BulkResponseChecker responseChecker;
+    private String checkpointFile = DEFAULT_CHECKPOINT_FILE;
+    private RecoveryCheckpoint checkpoint;
+    private int deltaMargin = DEFAULT_DELTA_MARGIN;
+    private boolean fastJsonParser = true;
+    private boolean shardBatching = false;
+    private int shardCount = DEFAULT_SHARD_COUNT;
+    private ShardRouting shardRouting;
+    private int cellDeleteBulkSize = DEFAULT_CELL_DELETE_BULK_SIZE;
+    private int cellDeleteThreads = DEFAULT_CELL_DELETE_THREADS;
+    private UnnecessaryCellCleaner cellCleaner;
+    private int jdbcPoolMax = DEFAULT_JDBC_POOL_MAX;
+    private int jdbcStatementCache = DEFAULT_JDBC_STATEMENT_CACHE;
+    private MySqlConnectionPool connectionPool;
+    private String metricsJsonFile = DEFAULT_METRICS_JSON_FILE;
+    private String metricsPrometheusFile;
+    private int metricsInterval = DEFAULT_METRICS_INTERVAL;
+    private RecoveryMetrics metrics;
+    private DryRunSink dryRunSink;
+    private String dumpPath;
+    private MySqlDumpIndex dumpIndex;
+    private String cellId;
+    private int esHttpPort = DEFAULT_ES_HTTP_PORT;
+    private int rebuildHealthTimeout = DEFAULT_REBUILD_HEALTH_TIMEOUT;
+    /** 再構築中のインデックスの、元のインデックス名と登録先のインデックス名の対応. */
+    private final Map<String, String> rebuildTargets = new ConcurrentHashMap<String, String>();
+    /** 再構築したインデックスに付加するバージョン. */
+    private String rebuildVersion;
+    private EsAliasClient aliasClient;
+    private long throttleDocs = 0;
+    private long throttleBytes = 0;
+    private long throttleRows = 0;
+    private boolean throttleAuto = false;
+    private int throttleAutoLatency = DEFAULT_THROTTLE_AUTO_LATENCY;
+    private String throttleControlFile;
+    private RecoveryThrottle throttle;
+    private long memoryBudgetBytes = Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_BUDGET_DIVISOR;
+    private MemoryBudget memoryBudget;
 
     /** index. */
     private String[] indexNames;
     /** clearオプション. */
     private boolean isClear;
+    /** rebuildオプション. */
+    private boolean rebuild;
     /** リストア後に設定するレプリカ数(-r オプション値). */
     private int replicas;
+    /** resumeオプション. */
+    private boolean resume;
+    /** 差分リカバリの更新日時の下限(sinceオプション値)、差分リカバリでない場合はnull. */
+    private Long since;
+    /** 差分リカバリの更新日時をインデックスの最新の更新日時から求める場合はtrue. */
+    private boolean sinceAuto;
 
     /**
      * コンストラクタ.
@@ -102,6 +274,287 @@ public class RecoveryManager {
         this.isClear = value;
     }
 
+    /**
+     * インデックスを公開中のまま再構築するかどうかを設定する.
+     * 再構築する場合は、バージョンを付加した別のインデックスへリカバリし、完了後にエイリアスを切り替える.
+     * @param value 再構築する場合はtrue
+     */
+    public final void setRebuild(boolean value) {
+        this.rebuild = value;
+    }
+
+    /**
+     * 前回中断したリカバリの進捗を引き継ぐかどうかを設定する.
+     * @param value 引き継ぐ場合はtrue
+     */
+    public final void setResume(boolean value) {
+        this.resume = value;
+    }
+
+    /**
+     * MySQLの代わりにリカバリ元とするmysqldumpのダンプファイルを設定する.
+     * @param path ダンプファイル、またはデータベース毎のダンプファイルを格納したディレクトリ
+     */
+    public final void setDumpPath(String path) {
+        this.dumpPath = path;
+    }
+
+    /**
+     * リカバリ対象を指定したCellに属するデータに限定する.
+     * @param value CellのID、nullの場合は全データ
+     */
+    public final void setCellId(String value) {
+        this.cellId = value;
+    }
+
+    /**
+     * 差分リカバリの対象とする更新日時の下限を設定する.
+     * 指定した場合は、インデックスを作成し直さずに、更新日時(updated)以降に更新されたレコードのみ上書き登録する.
+     * @param value 更新日時の下限（エポックミリ秒）、またはインデックスの最新の更新日時から求める場合は"auto"
+     * @throws NumberFormatException 数値でない場合
+     */
+    public final void setSince(String value) {
+        if (SINCE_AUTO.equals(value)) {
+            this.sinceAuto = true;
+        } else {
+            this.since = Long.parseLong(value);
+        }
+    }
+
+    /**
+     * 差分リカバリかどうかを返却.
+     * @return 差分リカバリの場合はtrue
+     */
+    public final boolean isDelta() {
+        return this.sinceAuto || this.since != null;
+    }
+
+    /**
+     * 差分リカバリの更新日時をインデックスから求める場合に、最新の更新日時から遡る時間(ミリ秒)を設定する（デフォルト：10分）.
+     * @param deltaMargin 遡る時間(ミリ秒)
+     */
+    public final void setDeltaMargin(String deltaMargin) {
+        this.deltaMargin = parsePositiveInt(Recovery.DELTA_MARGIN, deltaMargin, this.deltaMargin,
+                DEFAULT_DELTA_MARGIN);
+    }
+
+    /**
+     * JSON文字列カラムを軽量パーサで変換するかどうかを設定する（デフォルト：true）.
+     * falseの場合は全てjson-simpleで変換する.
+     * @param fastJsonParser 軽量パーサで変換する場合はtrue
+     */
+    public final void setFastJsonParser(String fastJsonParser) {
+        if (fastJsonParser != null && !("".equals(fastJsonParser))) {
+            this.fastJsonParser = Boolean.parseBoolean(fastJsonParser.trim());
+        }
+    }
+
+    /**
+     * レコードをセルID順に読み込み、登録先シャード毎にまとめてバルク登録するかどうかを設定する（デフォルト：false）.
+     * 有効にした場合、1回のバルク登録で書き込むシャードの数が少なくなる。読み込み方式は常にkeysetとなる.
+     * @param shardBatching シャード毎にまとめる場合はtrue
+     */
+    public final void setShardBatching(String shardBatching) {
+        if (shardBatching != null && !("".equals(shardBatching))) {
+            this.shardBatching = Boolean.parseBoolean(shardBatching.trim());
+        }
+    }
+
+    /**
+     * 登録先シャードの計算に使用するインデックスのシャード数を設定する（デフォルト：5）.
+     * Elasticsearchのインデックスのnumber_of_shardsと同じ値を設定すること.
+     * @param shardCount シャード数
+     */
+    public final void setShardCount(String shardCount) {
+        this.shardCount = parsePositiveInt(Recovery.SHARD_COUNT, shardCount, this.shardCount, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * 不要Cellの削除で、1回のスクロール検索での取得件数と1回のBulk削除の件数を設定する（デフォルト：1000）.
+     * @param cellDeleteBulkSize 件数
+     */
+    public final void setCellDeleteBulkSize(String cellDeleteBulkSize) {
+        this.cellDeleteBulkSize = parsePositiveInt(Recovery.CELL_DELETE_BULK_SIZE, cellDeleteBulkSize,
+                this.cellDeleteBulkSize, DEFAULT_CELL_DELETE_BULK_SIZE);
+    }
+
+    /**
+     * 不要Cellの削除で、同時に実行するBulk削除の数を設定する（デフォルト：1）.
+     * @param cellDeleteThreads 同時に実行するBulk削除の数
+     */
+    public final void setCellDeleteThreads(String cellDeleteThreads) {
+        this.cellDeleteThreads = parsePositiveInt(Recovery.CELL_DELETE_THREADS, cellDeleteThreads,
+                this.cellDeleteThreads, DEFAULT_CELL_DELETE_THREADS);
+    }
+
+    /**
+     * MySQLのコネクションプールの上限を設定する（デフォルト：インデックス並列数×テーブル並列数）.
+     * @param jdbcPoolMax 同時に接続するコネクション数の上限
+     */
+    public final void setJdbcPoolMax(String jdbcPoolMax) {
+        this.jdbcPoolMax = parsePositiveInt(Recovery.JDBC_POOL_MAX, jdbcPoolMax, this.jdbcPoolMax,
+                DEFAULT_JDBC_POOL_MAX);
+    }
+
+    /**
+     * コネクション毎にキャッシュするPreparedStatementの数を設定する（デフォルト：32）.
+     * 0を指定した場合はキャッシュしない.
+     * @param jdbcStatementCache キャッシュするPreparedStatementの数
+     */
+    public final void setJdbcStatementCache(String jdbcStatementCache) {
+        if (jdbcStatementCache != null && "0".equals(jdbcStatementCache.trim())) {
+            this.jdbcStatementCache = 0;
+            return;
+        }
+        this.jdbcStatementCache = parsePositiveInt(Recovery.JDBC_STATEMENT_CACHE, jdbcStatementCache,
+                this.jdbcStatementCache, DEFAULT_JDBC_STATEMENT_CACHE);
+    }
+
+    /**
+     * 処理性能の集計結果をJSON形式で出力するファイルのパスを設定する.
+     * 空文字を指定した場合は出力しない.
+     * @param metricsJsonFile 出力先のパス
+     */
+    public final void setMetricsJsonFile(String metricsJsonFile) {
+        if (metricsJsonFile != null) {
+            this.metricsJsonFile = emptyToNull(metricsJsonFile.trim());
+        }
+    }
+
+    /**
+     * 処理性能の集計結果をPrometheus(node_exporterのtextfile collector)形式で出力するファイルのパスを設定する.
+     * 拡張子は.promとすること。指定しない場合は出力しない.
+     * @param metricsPrometheusFile 出力先のパス
+     */
+    public final void setMetricsPrometheusFile(String metricsPrometheusFile) {
+        if (metricsPrometheusFile != null) {
+            this.metricsPrometheusFile = emptyToNull(metricsPrometheusFile.trim());
+        }
+    }
+
+    /**
+     * 処理性能の集計結果を出力する間隔(秒)を設定する（デフォルト：10）.
+     * @param metricsInterval 出力間隔(秒)
+     */
+    public final void setMetricsInterval(String metricsInterval) {
+        this.metricsInterval = parsePositiveInt(Recovery.METRICS_INTERVAL, metricsInterval, this.metricsInterval,
+                DEFAULT_METRICS_INTERVAL);
+    }
+
+    /**
+     * ESのHTTPのポートを設定する（デフォルト：9200）.
+     * 再構築したインデックスへのエイリアスの切り替えに使用する.
+     * @param esHttpPort HTTPのポート
+     */
+    public final void setEsHttpPort(String esHttpPort) {
+        this.esHttpPort = parsePositiveInt(Recovery.ES_HTTP_PORT, esHttpPort, this.esHttpPort,
+                DEFAULT_ES_HTTP_PORT);
+    }
+
+    /**
+     * 再構築したインデックスのレプリカの割り当てを待つ時間(秒)を設定する（デフォルト：300）.
+     * 一括登録後の後処理で、レプリカの割り当てを待つ時間にも使用する.
+     * @param rebuildHealthTimeout 待ち合わせる時間(秒)
+     */
+    public final void setRebuildHealthTimeout(String rebuildHealthTimeout) {
+        this.rebuildHealthTimeout = parsePositiveInt(Recovery.REBUILD_HEALTH_TIMEOUT, rebuildHealthTimeout,
+                this.rebuildHealthTimeout, DEFAULT_REBUILD_HEALTH_TIMEOUT);
+    }
+
+    /**
+     * 1秒あたりに登録するドキュメント数の上限を設定する（デフォルト：0 無制限）.
+     * @param throttleDocs 1秒あたりのドキュメント数
+     */
+    public final void setThrottleDocs(String throttleDocs) {
+        this.throttleDocs = RecoveryThrottle.parseRate(Recovery.THROTTLE_DOCS, throttleDocs, this.throttleDocs);
+    }
+
+    /**
+     * 1秒あたりに登録するバルク登録の推定サイズ(バイト)の上限を設定する（デフォルト：0 無制限）.
+     * @param throttleBytes 1秒あたりのバイト数
+     */
+    public final void setThrottleBytes(String throttleBytes) {
+        this.throttleBytes = RecoveryThrottle.parseRate(Recovery.THROTTLE_BYTES, throttleBytes, this.throttleBytes);
+    }
+
+    /**
+     * 1秒あたりにMySQLから読み込むレコード数の上限を設定する（デフォルト：0 無制限）.
+     * @param throttleRows 1秒あたりのレコード数
+     */
+    public final void setThrottleRows(String throttleRows) {
+        this.throttleRows = RecoveryThrottle.parseRate(Recovery.THROTTLE_ROWS, throttleRows, this.throttleRows);
+    }
+
+    /**
+     * ESの負荷に応じて流量の上限を自動で下げるかどうかを設定する（デフォルト：false）.
+     * @param throttleAuto trueの場合は自動で下げる
+     */
+    public final void setThrottleAuto(String throttleAuto) {
+        if (throttleAuto != null && !("".equals(throttleAuto))) {
+            this.throttleAuto = Boolean.parseBoolean(throttleAuto.trim());
+        }
+    }
+
+    /**
+     * 流量の自動制御の目標応答時間(ミリ秒)を設定する（デフォルト：2000）.
+     * @param throttleAutoLatency 目標応答時間(ミリ秒)
+     */
+    public final void setThrottleAutoLatency(String throttleAutoLatency) {
+        this.throttleAutoLatency = parsePositiveInt(Recovery.THROTTLE_AUTO_LATENCY, throttleAutoLatency,
+                this.throttleAutoLatency, DEFAULT_THROTTLE_AUTO_LATENCY);
+    }
+
+    /**
+     * 実行中に流量の上限を変更するための制御ファイルを設定する.
+     * @param throttleControlFile 制御ファイルのパス、未指定の場合は制御ファイルを使用しない
+     */
+    public final void setThrottleControlFile(String throttleControlFile) {
+        this.throttleControlFile = emptyToNull(throttleControlFile);
+    }
+
+    /**
+     * 読み込み・変換・バルク登録中に保持するデータのヒープ使用量の予算(バイト)を設定する（デフォルト：最大ヒープサイズの1/2）.
+     * 0を指定した場合は制限しない.
+     * @param memoryBudget 予算(バイト)
+     */
+    public final void setMemoryBudget(String memoryBudget) {
+        if (memoryBudget != null && !("".equals(memoryBudget))) {
+            try {
+                long value = Long.parseLong(memoryBudget.trim());
+                if (value >= 0) {
+                    this.memoryBudgetBytes = value;
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                log.debug("invalid number", e);
+            }
+            String format = "configuration parameter value failed(%s), use default value. [%s -> %d]";
+            log.warn(String.format(format, Recovery.MEMORY_BUDGET, memoryBudget, this.memoryBudgetBytes));
+        }
+    }
+
+    /**
+     * 空文字をnullに変換する.
+     * @param value 値
+     * @return 空文字の場合はnull、それ以外は値
+     */
+    private static String emptyToNull(String value) {
+        if ("".equals(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * リカバリの進捗を記録するチェックポイントファイルのパスを設定する.
+     * @param checkpointFile チェックポイントファイルのパス
+     */
+    public final void setCheckpointFile(String checkpointFile) {
+        if (checkpointFile != null && !("".equals(checkpointFile.trim()))) {
+            this.checkpointFile = checkpointFile.trim();
+        }
+    }
+
     /**
      * インデックスを削除するかどうかのフラグを返却.
      * @return -c指定時はtrue、それ以外はfalse
@@ -161,18 +614,52 @@ public class RecoveryManager {
     }
 
     /**
-     * バルク登録時のチェックタイミング（何回ごとにチェックするか）を設定する（デフォルト：10回）.
+     * バルク登録時のチェックタイミング（何回ごとにチェックするか）を設定する.
+     * バルク登録結果は失敗したドキュメントを再登録するため毎回チェックするようになったので、設定値は使用しない.
+     * 下位互換性を保つために設定項目としては受け付けて無視する.
      * @param checkCount バルク登録時のチェックタイミング（何回ごとにチェックするか）.
      */
     public final void setCheckCount(String checkCount) {
         if (checkCount != null && !("".equals(checkCount))) {
-            try {
-                this.checkCount = Integer.valueOf(checkCount);
-            } catch (NumberFormatException e) {
-                String format = "configuration parameter value failed(%s), use default value. [%s -> %d]";
-                log.warn(String.format(format, Recovery.CHECK_COUNT, checkCount, DEFAULT_CHECK_COUNT));
-                this.checkCount = DEFAULT_CHECK_COUNT;
-            }
+            log.info(String.format("configuration parameter(%s) is deprecated. Parameter ignored.",
+                    Recovery.CHECK_COUNT));
+        }
+    }
+
+    /**
+     * 一時的な失敗で登録できなかったドキュメントの再登録の上限回数を設定する（デフォルト：3）.
+     * @param retryMax 再登録の上限回数
+     */
+    public final void setRetryMax(String retryMax) {
+        this.retryMax = parsePositiveInt(Recovery.RETRY_MAX, retryMax, this.retryMax, DEFAULT_RETRY_MAX);
+    }
+
+    /**
+     * 1回目の再登録までの待ち時間(ミリ秒)を設定する（デフォルト：1000）.
+     * 再登録ごとに待ち時間を2倍にする.
+     * @param retryBackoff 待ち時間(ミリ秒)
+     */
+    public final void setRetryBackoff(String retryBackoff) {
+        this.retryBackoff = parsePositiveInt(Recovery.RETRY_BACKOFF, retryBackoff, this.retryBackoff,
+                DEFAULT_RETRY_BACKOFF);
+    }
+
+    /**
+     * 再登録時の1回のバルク登録の件数を設定する（デフォルト：100）.
+     * @param retryBulkSize 再登録時の1回のバルク登録の件数
+     */
+    public final void setRetryBulkSize(String retryBulkSize) {
+        this.retryBulkSize = parsePositiveInt(Recovery.RETRY_BULK_SIZE, retryBulkSize, this.retryBulkSize,
+                DEFAULT_RETRY_BULK_SIZE);
+    }
+
+    /**
+     * 登録に失敗したドキュメントを記録するデッドレタージャーナルのパスを設定する.
+     * @param deadLetterFile デッドレタージャーナルのパス
+     */
+    public final void setDeadLetterFile(String deadLetterFile) {
+        if (deadLetterFile != null && !("".equals(deadLetterFile.trim()))) {
+            this.deadLetterFile = deadLetterFile.trim();
         }
     }
 
@@ -212,316 +699,1630 @@ public class RecoveryManager {
     }
 
     /**
-     * リカバリの実行.
-     * @throws Exception エラー発生時の例外
+     * インデックス単位のリカバリを並列に実行するワーカー数を設定する（デフォルト：1）.
+     * @param indexThreads ワーカー数
      */
-    public void recovery() throws Exception {
+    public final void setIndexThreads(String indexThreads) {
+        this.indexThreads = parsePositiveInt(Recovery.INDEX_THREADS, indexThreads, this.indexThreads,
+                DEFAULT_INDEX_THREADS);
+    }
 
-        // EsRecovery
-        try {
-            this.recovery = new EsRecovery();
-            // this.recovery.setRoutingFlag(this.routingFlag);
-            this.recovery.init(esHosts, esClusetrName);
-        } catch (Exception e) {
-            e.printStackTrace();
-            log.error("elasticsearch Connection error");
-            throw e;
-        }
+    /**
+     * パイプラインの変換ステージのスレッド数を設定する（デフォルト：1）.
+     * @param mapperThreads 変換ステージのスレッド数
+     */
+    public final void setMapperThreads(String mapperThreads) {
+        this.mapperThreads = parsePositiveInt(Recovery.PIPELINE_MAPPER_THREADS, mapperThreads, this.mapperThreads,
+                DEFAULT_PIPELINE_THREADS);
+    }
 
-        if ((null == this.indexNames) || (null == this.indexNames[0])) {
-            // インデックスが指定されなかったらマスタのデータベース名を一覧取得
-            readDatabaseList();
+    /**
+     * パイプライン毎に同時に実行するバルク登録数を設定する（デフォルト：1）.
+     * 同時に実行するバルク登録数の上限が設定されていない場合に、上限を求めるために使用する.
+     * @param senderThreads パイプライン毎に同時に実行するバルク登録数
+     */
+    public final void setSenderThreads(String senderThreads) {
+        this.senderThreads = parsePositiveInt(Recovery.PIPELINE_SENDER_THREADS, senderThreads, this.senderThreads,
+                DEFAULT_PIPELINE_THREADS);
+    }
+
+    /**
+     * 全パイプラインで同時に実行するバルク登録数の上限を設定する
+     * （デフォルト：パイプライン毎のバルク登録数×インデックス並列数×テーブル並列数）.
+     * @param bulkInflight 同時に実行するバルク登録数の上限
+     */
+    public final void setBulkInflight(String bulkInflight) {
+        this.bulkInflight = parsePositiveInt(Recovery.BULK_INFLIGHT, bulkInflight, this.bulkInflight,
+                DEFAULT_BULK_INFLIGHT);
+    }
+
+    /**
+     * ユーザのインデックスのCellを、インデックスを跨いでまとめてu0_adへ登録するかどうかを設定する（デフォルト：true）.
+     * falseの場合は、ページ毎にu0_adへ同期で登録する.
+     * @param cellStream まとめて登録する場合はtrue
+     */
+    public final void setCellStream(String cellStream) {
+        if (cellStream != null && !("".equals(cellStream))) {
+            this.cellStreamEnabled = Boolean.parseBoolean(cellStream.trim());
         }
+    }
 
-        log.info(String.format("Elasticsearch Recovery Start. [indexNum=%d]", indexNames.length));
+    /**
+     * まとめて登録するCellの、1回のバルク登録の件数の上限を設定する（デフォルト：1000）.
+     * @param cellStreamDocs 1回のバルク登録の件数の上限
+     */
+    public final void setCellStreamDocs(String cellStreamDocs) {
+        this.cellStreamDocs = parsePositiveInt(Recovery.CELL_STREAM_DOCS, cellStreamDocs, this.cellStreamDocs,
+                DEFAULT_CELL_STREAM_DOCS);
+    }
 
-        int count = 0;
-        for (String index : this.indexNames) {
+    /**
+     * まとめて登録するCellの、1回のバルク登録の推定サイズ(バイト)の上限を設定する（デフォルト：5MB）.
+     * @param cellStreamBytes 1回のバルク登録の推定サイズの上限
+     */
+    public final void setCellStreamBytes(String cellStreamBytes) {
+        this.cellStreamBytes = parsePositiveInt(Recovery.CELL_STREAM_BYTES, cellStreamBytes, this.cellStreamBytes,
+                DEFAULT_BULK_BYTES);
+    }
 
-            log.info(String.format("%s Recovery Start. [%d/%d]", index, ++count, indexNames.length));
+    /**
+     * まとめて登録するCellを、件数・サイズが上限に達しなくても登録するまでの待ち時間(ミリ秒)を設定する（デフォルト：1000）.
+     * @param cellStreamInterval 待ち時間(ミリ秒)
+     */
+    public final void setCellStreamInterval(String cellStreamInterval) {
+        this.cellStreamInterval = parsePositiveInt(Recovery.CELL_STREAM_INTERVAL, cellStreamInterval,
+                this.cellStreamInterval, DEFAULT_CELL_STREAM_INTERVAL);
+    }
 
-            EsIndex esIndex = null;
-            if (index.endsWith(EsIndex.CATEGORY_AD)) {
-                esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_AD, 0, 0, this.recovery.getClient());
-            } else {
-                esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_USR, 0, 0, this.recovery.getClient());
-            }
-            if (isClear) {
-                // インデックス削除
-                log.info("Remove index  [" + index + "] Start");
-                try {
-                    esIndex.delete();
-                    log.info("Remove index  [" + index + "] End");
-                } catch (EsIndexMissingException e) {
-                    log.info("Index [" + index + "] does not exist on elasticsearch");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    log.error("Failed to delete elasticsearch index");
-                    throw e;
-                }
-            }
-            try {
-                // インデックス作成
-                log.info("Create index  [" + index + "] Start");
-                esIndex.create();
-                log.info("Create index  [" + index + "] End");
-            } catch (Exception e) {
-                if (!(e instanceof EsIndexAlreadyExistsException && index.endsWith(EsIndex.CATEGORY_AD))) {
-                    e.printStackTrace();
-                    log.error("Unable to create a new index [" + index
-                            + "]  as the same index already exists on elasticsearch");
-                    throw e;
-                }
-            }
-            try {
-                // インデックスのレプリカ数を0に設定する
-                Map<String, String> settings = new HashMap<String, String>();
-                settings.put("index.number_of_replicas", "0");
-                esIndex.updateSettings(index, settings);
+    /**
+     * 全インデックスのリカバリの前に、MySQLのデータ量からリカバリ計画を立てるかどうかを設定する（デフォルト：true）.
+     * 計画を立てる場合は、見積もった所要時間の長いインデックスから順にワーカーへ割り当て、計画と見積もりを出力する.
+     * @param plan 計画を立てる場合はtrue
+     */
+    public final void setPlan(String plan) {
+        if (plan != null && !("".equals(plan))) {
+            this.planEnabled = Boolean.parseBoolean(plan.trim());
+        }
+    }
 
-                // 不要Cellの削除
-                log.info("DeleteUnnecessaryCell index  [" + index + "] Start");
-                deleteUnnecessaryCell(esIndex);
-                log.info("DeleteUnnecessaryCell index  [" + index + "] End");
+    /**
+     * 所要時間の見積もりに使用する、1ワーカーが1秒あたりに登録するレコード件数を設定する（デフォルト：5000）.
+     * @param rowsPerSecond 1秒あたりのレコード件数
+     */
+    public final void setPlanRowsPerSecond(String rowsPerSecond) {
+        this.planRowsPerSecond = parsePositiveInt(Recovery.PLAN_ROWS, rowsPerSecond, this.planRowsPerSecond,
+                DEFAULT_PLAN_ROWS_PER_SECOND);
+    }
 
-                // インデックス毎にリカバリ
-                log.info("Recovery index  [" + index + "] Start");
-                recovery(index);
-                log.info("Recovery index  [" + index + "] End");
-            } finally {
-                // レプリカ数をリストアしたインデックスに設定する
-                Map<String, String> settings = new HashMap<String, String>();
-                settings.put("index.number_of_replicas", String.valueOf(getReplicas()));
-                esIndex.updateSettings(index, settings);
-            }
+    /**
+     * 所要時間の見積もりに使用する、1ワーカーが1秒あたりに登録するバイト数を設定する（デフォルト：10MB）.
+     * @param bytesPerSecond 1秒あたりのバイト数
+     */
+    public final void setPlanBytesPerSecond(String bytesPerSecond) {
+        this.planBytesPerSecond = parsePositiveInt(Recovery.PLAN_BYTES, bytesPerSecond, this.planBytesPerSecond,
+                DEFAULT_PLAN_BYTES_PER_SECOND);
+    }
 
-            log.info(String.format("%s Recovery End. [%d/%d]", index, count, indexNames.length));
+    /**
+     * 新しく作成するインデックスのシャード数を、MySQLのデータ量から決めるかどうかを設定する（デフォルト：false）.
+     * 決める場合は、ESのHTTP APIでインデックステンプレートを登録するため、HTTPのポートへ接続できること.
+     * 差分リカバリ・ダンプファイルからのリカバリでは決めない.
+     * @param planShards シャード数を決める場合はtrue
+     */
+    public final void setPlanShards(String planShards) {
+        if (planShards != null && !("".equals(planShards))) {
+            this.planShards = Boolean.parseBoolean(planShards.trim());
         }
+    }
 
-        log.info("Elasticsearch Recovery End.");
+    /**
+     * シャード数を決める際の、1シャードあたりのMySQLのデータ量(MB)を設定する（デフォルト：30720）.
+     * @param shardSize 1シャードあたりのデータ量(MB)
+     */
+    public final void setPlanShardSize(String shardSize) {
+        this.planShardSize = parsePositiveInt(Recovery.PLAN_SHARD_SIZE, shardSize, this.planShardSize,
+                DEFAULT_PLAN_SHARD_SIZE);
     }
 
-    private void recovery(String index) throws Exception {
-        // DataBundle名：u0_ad
-        final String dataBundleAdName = this.unitPrefix + "_" + EsIndex.CATEGORY_AD;
+    /**
+     * 決めるシャード数の上限を設定する（デフォルト：30）.
+     * @param shardMax シャード数の上限
+     */
+    public final void setPlanShardMax(String shardMax) {
+        this.planShardMax = parsePositiveInt(Recovery.PLAN_SHARD_MAX, shardMax, this.planShardMax,
+                DEFAULT_PLAN_SHARD_MAX);
+    }
 
-        Statement stmt = null;
-        Connection con = null;
-        ResultSet rs = null;
-        ResultSet rsCnt = null;
-        int cnt = 0;
-        try {
-            // JDBC Driver の登録
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-        } catch (Exception e) {
-            e.printStackTrace();
-            log.error("Failed to load JDBC driver");
-            throw e;
+    /**
+     * 一括登録中にインデックスへ適用する設定のプロファイルを設定する（デフォルト：none）.
+     * <ul>
+     * <li>none：レプリカ数以外は変更しない</li>
+     * <li>bulk：リフレッシュを止め(index.refresh_interval=-1)、トランザクションログのフラッシュを減らし
+     * (index.translog.flush_threshold_size=1gb)、マージのI/O制限を外す(index.store.throttle.type=none)</li>
+     * </ul>
+     * 変更した設定は、一括登録後にインデックスの元の設定へ戻す.
+     * none以外の場合は、元の設定をESのHTTP APIで取得するため、HTTPのポートへ接続できること.
+     * @param profile プロファイル名
+     */
+    public final void setBulkLoadProfile(String profile) {
+        if (profile != null && !("".equals(profile))) {
+            String value = profile.trim().toLowerCase();
+            if (BulkLoadProfile.NONE.equals(value) || BulkLoadProfile.BULK.equals(value)) {
+                this.bulkLoadProfileName = value;
+            } else {
+                String format = "configuration parameter value failed(%s), use default value. [%s -> %s]";
+                log.warn(String.format(format, Recovery.BULKLOAD_PROFILE, profile, BulkLoadProfile.NONE));
+                this.bulkLoadProfileName = BulkLoadProfile.NONE;
+            }
         }
-        // DBへの接続
-        con = getMySqlConnection(index);
+    }
 
-        try {
-            // SQL ステートメント・オブジェクトの作成
-            stmt = con.createStatement();
-            // SQL ステートメントの発行
-            for (int i = 0; i < TABLE_TYPES.length; i++) {
-                ITableHandler handler = TABLE_HANDLERS[i];
-                rsCnt = stmt.executeQuery(handler.getSelectCountTableSqlString(index, TABLE_TYPES[i]));
-                if (rsCnt.next()) {
-                    cnt = rsCnt.getInt("CNT");
-                }
-                List<DcBulkResponse> responseList = new ArrayList<DcBulkResponse>();
-                try {
-                    // ESへのリストア用テーブルを作成して、データをコピーする。これにより、シーケンス番号が付加されたテーブルとなる。
-                    copyTableForRecovery(index, handler, stmt, cnt);
+    /**
+     * 一括登録中に適用する設定を、プロファイルに追加・上書きする（カンマ区切りの項目名=値）.
+     * 例：index.merge.scheduler.max_thread_count=1,index.refresh_interval=30s
+     * @param settings 追加・上書きする設定
+     */
+    public final void setBulkLoadSettings(String settings) {
+        if (settings != null && !("".equals(settings.trim()))) {
+            this.bulkLoadSettings = settings.trim();
+        }
+    }
 
-                    // フェッチ件数ごとにリカバリを行う
-                    int count = 0;
-                    for (int current = 0; current < cnt; current += this.executeCnt) {
+    /**
+     * インデックスに明示的に設定されていない項目を一括登録後に戻す値を設定する（カンマ区切りの項目名=値）.
+     * ESのデフォルト値が分からない項目は、元に戻せないため一括登録中も適用しない.
+     * @param defaults 設定項目名と一括登録後に戻す値
+     */
+    public final void setBulkLoadDefaults(String defaults) {
+        if (defaults != null && !("".equals(defaults.trim()))) {
+            this.bulkLoadDefaults = defaults.trim();
+        }
+    }
 
-                        String sqlstatement = handler.getSelectTableSqlString(index, current + 1, current
-                                + this.executeCnt);
-                        rs = stmt.executeQuery(sqlstatement);
+    /**
+     * 一括登録用に変更したインデックスの元の設定を記録するファイルのパスを設定する.
+     * 異常終了した場合は、次回の実行時にこのファイルから元の設定へ戻す.
+     * @param stateFile 記録ファイルのパス
+     */
+    public final void setBulkLoadStateFile(String stateFile) {
+        if (stateFile != null && !("".equals(stateFile.trim()))) {
+            this.bulkLoadStateFile = stateFile.trim();
+        }
+    }
+
+    /**
+     * 一括登録後の後処理を行うかどうかを設定する（デフォルト：false）.
+     * 行う場合は、セグメントのマージ、リフレッシュ、レプリカ数の復元の後、レプリカの割り当てを待つ.
+     * @param post 後処理を行う場合はtrue
+     */
+    public final void setBulkLoadPost(String post) {
+        if (post != null && !("".equals(post))) {
+            this.bulkLoadPost = Boolean.parseBoolean(post.trim());
+        }
+    }
+
+    /**
+     * 一括登録後の後処理で、マージ後のシャードあたりのセグメント数を設定する（デフォルト：1）.
+     * @param segments セグメント数
+     */
+    public final void setBulkLoadMergeSegments(String segments) {
+        this.bulkLoadMergeSegments = parsePositiveInt(Recovery.BULKLOAD_MERGE_SEGMENTS, segments,
+                this.bulkLoadMergeSegments, DEFAULT_BULKLOAD_MERGE_SEGMENTS);
+    }
+
+    /**
+     * 一括登録後の後処理で、セグメントのマージの完了を待つ時間(秒)を設定する（デフォルト：3600）.
+     * @param timeout 待ち合わせる時間(秒)
+     */
+    public final void setBulkLoadMergeTimeout(String timeout) {
+        this.bulkLoadMergeTimeout = parsePositiveInt(Recovery.BULKLOAD_MERGE_TIMEOUT, timeout,
+                this.bulkLoadMergeTimeout, DEFAULT_BULKLOAD_MERGE_TIMEOUT);
+    }
+
+    /**
+     * パイプラインのステージ間のキューの容量（ページ数）を設定する（デフォルト：1）.
+     * @param queueSize キューの容量
+     */
+    public final void setPipelineQueueSize(String queueSize) {
+        this.pipelineQueueSize = parsePositiveInt(Recovery.PIPELINE_QUEUE_SIZE, queueSize, this.pipelineQueueSize,
+                DEFAULT_PIPELINE_QUEUE_SIZE);
+    }
+
+    /**
+     * 1回のバルク登録の目標サイズ(バイト)を設定する（デフォルト：5MB）.
+     * ドキュメントの推定サイズの合計が目標サイズに達した時点でバルク登録の単位を区切る.
+     * @param bulkBytes 目標サイズ(バイト)
+     */
+    public final void setBulkBytes(String bulkBytes) {
+        this.bulkBytes = parsePositiveInt(Recovery.BULK_BYTES, bulkBytes, this.bulkBytes, DEFAULT_BULK_BYTES);
+    }
+
+    /**
+     * 1回のバルク登録の最大件数を設定する（デフォルト：10000）.
+     * ページの件数（io.personium.core.execute.count）を超えるバルク登録は行わない.
+     * @param bulkMaxDocs 最大件数
+     */
+    public final void setBulkMaxDocs(String bulkMaxDocs) {
+        this.bulkMaxDocs = parsePositiveInt(Recovery.BULK_MAX_DOCS, bulkMaxDocs, this.bulkMaxDocs,
+                DEFAULT_BULK_MAX_DOCS);
+    }
+
+    /**
+     * バルク登録の目標サイズを応答時間と拒否の発生状況から調整するかどうかを設定する（デフォルト：false）.
+     * @param bulkAdaptive 調整する場合はtrue
+     */
+    public final void setBulkAdaptive(String bulkAdaptive) {
+        if (bulkAdaptive != null && !("".equals(bulkAdaptive))) {
+            this.bulkAdaptive = Boolean.parseBoolean(bulkAdaptive.trim());
+        }
+    }
+
+    /**
+     * 目標サイズを調整する場合の下限(バイト)を設定する（デフォルト：1MB）.
+     * @param bulkBytesMin 目標サイズの下限(バイト)
+     */
+    public final void setBulkBytesMin(String bulkBytesMin) {
+        this.bulkBytesMin = parsePositiveInt(Recovery.BULK_BYTES_MIN, bulkBytesMin, this.bulkBytesMin,
+                DEFAULT_BULK_BYTES_MIN);
+    }
+
+    /**
+     * 目標サイズを調整する場合の上限(バイト)を設定する（デフォルト：32MB）.
+     * @param bulkBytesMax 目標サイズの上限(バイト)
+     */
+    public final void setBulkBytesMax(String bulkBytesMax) {
+        this.bulkBytesMax = parsePositiveInt(Recovery.BULK_BYTES_MAX, bulkBytesMax, this.bulkBytesMax,
+                DEFAULT_BULK_BYTES_MAX);
+    }
+
+    /**
+     * 目標サイズを調整する場合の目標応答時間(ミリ秒)を設定する（デフォルト：1000）.
+     * @param bulkLatencyTarget 目標応答時間(ミリ秒)
+     */
+    public final void setBulkLatencyTarget(String bulkLatencyTarget) {
+        this.bulkLatencyTarget = parsePositiveInt(Recovery.BULK_LATENCY_TARGET, bulkLatencyTarget,
+                this.bulkLatencyTarget, DEFAULT_BULK_LATENCY_TARGET);
+    }
+
+    /**
+     * 1以上の整数値の設定値を解析する.
+     * @param key 設定項目名
+     * @param value 設定値
+     * @param current 設定値が指定されていない場合の値
+     * @param defaultValue 設定値が不正な場合の値
+     * @return 解析した値
+     */
+    private int parsePositiveInt(String key, String value, int current, int defaultValue) {
+        if (value == null || "".equals(value)) {
+            return current;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= 1) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            log.debug("invalid number", e);
+        }
+        String format = "configuration parameter value failed(%s), use default value. [%s -> %d]";
+        log.warn(String.format(format, key, value, defaultValue));
+        return defaultValue;
+    }
+
+    /**
+     * インデックス内のテーブルごとのリカバリを並列に実行するかどうかを設定する（デフォルト：false）.
+     * @param tableParallel trueの場合は並列に実行する
+     */
+    public final void setTableParallel(String tableParallel) {
+        if (tableParallel != null && !("".equals(tableParallel))) {
+            this.tableParallel = Boolean.parseBoolean(tableParallel.trim());
+        }
+    }
+
+    /**
+     * リカバリ対象レコードの読み込み方式を設定する（デフォルト：keyset）.
+     * keyset：リカバリ元テーブルを主キー順に直接読み込む。copy：リカバリ用一時テーブルへコピーしてから読み込む。
+     * @param readerType 読み込み方式
+     */
+    public final void setReaderType(String readerType) {
+        if (readerType != null && !("".equals(readerType))) {
+            String value = readerType.trim().toLowerCase();
+            if (READER_KEYSET.equals(value) || READER_COPY.equals(value)) {
+                this.readerType = value;
+            } else {
+                String format = "configuration parameter value failed(%s), use default value. [%s -> %s]";
+                log.warn(String.format(format, Recovery.READER_TYPE, readerType, READER_KEYSET));
+                this.readerType = READER_KEYSET;
+            }
+        }
+    }
+
+    /**
+     * リカバリの実行.
+     * インデックスごとのリカバリはワーカースレッドで並列に実行し、
+     * あるインデックスで失敗しても他のインデックスのリカバリは継続する.
+     * @throws Exception エラー発生時の例外
+     */
+    public void recovery() throws Exception {
+        scanDump();
+        openConnectionPool();
+        try {
+            recoverIndexes();
+        } finally {
+            this.connectionPool.close();
+            if (this.metrics != null) {
+                this.metrics.stop();
+                this.throttle.stop();
+                this.bulkWindow.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 全インデックスのリカバリを行う.
+     * @throws Exception エラー発生時の例外
+     */
+    private void recoverIndexes() throws Exception {
+        if ((null == this.indexNames) || (null == this.indexNames[0])) {
+            // インデックスが指定されなかったらマスタのデータベース名を一覧取得
+            readDatabaseList();
+        }
+
+        prepareBulkControl();
+        this.checkpoint = RecoveryCheckpoint.open(this.checkpointFile, this.resume);
+        if (this.rebuild) {
+            this.rebuildVersion = new SimpleDateFormat(REBUILD_VERSION_FORMAT).format(new Date());
+            this.aliasClient = new EsAliasClient(this.esHosts, this.esHttpPort);
+        }
+        prepareBulkLoad();
+        planRecovery();
+        this.cellCleaner = new UnnecessaryCellCleaner(this.unitPrefix + "_" + EsIndex.CATEGORY_AD,
+                this.cellDeleteBulkSize, this.cellDeleteThreads, this.esHosts, this.esClusetrName, this.esHttpPort);
+        if (this.cellStreamEnabled) {
+            this.cellStream = new CellBulkStream(createEsRecovery(), this.responseChecker, this.bulkWindow,
+                    this.metrics, this.throttle, new CellTableHandler().getTableName(), this.unitPrefix,
+                    this.cellStreamDocs, this.cellStreamBytes, this.cellStreamInterval);
+            this.cellStream.start();
+        }
+
+        log.info(String.format("Elasticsearch Recovery Start. [indexNum=%d, workers=%d]",
+                indexNames.length, this.indexThreads));
+
+        final String dataBundleAdName = this.unitPrefix + "_" + EsIndex.CATEGORY_AD;
+        final AtomicInteger count = new AtomicInteger(0);
+        final List<String> failedIndexes = Collections.synchronizedList(new ArrayList<String>());
+        ExecutorService executor = Executors.newFixedThreadPool(this.indexThreads,
+                new RecoveryThreadFactory("index-worker"));
+        try {
+            // u0_adは他のインデックスのCellも格納するため、他のインデックスより先に単独でリカバリする
+            String first = null;
+            List<String> others = new ArrayList<String>();
+            for (String index : this.indexNames) {
+                if (this.checkpoint.isIndexDone(index)) {
+                    count.incrementAndGet();
+                    log.info(String.format("%s already recovered. Skipped.", index));
+                } else if (index.equals(dataBundleAdName)) {
+                    first = index;
+                } else {
+                    others.add(index);
+                }
+            }
+            if (this.plan != null) {
+                others = this.plan.order(others);
+                this.plan.report(first, others, this.indexThreads);
+            }
+            if (first != null) {
+                waitForIndexRecovery(submitIndexRecovery(executor, first, count, failedIndexes));
+            }
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (String index : others) {
+                futures.add(submitIndexRecovery(executor, index, count, failedIndexes));
+            }
+            for (Future<?> future : futures) {
+                waitForIndexRecovery(future);
+            }
+        } finally {
+            executor.shutdownNow();
+            closeCellStream(failedIndexes);
+            this.deadLetterJournal.close();
+        }
+
+        if (!failedIndexes.isEmpty()) {
+            String message = String.format("Failed to recover index. [failed=%d/%d] %s",
+                    failedIndexes.size(), indexNames.length, failedIndexes.toString());
+            log.error(message);
+            throw new RecoveryException(message);
+        }
+        checkDeadLetters();
+        this.checkpoint.delete();
+        log.info(String.format("Memory budget peak %d / %d bytes", this.memoryBudget.getPeak(),
+                this.memoryBudget.getLimit()));
+        log.info("Elasticsearch Recovery End.");
+    }
+
+    /**
+     * 一括登録中に適用する設定のプロファイルを準備する.
+     * 前回の実行が異常終了し、一括登録用の設定のまま残ったインデックスがあれば、記録した元の設定へ戻す.
+     * @throws Exception 記録ファイルの読み書き、または設定の変更に失敗した場合
+     */
+    private void prepareBulkLoad() throws Exception {
+        this.bulkLoadProfile = new BulkLoadProfile(this.bulkLoadProfileName, this.bulkLoadSettings,
+                this.bulkLoadDefaults);
+        if ((!this.bulkLoadProfile.getSettings().isEmpty() || this.bulkLoadPost) && this.aliasClient == null) {
+            this.aliasClient = new EsAliasClient(this.esHosts, this.esHttpPort);
+        }
+        this.bulkLoadState = BulkLoadState.open(this.bulkLoadStateFile);
+        Set<String> pending = this.bulkLoadState.getIndices();
+        if (pending.isEmpty()) {
+            return;
+        }
+        EsRecovery esRecovery = createEsRecovery();
+        try {
+            for (String index : pending) {
+                Map<String, String> settings = this.bulkLoadState.get(index);
+                log.warn("Restore index settings left by the previous run [" + index + "] " + settings);
+                String category = EsIndex.CATEGORY_USR;
+                if (index.endsWith(EsIndex.CATEGORY_AD)) {
+                    category = EsIndex.CATEGORY_AD;
+                }
+                try {
+                    new EsIndexImpl(index, category, 0, 0, esRecovery.getClient()).updateSettings(index, settings);
+                } catch (EsIndexMissingException e) {
+                    log.info("Index [" + index + "] does not exist on elasticsearch");
+                }
+                this.bulkLoadState.remove(index);
+            }
+        } finally {
+            esRecovery.close();
+        }
+    }
+
+    /**
+     * 一括登録前に、プロファイルの設定とレプリカ数0をインデックスに適用する.
+     * 適用する前に元の設定を記録ファイルへ記録する。インデックスに明示的に設定されていない項目は、
+     * プロファイルのデフォルト値を元の設定とし、デフォルト値が分からない項目は適用しない.
+     * @param esIndex インデックス
+     * @param name インデックス名
+     * @throws Exception 記録ファイルの書き込み、または設定の取得・変更に失敗した場合
+     */
+    private void applyBulkLoadSettings(EsIndex esIndex, String name) throws Exception {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        Map<String, String> restore = this.bulkLoadState.get(name);
+        if (restore != null) {
+            // 元に戻せずに残った記録は、一括登録用の値ではなく元の設定を保持しているため、そのまま引き継ぐ
+            for (Map.Entry<String, String> setting : this.bulkLoadProfile.getSettings().entrySet()) {
+                if (restore.containsKey(setting.getKey())) {
+                    settings.put(setting.getKey(), setting.getValue());
+                }
+            }
+        } else {
+            Map<String, String> current = new HashMap<String, String>();
+            if (!this.bulkLoadProfile.getSettings().isEmpty()) {
+                current = this.aliasClient.getSettings(name);
+            }
+            restore = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> setting : this.bulkLoadProfile.getSettings().entrySet()) {
+                String original = current.get(setting.getKey());
+                if (original == null) {
+                    original = this.bulkLoadProfile.getDefault(setting.getKey());
+                }
+                if (original == null) {
+                    log.warn("Index setting [" + setting.getKey() + "] is not applied to [" + name
+                            + "] since its original value is unknown.");
+                    continue;
+                }
+                restore.put(setting.getKey(), original);
+                settings.put(setting.getKey(), setting.getValue());
+            }
+            restore.put(REPLICAS_SETTING, String.valueOf(getReplicas()));
+            this.bulkLoadState.record(name, restore);
+        }
+        settings.put(REPLICAS_SETTING, "0");
+        esIndex.updateSettings(name, settings);
+        log.info("Apply bulk load settings [" + name + "] " + settings);
+    }
+
+    /**
+     * 一括登録用に変更したインデックスの設定とレプリカ数を、記録した元の設定へ戻す.
+     * 一括登録が完了した場合は、後処理としてセグメントのマージ(指定時)とリフレッシュを行ってからレプリカ数を戻す.
+     * @param esIndex インデックス
+     * @param name インデックス名
+     * @param esRecovery リフレッシュに使用するEsRecovery
+     * @param loaded 一括登録が完了した場合はtrue
+     * @throws Exception 記録ファイルの書き込み、または設定の変更・マージ・リフレッシュに失敗した場合
+     */
+    private void restoreBulkLoadSettings(EsIndex esIndex, String name, EsRecovery esRecovery, boolean loaded)
+            throws Exception {
+        Map<String, String> restore = this.bulkLoadState.get(name);
+        if (restore == null) {
+            restore = new HashMap<String, String>();
+        }
+        Map<String, String> replicas = new HashMap<String, String>();
+        replicas.put(REPLICAS_SETTING, String.valueOf(getReplicas()));
+        if (restore.containsKey(REPLICAS_SETTING)) {
+            replicas.put(REPLICAS_SETTING, restore.remove(REPLICAS_SETTING));
+        }
+        if (loaded && this.bulkLoadPost) {
+            log.info("Optimize index  [" + name + "] Start");
+            this.aliasClient.optimize(name, this.bulkLoadMergeSegments, this.bulkLoadMergeTimeout);
+            log.info("Optimize index  [" + name + "] End");
+        }
+        if (!restore.isEmpty()) {
+            esIndex.updateSettings(name, restore);
+            log.info("Restore index settings [" + name + "] " + restore);
+        }
+        if (loaded) {
+            esRecovery.refreshIndex(name);
+        }
+        // レプリカの複製はセグメント単位で行うため、マージ・リフレッシュの後にレプリカ数を戻す
+        esIndex.updateSettings(name, replicas);
+        this.bulkLoadState.remove(name);
+    }
+
+    /**
+     * MySQLのデータ量を読み込み、インデックスの処理順序とシャード数を計画する.
+     * データ量を読み込めない場合は、計画せずにデータベースの一覧の順に処理する.
+     * @throws Exception コネクションの取得・解放に失敗した場合
+     */
+    private void planRecovery() throws Exception {
+        if (!this.planEnabled) {
+            return;
+        }
+        String[] tableNames = new String[TABLE_HANDLERS.length];
+        for (int i = 0; i < TABLE_HANDLERS.length; i++) {
+            tableNames[i] = TABLE_HANDLERS[i].getTableName();
+        }
+        RecoveryPlan recoveryPlan = new RecoveryPlan(this.planRowsPerSecond, this.planBytesPerSecond);
+        if (this.dumpIndex != null) {
+            recoveryPlan.readTableSizes(this.dumpIndex, tableNames);
+        } else {
+            Connection con = this.connectionPool.getConnection(null);
+            try {
+                recoveryPlan.readTableSizes(con, tableNames);
+            } catch (SQLException e) {
+                log.warn("Failed to read table sizes from information_schema. Recovery is not planned. "
+                        + e.toString());
+                return;
+            } finally {
+                closeConnection(con);
+            }
+            if (this.planShards && !isDelta()) {
+                recoveryPlan.planShards(this.planShardSize * BYTES_PER_MEGABYTE, this.planShardMax,
+                        this.unitPrefix + "_" + EsIndex.CATEGORY_AD);
+                if (this.aliasClient == null) {
+                    this.aliasClient = new EsAliasClient(this.esHosts, this.esHttpPort);
+                }
+            }
+        }
+        this.plan = recoveryPlan;
+    }
+
+    /**
+     * インデックスを作成する.
+     * 計画したシャード数がある場合は、ESアダプタではシャード数を指定して作成できないため、
+     * 作成するインデックスにのみ適用するインデックステンプレートを作成の間だけ登録して指定する.
+     * @param esIndex 作成するインデックス
+     * @param name 作成するインデックス名
+     * @param index 計画したインデックス名（再構築の場合は元のインデックス名）
+     * @throws Exception 作成に失敗した場合
+     */
+    private void createIndex(EsIndex esIndex, String name, String index) throws Exception {
+        int shards = 0;
+        if (this.plan != null) {
+            shards = this.plan.getShards(index);
+        }
+        if (shards == 0) {
+            esIndex.create();
+            return;
+        }
+        String template = PLAN_TEMPLATE_PREFIX + name;
+        this.aliasClient.putShardTemplate(template, name, shards);
+        try {
+            esIndex.create();
+            log.info(String.format("Index [%s] is created with %d shards", name, shards));
+        } finally {
+            this.aliasClient.deleteTemplate(template);
+        }
+    }
+
+    /**
+     * インデックスへ登録するドキュメントの登録先シャードの計算に使用するルーティングを取得する.
+     * @param index インデックス名
+     * @return ルーティング、シャード毎にまとめない場合はnull
+     */
+    private ShardRouting shardRoutingOf(String index) {
+        if (this.shardRouting == null || this.plan == null || this.plan.getShards(index) == 0) {
+            return this.shardRouting;
+        }
+        return new ShardRouting(this.plan.getShards(index));
+    }
+
+    /**
+     * まとめて登録しているCellを全て登録し、登録結果の確認まで完了させる.
+     * Cellの登録に失敗したインデックスは、リカバリに失敗したインデックスとして扱う.
+     * @param failedIndexes リカバリに失敗したインデックスの一覧
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private void closeCellStream(List<String> failedIndexes) throws InterruptedException {
+        if (this.cellStream == null) {
+            return;
+        }
+        this.cellStream.close();
+        for (String index : this.cellStream.getFailedIndices()) {
+            if (!failedIndexes.contains(index)) {
+                failedIndexes.add(index);
+            }
+        }
+        this.cellStream = null;
+    }
+
+    /**
+     * インデックスのリカバリ完了をチェックポイントへ記録する.
+     * Cellをまとめて登録している場合は、それまでに追加したCellの登録結果の確認が完了してから記録する.
+     * @param index インデックス名
+     * @throws Exception 記録に失敗した場合
+     */
+    private void markIndexDone(final String index) throws Exception {
+        if (this.cellStream == null) {
+            this.checkpoint.markIndexDone(index);
+            return;
+        }
+        this.cellStream.afterFlushed(new CellBulkStream.Listener() {
+            @Override
+            public void onFlushed() throws Exception {
+                checkpoint.markIndexDone(index);
+            }
+        });
+    }
+
+    /**
+     * テーブルのリカバリ完了をチェックポイントへ記録する.
+     * Cellをまとめて登録している場合は、それまでに追加したCellの登録結果の確認が完了してから記録する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @throws Exception 記録に失敗した場合
+     */
+    private void markTableDone(final String index, final String tableName) throws Exception {
+        if (this.cellStream == null) {
+            this.checkpoint.markTableDone(index, tableName);
+            return;
+        }
+        this.cellStream.afterFlushed(new CellBulkStream.Listener() {
+            @Override
+            public void onFlushed() throws Exception {
+                checkpoint.markTableDone(index, tableName);
+            }
+        });
+    }
+
+    /**
+     * 指定したCellに属するデータのみをリカバリする.
+     * インデックスの削除・不要Cellの削除・レプリカ数の変更は行わず、Cellのドキュメントはu0_adへ、
+     * それ以外のドキュメントはインデックスへ上書き登録する.
+     * 進捗はファイルに記録せず、中断した場合は最初からやり直す.
+     * @param index Cellが属するインデックス名
+     * @throws Exception エラー発生時の例外
+     */
+    public void recoverCell(String index) throws Exception {
+        EsRecovery esRecovery = createEsRecovery();
+        try {
+            recoverCell(index, esRecovery);
+        } finally {
+            esRecovery.close();
+        }
+    }
+
+    /**
+     * 指定したCellに属するデータのみをリカバリする.
+     * @param index Cellが属するインデックス名
+     * @param esRecovery 使用するEsRecovery
+     * @throws Exception エラー発生時の例外
+     */
+    private void recoverCell(String index, EsRecovery esRecovery) throws Exception {
+        scanDump();
+        openConnectionPool();
+        try {
+            prepareBulkControl();
+            this.checkpoint = RecoveryCheckpoint.inMemory();
+            EsIndex esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient());
+            try {
+                // インデックスが存在しない場合のみ作成する
+                esIndex.create();
+                log.info("Create index  [" + index + "] End");
+            } catch (EsIndexAlreadyExistsException e) {
+                log.debug("Index [" + index + "] already exists");
+            }
+            log.info(String.format("Cell recovery [%s] in index [%s] Start", this.cellId, index));
+            recovery(index, esRecovery, null);
+        } finally {
+            this.connectionPool.close();
+            if (this.metrics != null) {
+                this.metrics.stop();
+                this.throttle.stop();
+                this.bulkWindow.shutdown();
+                this.deadLetterJournal.close();
+            }
+        }
+        checkDeadLetters();
+        log.info(String.format("Cell recovery [%s] End.", this.cellId));
+    }
+
+    /**
+     * ESへ登録せずに、MySQLからの読み込みとドキュメントへの変換、バルク登録のリクエストボディへの直列化までを行い、
+     * 処理性能(ドキュメント数/秒、バイト数/秒)とヒープ使用量を出力する.
+     * ESへは接続せず、インデックスの作成・削除や不要なCellの削除も行わない.
+     * チェックポイントはメモリ上にのみ保持し、ファイルには記録しない.
+     * @param outputPath リクエストボディをNDJSON形式で出力するファイルのパス、nullの場合は出力しない
+     * @throws Exception エラー発生時の例外
+     */
+    public void dryRun(String outputPath) throws Exception {
+        this.dryRunSink = new DryRunSink(outputPath);
+        scanDump();
+        openConnectionPool();
+        try {
+            if ((null == this.indexNames) || (null == this.indexNames[0])) {
+                readDatabaseList();
+            }
+            prepareBulkControl();
+            this.checkpoint = RecoveryCheckpoint.inMemory();
+            dryRunIndexes();
+        } finally {
+            this.dryRunSink.close();
+            this.connectionPool.close();
+            if (this.metrics != null) {
+                this.metrics.stop();
+                this.throttle.stop();
+                this.bulkWindow.shutdown();
+                this.deadLetterJournal.close();
+            }
+        }
+    }
+
+    /**
+     * 全インデックスのドライランを行い、結果を出力する.
+     * @throws Exception エラー発生時の例外
+     */
+    private void dryRunIndexes() throws Exception {
+        log.info(String.format("Dry run Start. [indexNum=%d, workers=%d]", indexNames.length, this.indexThreads));
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.indexThreads,
+                new RecoveryThreadFactory("index-worker"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final String index : this.indexNames) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        log.info(String.format("%s Dry run Start.", index));
+                        EsRecovery esRecovery = createEsRecovery();
                         try {
-                            DcBulkResponse res = this.recovery.bulk(index, TABLE_TYPES[i], rs, this.unitPrefix);
-                            if (res != null) {
-                                responseList.add(res); // CELLテーブルへの登録のみの場合、登録データなしの場合はnullが返却される
-                            }
-                            int regNum = this.recovery.getRestoredCount();
-
-                            // 各テーブル内のレコード件数を出力
-                            log.info(String.format("  type : %s [%d/%d]", handler.getCopiedTableName(), current
-                                    + regNum, cnt));
-                        } catch (Exception e) {
-                            // Elasticsearchで例外がスローされた場合は、レスポンスはチェックせずに終了する。
-                            e.printStackTrace();
-                            log.error("Failed to recover index data [" + index + "] on elasticsearch");
-                            throw e;
-                        }
-                        if (null != rs) {
-                            rs.close();
-                            rs = null;
-                        }
-                        // バルク登録の件数（パラメータで設定）ごとにレスポンスをチェックする。
-                        if (++count % this.checkCount == 0) {
-                            checkBulkResponses(index, responseList);
+                            recovery(index, esRecovery, null);
+                        } finally {
+                            esRecovery.close();
                         }
+                        log.info(String.format("%s Dry run End.", index));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RecoveryException("dry run failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1L);
+        long documents = this.dryRunSink.getDocuments();
+        long bytes = this.dryRunSink.getBytes();
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        log.info(String.format("Dry run End. [documents=%d, bytes=%d, elapsed=%dms, docs/sec=%.1f, bytes/sec=%.1f,"
+                + " heapUsed=%dMB, heapPeak=%dMB, heapMax=%dMB]", documents, bytes, elapsed,
+                documents * MILLIS_PER_SECOND / (double) elapsed, bytes * MILLIS_PER_SECOND / (double) elapsed,
+                heapUsed / BYTES_PER_MEGABYTE, heapPeak / BYTES_PER_MEGABYTE,
+                runtime.maxMemory() / BYTES_PER_MEGABYTE));
+    }
+
+    /**
+     * デッドレタージャーナルに記録されたドキュメントだけをMySQLから読み直してESへ再登録する.
+     * 読み込んだジャーナルは「.replayed.{退避した日時}」を付与した名前に退避し、再登録に失敗したドキュメントは
+     * 設定されたデッドレタージャーナルへ改めて記録する.
+     * 途中で異常終了した場合は、再登録を終えていないテーブルのドキュメントを指定されたジャーナルへ書き戻す.
+     * @param journalPath 再投入するデッドレタージャーナルのパス
+     * @throws Exception エラー発生時の例外
+     */
+    public void replay(String journalPath) throws Exception {
+        EsRecovery esRecovery = createEsRecovery();
+        try {
+            replay(journalPath, esRecovery);
+        } finally {
+            esRecovery.close();
+        }
+    }
+
+    /**
+     * デッドレタージャーナルに記録されたドキュメントだけをMySQLから読み直してESへ再登録する.
+     * @param journalPath 再投入するデッドレタージャーナルのパス
+     * @param esRecovery 使用するEsRecovery
+     * @throws Exception エラー発生時の例外
+     */
+    private void replay(String journalPath, EsRecovery esRecovery) throws Exception {
+        File source = new File(journalPath);
+        List<DeadLetterJournal.Entry> entries = DeadLetterJournal.read(source);
+        // 再登録に失敗したドキュメントを読み込み中のジャーナルへ追記しないよう、退避してから再登録する
+        // 以前の再投入で退避したジャーナルを上書きしないよう、退避先が既に存在する場合は中止する
+        File replayed = new File(journalPath + REPLAYED_JOURNAL_SUFFIX
+                + new SimpleDateFormat(REPLAYED_JOURNAL_TIME_FORMAT).format(new Date()));
+        try {
+            Files.move(source.toPath(), replayed.toPath());
+        } catch (IOException e) {
+            throw new RecoveryException("Failed to rename dead letter journal [" + journalPath + "] to ["
+                    + replayed.getPath() + "]", e);
+        }
+
+        // インデックス毎、テーブル毎にIDをまとめる
+        // ジャーナルは実行の度に追記されるため、同じIDが複数回記録されている場合は1件にまとめる
+        Map<String, Map<String, Set<String>>> targets = new LinkedHashMap<String, Map<String, Set<String>>>();
+        int documents = 0;
+        for (DeadLetterJournal.Entry entry : entries) {
+            Map<String, Set<String>> tables = targets.get(entry.getIndex());
+            if (tables == null) {
+                tables = new LinkedHashMap<String, Set<String>>();
+                targets.put(entry.getIndex(), tables);
+            }
+            Set<String> ids = tables.get(entry.getTableName());
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                tables.put(entry.getTableName(), ids);
+            }
+            if (ids.add(entry.getId())) {
+                documents++;
+            }
+        }
+
+        final String dataBundleAdName = this.unitPrefix + "_" + EsIndex.CATEGORY_AD;
+        boolean completed = false;
+        try {
+            prepareBulkControl();
+            openConnectionPool();
+            log.info(String.format("Dead letter replay Start. [indexNum=%d, documents=%d]", targets.size(),
+                    documents));
+            for (Map.Entry<String, Map<String, Set<String>>> target : targets.entrySet()) {
+                String index = target.getKey();
+                log.info("Replay index  [" + index + "] Start");
+                Connection con = getMySqlConnection(index);
+                try {
+                    Iterator<Map.Entry<String, Set<String>>> tables = target.getValue().entrySet().iterator();
+                    while (tables.hasNext()) {
+                        Map.Entry<String, Set<String>> table = tables.next();
+                        replayTable(index, table.getKey(), new ArrayList<String>(table.getValue()), con,
+                                esRecovery);
+                        // 再登録を終えたテーブルは、異常終了時の書き戻しの対象から外す
+                        tables.remove();
+                    }
+                } finally {
+                    closeConnection(con);
+                }
+                if (!index.equals(dataBundleAdName)) {
+                    esRecovery.refreshIndex(index);
+                }
+                log.info("Replay index  [" + index + "] End");
+            }
+            completed = true;
+        } finally {
+            // 準備の途中で失敗した場合も、準備済みのものだけを終了する
+            if (this.deadLetterJournal != null) {
+                this.deadLetterJournal.close();
+            }
+            if (!completed) {
+                restoreDeadLetters(journalPath, targets);
+            }
+            if (this.connectionPool != null) {
+                this.connectionPool.close();
+            }
+            if (this.metrics != null) {
+                this.metrics.stop();
+            }
+            if (this.throttle != null) {
+                this.throttle.stop();
+            }
+            if (this.bulkWindow != null) {
+                this.bulkWindow.shutdown();
+            }
+        }
+        checkDeadLetters();
+        log.info("Dead letter replay End.");
+    }
+
+    /**
+     * 再投入の中断時に、再登録を終えていないドキュメントをデッドレタージャーナルへ書き戻す.
+     * 書き戻しに失敗した場合も、退避したジャーナルに記録が残るため、ログ出力のみとする.
+     * @param journalPath 書き戻すデッドレタージャーナルのパス
+     * @param remaining 再登録を終えていないドキュメントのID(インデックス毎、テーブル毎)
+     */
+    private void restoreDeadLetters(String journalPath, Map<String, Map<String, Set<String>>> remaining) {
+        DeadLetterJournal journal = new DeadLetterJournal(journalPath);
+        try {
+            for (Map.Entry<String, Map<String, Set<String>>> target : remaining.entrySet()) {
+                for (Map.Entry<String, Set<String>> table : target.getValue().entrySet()) {
+                    for (String id : table.getValue()) {
+                        journal.write(target.getKey(), table.getKey(), id, REPLAY_ABORTED_REASON);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Failed to write back dead letters not replayed to [" + journalPath + "]");
+        } finally {
+            journal.close();
+        }
+        if (journal.getCount() > 0) {
+            log.warn(String.format("%d documents not replayed are written back to dead letter journal [%s]",
+                    journal.getCount(), journalPath));
+        }
+    }
+
+    /**
+     * 1テーブル分の指定されたIDのドキュメントを再登録する.
+     * @param index インデックス名
+     * @param tableName テーブル名
+     * @param ids 再登録するドキュメントのID
+     * @param con MySQLコネクション
+     * @param esRecovery 使用するEsRecovery
+     * @throws Exception エラー発生時の例外
+     */
+    private void replayTable(String index, String tableName, List<String> ids, Connection con,
+            EsRecovery esRecovery) throws Exception {
+        ITableHandler handler = null;
+        for (ITableHandler candidate : TABLE_HANDLERS) {
+            if (candidate.getTableName().equals(tableName)) {
+                handler = candidate;
+            }
+        }
+        if (handler == null) {
+            log.warn(String.format("Unknown table in dead letter journal ignored. [%s.%s]", index, tableName));
+            return;
+        }
+
+        int found = 0;
+        for (int from = 0; from < ids.size(); from += this.executeCnt) {
+            List<String> chunk = ids.subList(from, Math.min(from + this.executeCnt, ids.size()));
+            this.throttle.acquireRows(chunk.size());
+            PreparedStatement stmt = con.prepareStatement(handler.getSelectTableByIdsSqlString(index, chunk.size()));
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                long start = System.currentTimeMillis();
+                ResultSet rs = stmt.executeQuery();
+                this.metrics.record(RecoveryMetrics.Stage.SELECT, System.currentTimeMillis() - start);
+                try {
+                    start = System.currentTimeMillis();
+                    List<EsBulkBatch> batches = esRecovery.map(index, tableName, rs, this.unitPrefix,
+                            this.sizeController, this.shardRouting);
+                    this.metrics.record(RecoveryMetrics.Stage.MAP, System.currentTimeMillis() - start);
+                    for (EsBulkBatch batch : batches) {
+                        this.throttle.acquireBulk(batch.getDocumentCount(), batch.getEstimatedBytes());
+                        start = System.currentTimeMillis();
+                        DcBulkResponse res = esRecovery.send(index, batch, this.unitPrefix);
+                        long latency = System.currentTimeMillis() - start;
+                        this.metrics.record(RecoveryMetrics.Stage.BULK_SUBMIT, latency);
+                        this.throttle.onBulkCompleted(latency, res);
+                        this.metrics.addDocuments(index, tableName, batch.getDocumentCount(),
+                                batch.getEstimatedBytes());
+                        start = System.currentTimeMillis();
+                        this.responseChecker.check(esRecovery, index, tableName, batch, res, this.unitPrefix);
+                        this.metrics.record(RecoveryMetrics.Stage.BULK_RESPONSE, System.currentTimeMillis() - start);
+                        found += batch.getCount();
                     }
                 } finally {
-                    // リカバリの完了後、ESへのリストア用テーブルを削除する。
-                    dropTable(index, handler, stmt);
+                    rs.close();
                 }
+            } finally {
+                stmt.close();
+            }
+        }
+        log.info(String.format("  type : %s [%d/%d]", tableName, found, ids.size()));
+        if (found < ids.size()) {
+            // 記録後にMySQLから削除されたドキュメントは再登録しない
+            log.warn(String.format("%d documents not found in mySQL. [%s.%s]", ids.size() - found, index,
+                    tableName));
+        }
+    }
 
-                if (null != rsCnt) {
-                    rsCnt.close();
-                    rsCnt = null;
-                }
-                // u0_adの場合はCELLテーブルのみリストアして終了する。
-                if (TABLE_TYPES[i].equals("CELL") && index.equals(dataBundleAdName)) {
-                    cnt = 0;
-                }
-                cnt = 0;
+    /**
+     * リカバリ元にダンプファイルが指定された場合は、ダンプファイルを走査して目次を作成する.
+     * @throws IOException ダンプファイルの読み込みに失敗した場合
+     */
+    private void scanDump() throws IOException {
+        if (this.dumpPath != null) {
+            log.info("Scan mysqldump [" + this.dumpPath + "] Start");
+            this.dumpIndex = MySqlDumpIndex.scan(this.dumpPath);
+            log.info("Scan mysqldump End");
+        }
+    }
 
-                // バルク登録の件数（パラメータで設定）ごとにレスポンスをチェックする。
-                checkBulkResponses(index, responseList);
+    /**
+     * MySQLのコネクションプールを作成する.
+     * 上限が設定されていない場合は、同時にMySQLへ接続するワーカー数(インデックス並列数×テーブル並列数)に合わせる.
+     * @throws RecoveryException 作成に失敗した場合
+     */
+    private void openConnectionPool() throws RecoveryException {
+        int maxActive = this.jdbcPoolMax;
+        if (maxActive == 0) {
+            maxActive = this.indexThreads;
+            if (this.tableParallel) {
+                maxActive *= TABLE_TYPES.length;
             }
-            // ESへのリストア完了後、インデックスをリフレッシュする。
-            // この際、u0_adは、バルク登録時にリフレッシュ済み。
-            if (!index.equals(dataBundleAdName)) {
-                this.recovery.refreshIndex(index);
+        }
+        this.connectionPool = new MySqlConnectionPool(adsJdbcUrl, adsUser, adsPassword, maxActive,
+                this.jdbcStatementCache);
+    }
+
+    /**
+     * バルク登録の単位とバルク登録結果のチェック方法を準備する.
+     * いずれも全インデックスで共有し、調整した目標サイズやジャーナルの記録先を引き継ぐ.
+     */
+    private void prepareBulkControl() {
+        this.sizeController = new BulkSizeController(this.bulkBytes, this.bulkMaxDocs, this.bulkAdaptive,
+                this.bulkBytesMin, this.bulkBytesMax, this.bulkLatencyTarget);
+        this.deadLetterJournal = new DeadLetterJournal(this.deadLetterFile);
+        this.metrics = new RecoveryMetrics();
+        this.metrics.start(this.metricsJsonFile, this.metricsPrometheusFile, this.metricsInterval);
+        this.throttle = new RecoveryThrottle(this.throttleDocs, this.throttleBytes, this.throttleRows,
+                this.throttleAuto, this.throttleAutoLatency);
+        this.throttle.start(this.throttleControlFile, THROTTLE_CONTROL_INTERVAL);
+        this.memoryBudget = new MemoryBudget(this.memoryBudgetBytes);
+        int windowSize = this.bulkInflight;
+        if (windowSize == 0) {
+            windowSize = this.senderThreads * this.indexThreads;
+            if (this.tableParallel) {
+                windowSize *= TABLE_TYPES.length;
             }
-        } catch (SQLException e) {
+        }
+        this.bulkWindow = new BulkWindow(windowSize, this.metrics);
+        this.metrics.setBulkWindow(this.bulkWindow);
+        this.responseChecker = new BulkResponseChecker(this.deadLetterJournal, this.retryMax, this.retryBackoff,
+                this.retryBulkSize, this.metrics);
+        if (this.shardBatching) {
+            this.shardRouting = new ShardRouting(this.shardCount);
+        }
+    }
+
+    /**
+     * 登録できなかったドキュメントがデッドレタージャーナルに記録されていないかチェックする.
+     * @throws RecoveryException 記録されている場合
+     */
+    private void checkDeadLetters() throws RecoveryException {
+        int count = this.deadLetterJournal.getCount();
+        if (count > 0) {
+            String message = String.format("%d documents could not be recovered. Replay them with -j %s",
+                    count, this.deadLetterJournal.getPath());
+            log.error(message);
+            throw new RecoveryException(message);
+        }
+    }
+
+    /**
+     * ES接続済みのEsRecoveryを生成する.
+     * ドライラン中は、ESへ接続せずに出力先へ直列化するEsRecoveryを生成する.
+     * EsRecoveryはJSONパーサ等の状態を持つため、ワーカーごとに生成して使用する.
+     * @return EsRecovery
+     */
+    private EsRecovery createEsRecovery() {
+        if (this.dryRunSink != null) {
+            EsRecovery esRecovery = new DryRunEsRecovery(this.dryRunSink);
+            esRecovery.setFastJsonParser(this.fastJsonParser);
+            return esRecovery;
+        }
+        try {
+            EsRecovery esRecovery = new EsRecovery();
+            esRecovery.init(esHosts, esClusetrName);
+            esRecovery.setFastJsonParser(this.fastJsonParser);
+            esRecovery.setIndexTargets(this.rebuildTargets);
+            return esRecovery;
+        } catch (RuntimeException e) {
             e.printStackTrace();
-            log.error("Failed to retrieve recovery data from mySQL:  index [" + index + "]");
+            log.error("elasticsearch Connection error");
             throw e;
-        } finally {
-            try {
-                // データベースのクローズ
-                if (null != rsCnt) {
-                    rsCnt.close();
-                    rsCnt = null;
-                }
-                if (null != rs) {
-                    rs.close();
-                }
-                if (null != stmt) {
-                    stmt.close();
-                }
-                if (null != con) {
-                    con.close();
+        }
+    }
+
+    /**
+     * インデックス単位のリカバリをワーカーに登録する.
+     * @param executor ワーカー
+     * @param index インデックス名
+     * @param count 処理開始したインデックス数
+     * @param failedIndexes リカバリに失敗したインデックスの一覧
+     * @return リカバリ結果
+     */
+    private Future<?> submitIndexRecovery(ExecutorService executor,
+            final String index,
+            final AtomicInteger count,
+            final List<String> failedIndexes) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                int number = count.incrementAndGet();
+                log.info(String.format("%s Recovery Start. [%d/%d]", index, number, indexNames.length));
+                try {
+                    EsRecovery esRecovery = createEsRecovery();
+                    try {
+                        recoverIndex(index, esRecovery);
+                    } finally {
+                        esRecovery.close();
+                    }
+                    log.info(String.format("%s Recovery End. [%d/%d]", index, number, indexNames.length));
+                } catch (Exception e) {
+                    // 1インデックスの失敗で他のインデックスのリカバリを中断しない
+                    e.printStackTrace();
+                    failedIndexes.add(index);
+                    log.error(String.format("%s Recovery failure. [%d/%d]", index, number, indexNames.length));
                 }
-            } catch (SQLException e) {
+            }
+        });
+    }
+
+    /**
+     * インデックス単位のリカバリの完了を待つ.
+     * @param future リカバリ結果
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @throws RecoveryException ワーカーが継続不能なエラーで終了した場合
+     */
+    private void waitForIndexRecovery(Future<?> future) throws InterruptedException, RecoveryException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            // 例外はワーカー内で記録済みのため、ここに来るのはOutOfMemoryError等の継続不能なエラーのみ
+            throw new RecoveryException("index worker aborted", e.getCause());
+        }
+    }
+
+    /**
+     * 1インデックス分のリカバリ（インデックス作成〜レプリカ数の復元）を行う.
+     * @param index インデックス名
+     * @param esRecovery このインデックスの処理に使用するEsRecovery
+     * @throws Exception エラー発生時の例外
+     */
+    private void recoverIndex(String index, EsRecovery esRecovery) throws Exception {
+        if (isDelta()) {
+            recoverIndexDelta(index, esRecovery);
+            return;
+        }
+        if (this.rebuild) {
+            rebuildIndex(index, esRecovery);
+            return;
+        }
+        // 前回途中まで処理したインデックスは、削除・不要Cellの削除を行わずに続きからリカバリする
+        boolean resumed = this.checkpoint.isIndexStarted(index);
+        EsIndex esIndex = null;
+        if (index.endsWith(EsIndex.CATEGORY_AD)) {
+            esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_AD, 0, 0, esRecovery.getClient());
+        } else {
+            esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient());
+        }
+        if (resumed) {
+            log.info("Resume index  [" + index + "]");
+        } else if (isClear) {
+            // インデックス削除
+            log.info("Remove index  [" + index + "] Start");
+            try {
+                esIndex.delete();
+                log.info("Remove index  [" + index + "] End");
+            } catch (EsIndexMissingException e) {
+                log.info("Index [" + index + "] does not exist on elasticsearch");
+            } catch (Exception e) {
                 e.printStackTrace();
-                log.warn("Failed to close mySQL connection");
+                log.error("Failed to delete elasticsearch index");
+                throw e;
+            }
+        }
+        try {
+            // インデックス作成
+            log.info("Create index  [" + index + "] Start");
+            createIndex(esIndex, index, index);
+            log.info("Create index  [" + index + "] End");
+        } catch (Exception e) {
+            if (!(e instanceof EsIndexAlreadyExistsException && (resumed || index.endsWith(EsIndex.CATEGORY_AD)))) {
+                e.printStackTrace();
+                log.error("Unable to create a new index [" + index
+                        + "]  as the same index already exists on elasticsearch");
                 throw e;
             }
         }
+        boolean loaded = false;
+        try {
+            // 一括登録用の設定を適用し、インデックスのレプリカ数を0に設定する
+            applyBulkLoadSettings(esIndex, index);
+
+            if (!resumed) {
+                // 不要Cellの削除
+                log.info("DeleteUnnecessaryCell index  [" + index + "] Start");
+                deleteUnnecessaryCell(esIndex, esRecovery);
+                log.info("DeleteUnnecessaryCell index  [" + index + "] End");
+                this.checkpoint.markIndexStarted(index);
+            }
+
+            // インデックス毎にリカバリ
+            log.info("Recovery index  [" + index + "] Start");
+            recovery(index, esRecovery, null);
+            log.info("Recovery index  [" + index + "] End");
+            loaded = true;
+        } finally {
+            // 一括登録用の設定とレプリカ数をリストアしたインデックスに設定する
+            restoreBulkLoadSettings(esIndex, index, esRecovery, loaded);
+        }
+        if (this.bulkLoadPost && !this.aliasClient.waitForGreen(index, this.rebuildHealthTimeout)) {
+            log.warn(String.format("Replicas of [%s] are not allocated in %d seconds.", index,
+                    this.rebuildHealthTimeout));
+        }
+        markIndexDone(index);
     }
 
     /**
-     * MySQLへ接続する.
-     * @param dbName DB名
-     * @return Connection
-     * @throws SQLException MySQLへの接続エラー
+     * 1インデックス分の再構築を行う.
+     * 公開中のインデックスはそのままに、バージョンを付加した新しいインデックスへリカバリし、
+     * レプリカ数の設定・リフレッシュ・レプリカの割り当ての完了後に、インデックス名のエイリアスを新しいインデックスへ切り替える.
+     * 切り替え前のインデックスはロールバック用に残すため、不要になったら手動で削除すること.
+     * u0_adは他のインデックスのCellも格納するため再構築せず、削除・レプリカ数の変更を行わずに上書き登録する.
+     * ユーザのインデックスでも公開中のCellを削除しないよう不要Cellの削除は行わないため、
+     * MySQLから削除されたCellはu0_adに残る.
+     * @param index インデックス名
+     * @param esRecovery このインデックスの処理に使用するEsRecovery
+     * @throws Exception エラー発生時の例外
      */
-    private Connection getMySqlConnection(String dbName) throws SQLException {
-        Connection connection = null;
+    private void rebuildIndex(String index, EsRecovery esRecovery) throws Exception {
+        if (index.endsWith(EsIndex.CATEGORY_AD)) {
+            try {
+                new EsIndexImpl(index, EsIndex.CATEGORY_AD, 0, 0, esRecovery.getClient()).create();
+                log.info("Create index  [" + index + "] End");
+            } catch (EsIndexAlreadyExistsException e) {
+                log.debug("Index [" + index + "] already exists");
+            }
+            log.info("Recovery index  [" + index + "] Start");
+            recovery(index, esRecovery, null);
+            log.info("Recovery index  [" + index + "] End");
+            markIndexDone(index);
+            return;
+        }
+
+        // 前回途中まで処理した場合は、チェックポイントに記録した登録先へ続きからリカバリする
+        String target = this.checkpoint.getIndexTarget(index);
+        EsIndex esIndex = null;
+        if (target != null) {
+            log.info("Resume rebuilding index  [" + index + "] into [" + target + "]");
+            esIndex = new EsIndexImpl(target, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient());
+        } else {
+            target = index + REBUILD_SUFFIX + this.rebuildVersion;
+            esIndex = new EsIndexImpl(target, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient());
+            log.info("Create index  [" + target + "] Start");
+            createIndex(esIndex, target, index);
+            log.info("Create index  [" + target + "] End");
+            this.checkpoint.markIndexStarted(index);
+            this.checkpoint.setIndexTarget(index, target);
+        }
+        // 続きからリカバリする場合も、開始時に元の設定へ戻しているため再度適用する
+        applyBulkLoadSettings(esIndex, target);
+
+        this.rebuildTargets.put(index, target);
         try {
-            // データベースへの接続
-            connection = DriverManager.getConnection(adsJdbcUrl + "/" + dbName
-                    , adsUser
-                    , adsPassword);
-        } catch (SQLException e) {
-            log.error("Failed to connect mySQL:  index [" + dbName + "]");
-            throw e;
+            log.info("Recovery index  [" + index + "] into [" + target + "] Start");
+            recovery(index, esRecovery, null);
+            log.info("Recovery index  [" + index + "] into [" + target + "] End");
+        } finally {
+            this.rebuildTargets.remove(index);
         }
-        return connection;
+
+        // 失敗した場合は公開前のため設定を戻さず、次回の実行開始時に記録から元の設定へ戻す
+        restoreBulkLoadSettings(esIndex, target, esRecovery, true);
+        // 切り替え後に冗長性が下がらないよう、レプリカの割り当てが完了してから切り替える
+        if (!this.aliasClient.waitForGreen(target, this.rebuildHealthTimeout)) {
+            throw new RecoveryException(String.format("Replicas of [%s] are not allocated in %d seconds. "
+                    + "Alias [%s] is not switched.", target, this.rebuildHealthTimeout, index));
+        }
+        switchAlias(index, target, esRecovery);
+        markIndexDone(index);
     }
 
     /**
-     * ESへのリストア用テーブルへデータをコピーする.
-     * @param dbName DB名
-     * @param handler ESへのリストア用テーブル操作オブジェクト
-     * @param stmt SQLステートメント
-     * @param cnt リストア対象テーブル内の全レコード件数
-     * @throws SQLException SQL実行エラー
-     * @throws RecoveryException テーブル間コピー時のレコード件数に不整合がある場合
-     */
-    private void copyTableForRecovery(final String dbName,
-            final ITableHandler handler,
-            final Statement stmt,
-            final int cnt)
-            throws SQLException, RecoveryException {
-        // まずはリストア用のESへのリストア用テーブルを作成する。
-        stmt.executeUpdate(handler.getCreateTableSqlString(dbName));
-        log.info(String.format("create table %s.", handler.getCopiedTableName()));
-
-        // すでにテーブルが作成されている可能性があるため、一旦テーブル内のレコードを削除する。
-        stmt.executeUpdate(handler.getTruncateTableSqlString(dbName));
-        log.info(String.format("truncate table %s.", handler.getCopiedTableName()));
-
-        // テーブルをコピーする。
-        stmt.executeUpdate(handler.getCopyTableSqlString(dbName));
-        log.info(String.format("copied table %s.", handler.getCopiedTableName()));
-
-        // コピーしたレコード件数が正しいかどうかを確認する。
-        int count = selectCountTable(dbName, handler, stmt);
-        if (count != cnt) {
-            String message = String.format("failed to copy recoreds. [master=%d, copied=%d]", cnt, count);
-            log.error(message);
-            throw new RecoveryException(message);
+     * インデックス名のエイリアスを再構築したインデックスへ切り替える.
+     * 初回の再構築では、インデックス名と同名のインデックスが公開中のため、
+     * これを削除してからエイリアスを作成する。削除から作成までの間は検索できず、削除したインデックスは残らない.
+     * @param index インデックス名(エイリアス名)
+     * @param target 再構築したインデックス名
+     * @param esRecovery インデックスの削除に使用するEsRecovery
+     * @throws Exception 切り替えに失敗した場合
+     */
+    private void switchAlias(String index, String target, EsRecovery esRecovery) throws Exception {
+        List<String> previous = this.aliasClient.getAliasedIndices(index);
+        if (previous.isEmpty() && this.aliasClient.exists(index)) {
+            log.warn("Index [" + index + "] is not an alias. It is removed to create the alias"
+                    + " and cannot be retained for rollback.");
+            new EsIndexImpl(index, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient()).delete();
+        }
+        this.aliasClient.switchAlias(index, target, previous);
+        log.info("Switch alias  [" + index + "] " + previous + " -> [" + target + "]");
+        if (!previous.isEmpty()) {
+            log.info("Previous index " + previous + " is retained for rollback.");
         }
     }
 
     /**
-     * テーブル内の全レコード件数を取得する.
-     * @param dbName DB名
-     * @param handler ESへのリストア用テーブル操作オブジェクト
-     * @param stmt SQLステートメント
-     * @return テーブル内の全レコード件数
-     * @throws SQLException SQL実行エラー
+     * 1インデックス分の差分リカバリを行う.
+     * インデックスの削除・不要Cellの削除・レプリカ数の変更は行わず、更新日時以降に更新されたレコードを上書き登録する.
+     * MySQLから削除されたレコードはESから削除されないため、削除を伴う障害の場合は全件リカバリを行うこと.
+     * @param index インデックス名
+     * @param esRecovery このインデックスの処理に使用するEsRecovery
+     * @throws Exception エラー発生時の例外
      */
-    private int selectCountTable(final String dbName, final ITableHandler handler, final Statement stmt)
-            throws SQLException {
-        ResultSet result = stmt.executeQuery(handler.getSelectCountTableSqlString(dbName));
-        int count = -1;
-        if (result.next()) {
-            count = result.getInt("CNT");
+    private void recoverIndexDelta(String index, EsRecovery esRecovery) throws Exception {
+        EsIndex esIndex = null;
+        if (index.endsWith(EsIndex.CATEGORY_AD)) {
+            esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_AD, 0, 0, esRecovery.getClient());
+        } else {
+            esIndex = new EsIndexImpl(index, EsIndex.CATEGORY_USR, 0, 0, esRecovery.getClient());
+        }
+        try {
+            // インデックスが存在しない場合のみ作成する
+            esIndex.create();
+            log.info("Create index  [" + index + "] End");
+        } catch (EsIndexAlreadyExistsException e) {
+            log.debug("Index [" + index + "] already exists");
+        }
+
+        // 再開時に登録済みのドキュメントから求め直さないよう、更新日時の下限はチェックポイントに記録したものを使用する
+        Long from = this.checkpoint.getIndexSince(index);
+        if (from == null) {
+            from = this.since;
+            if (this.sinceAuto) {
+                Long latest = esRecovery.findLatestUpdated(esIndex);
+                if (latest == null) {
+                    from = 0L;
+                } else {
+                    from = latest - this.deltaMargin;
+                }
+            }
+            this.checkpoint.markIndexStarted(index);
+            this.checkpoint.setIndexSince(index, from);
         }
-        return count;
+
+        log.info(String.format("Delta recovery index  [%s] since %d Start", index, from));
+        recovery(index, esRecovery, from);
+        log.info(String.format("Delta recovery index  [%s] End", index));
+        markIndexDone(index);
     }
 
     /**
-     * ESへのリストア用テーブルを削除する.
-     * @param dbName DB名
-     * @param handler ESへのリストア用テーブル操作オブジェクト
-     * @param stmt SQLステートメント
-     * @throws SQLException SQL実行エラー
+     * 1インデックス分のデータをMySQLからElasticsearchへリカバリする.
+     * @param index インデックス名
+     * @param esRecovery このインデックスの処理に使用するEsRecovery
+     * @param updatedSince 差分リカバリの更新日時の下限、全件リカバリの場合はnull
+     * @throws Exception エラー発生時の例外
+     */
+    private void recovery(String index, EsRecovery esRecovery, Long updatedSince) throws Exception {
+        // DataBundle名：u0_ad
+        final String dataBundleAdName = this.unitPrefix + "_" + EsIndex.CATEGORY_AD;
+
+        if (this.tableParallel) {
+            recoverTablesConcurrently(index, updatedSince);
+        } else {
+            // DBへの接続
+            Connection con = getMySqlConnection(index);
+            try {
+                for (int i = 0; i < TABLE_TYPES.length; i++) {
+                    recoverTable(index, i, con, esRecovery, updatedSince);
+                }
+            } finally {
+                closeConnection(con);
+            }
+        }
+        // ESへのリストア完了後、インデックスをリフレッシュする。
+        // この際、u0_adは、バルク登録時にリフレッシュ済み。
+        if (!index.equals(dataBundleAdName)) {
+            esRecovery.refreshIndex(index);
+        }
+    }
+
+    /**
+     * テーブルごとのリカバリを並列に実行する.
+     * テーブルごとにMySQLコネクションとEsRecoveryを用意し、全テーブルの完了を待ち合わせる.
+     * @param index インデックス名
+     * @param updatedSince 差分リカバリの更新日時の下限、全件リカバリの場合はnull
+     * @throws Exception いずれかのテーブルのリカバリに失敗した場合
      */
-    private void dropTable(final String dbName, final ITableHandler handler, final Statement stmt) throws SQLException {
-        stmt.executeUpdate(handler.getDropTableSqlString(dbName));
-        log.info(String.format("drop table %s.", handler.getCopiedTableName()));
+    private void recoverTablesConcurrently(final String index, final Long updatedSince) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(TABLE_TYPES.length,
+                new RecoveryThreadFactory(Thread.currentThread().getName() + "-table"));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < TABLE_TYPES.length; i++) {
+                final int tableNo = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Connection con = getMySqlConnection(index);
+                        try {
+                            EsRecovery esRecovery = createEsRecovery();
+                            try {
+                                recoverTable(index, tableNo, con, esRecovery, updatedSince);
+                            } finally {
+                                esRecovery.close();
+                            }
+                            return null;
+                        } finally {
+                            closeConnection(con);
+                        }
+                    }
+                }));
+            }
+
+            // 全テーブルの完了を待ち合わせる。失敗したテーブルがあっても他のテーブルの完了は待つ。
+            Exception failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error(String.format("Failed to recover table [%s.%s]", index, TABLE_TYPES[i]));
+                    if (failure == null) {
+                        if (e.getCause() instanceof Exception) {
+                            failure = (Exception) e.getCause();
+                        } else {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     /**
-     * ESへのバルク登録結果をチェックする.
+     * 1テーブル分のデータをリカバリする.
      * @param index インデックス名
-     * @param responseList バルク登録結果のレスポンスリスト
+     * @param tableNo リカバリ対象テーブルの番号（TABLE_TYPESの添字）
+     * @param con MySQLコネクション
+     * @param esRecovery 使用するEsRecovery
+     * @param updatedSince 差分リカバリの更新日時の下限、全件リカバリの場合はnull
+     * @throws Exception エラー発生時の例外
+     */
+    private void recoverTable(String index, int tableNo, Connection con, EsRecovery esRecovery,
+            Long updatedSince) throws Exception {
+        ITableHandler handler = TABLE_HANDLERS[tableNo];
+        if (this.checkpoint.isTableDone(index, handler.getTableName())) {
+            log.info(String.format("  type : %s already recovered. Skipped.", handler.getTableName()));
+            return;
+        }
+        ITableReader reader = createTableReader(index, handler, con, updatedSince);
+        RecoveryCheckpoint tableCheckpoint = null;
+        if (reader instanceof KeysetTableReader) {
+            // 主キー順に読み込む場合は、確認済みの主キーを記録し、再開時はその続きから読み込む
+            tableCheckpoint = this.checkpoint;
+            String startKey = this.checkpoint.getTableKey(index, handler.getTableName());
+            if (startKey != null) {
+                log.info(String.format("  type : %s resume after [%s]", handler.getTableName(), startKey));
+                ((KeysetTableReader) reader).setStartKey(startKey);
+            }
+        }
+        try {
+            int cnt = reader.open();
+
+            // フェッチ件数ごとに読み込み・変換・バルク登録をパイプラインで行う
+            RecoveryPipeline pipeline = new RecoveryPipeline(esRecovery, this.responseChecker, index,
+                    TABLE_TYPES[tableNo], this.unitPrefix);
+            pipeline.setMapperThreads(this.mapperThreads);
+            pipeline.setBulkWindow(this.bulkWindow);
+            pipeline.setCellStream(this.cellStream);
+            pipeline.setQueueSize(this.pipelineQueueSize);
+            pipeline.setSizeController(this.sizeController);
+            pipeline.setShardRouting(shardRoutingOf(index));
+            pipeline.setMetrics(this.metrics);
+            pipeline.setThrottle(this.throttle);
+            pipeline.setMemoryBudget(this.memoryBudget);
+            pipeline.setCheckpoint(tableCheckpoint);
+            pipeline.run(reader, cnt, handler.getTableName());
+            markTableDone(index, handler.getTableName());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            log.error("Failed to retrieve recovery data from mySQL:  index [" + index + "]");
+            throw e;
+        } finally {
+            try {
+                reader.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                log.warn("Failed to close mySQL statement");
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 設定された読み込み方式に応じてリカバリ対象レコードの読み込みオブジェクトを生成する.
+     * @param dbName DB名
+     * @param handler ESへのリストア用テーブル操作オブジェクト
+     * @param con MySQLコネクション
+     * @param updatedSince 差分リカバリの更新日時の下限、全件リカバリの場合はnull
+     * @return 読み込みオブジェクト
      */
-    private void checkBulkResponses(String index, List<DcBulkResponse> responseList) {
+    private ITableReader createTableReader(String dbName, ITableHandler handler, Connection con,
+            Long updatedSince) {
+        if (this.dumpIndex != null) {
+            DumpTableReader reader = new DumpTableReader(this.dumpIndex, dbName, handler, this.executeCnt);
+            reader.setUpdatedSince(updatedSince);
+            reader.setCellId(this.cellId);
+            return reader;
+        }
+        // 差分リカバリ、シャード毎のバルク登録、Cell単位のリカバリは主キー順に直接読み込む方式でのみ行う
+        if (READER_COPY.equals(this.readerType) && updatedSince == null && !this.shardBatching
+                && this.cellId == null) {
+            return new CopiedTableReader(dbName, handler, con, this.executeCnt);
+        }
+        KeysetTableReader reader = new KeysetTableReader(dbName, handler, con, this.executeCnt);
+        reader.setUpdatedSince(updatedSince);
+        reader.setOrderByRouting(this.shardBatching);
+        reader.setCellId(this.cellId);
+        return reader;
+    }
 
-        log.info("bulk response check Start.");
-        // TODO エラーが発生した際の正式なエラー復帰方法の実装
-        // 登録時にエラーが発生している場合は、とりあえずエラーメッセージのみ出力しておく。
-        for (DcBulkResponse response : responseList) {
-            if (response.hasFailures()) {
-                String format = "Failed to recover index data [%s] on elasticsearch. [%s]";
-                log.error(String.format(format, index, response.buildFailureMessage()));
+    /**
+     * MySQLとの接続を切断する.
+     * @param con MySQLコネクション
+     * @throws SQLException 切断に失敗した場合
+     */
+    private void closeConnection(Connection con) throws SQLException {
+        try {
+            if (null != con) {
+                con.close();
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            log.warn("Failed to close mySQL connection");
+            throw e;
+        }
+    }
+
+    /**
+     * MySQLへ接続する.
+     * @param dbName DB名
+     * @return Connection、ダンプファイルから読み込む場合はnull
+     * @throws SQLException MySQLへの接続エラー
+     */
+    private Connection getMySqlConnection(String dbName) throws SQLException {
+        if (this.dumpIndex != null) {
+            // ダンプファイルから読み込む場合はMySQLへ接続しない
+            return null;
+        }
+        Connection connection = null;
+        try {
+            // プール内のコネクションで対象DBへ接続する
+            connection = this.connectionPool.getConnection(dbName);
+        } catch (SQLException e) {
+            log.error("Failed to connect mySQL:  index [" + dbName + "]");
+            throw e;
         }
-        responseList.clear();
-        log.info("bulk response check End.");
+        return connection;
     }
 
     /**
@@ -538,16 +2339,24 @@ public class RecoveryManager {
     }
 
     private void readDatabaseList() throws Exception {
+        if (this.dumpIndex != null) {
+            ArrayList<String> al = new ArrayList<String>();
+            for (String database : this.dumpIndex.getDatabaseNames()) {
+                if (checkRecoveryTargetDatabase(database)) {
+                    al.add(database);
+                }
+            }
+            this.indexNames = al.toArray(new String[0]);
+            log.info("=== database LIST in mysqldump " + al.toString());
+            return;
+        }
 
         Statement stmt = null;
         Connection con = null;
         ResultSet rs = null;
         try {
-            // JDBC Driver の登録
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-
             // データベースへの接続
-            con = DriverManager.getConnection(adsJdbcUrl + "/", adsUser, adsPassword);
+            con = this.connectionPool.getConnection(null);
 
             // SQL ステートメント・オブジェクトの作成
             stmt = con.createStatement();
@@ -591,35 +2400,23 @@ public class RecoveryManager {
      * 不要なCellの削除.
      * インデックスごとにリストアする場合、U0_adを削除するとリストア対象インデックス以外のCellが削除されてしまう。
      * そのため、u0_adのインデックスは削除せずに、リストア対象インデックスのCellデータのみをここで削除する.
+     * Cellの一覧取得はスクロール検索で行い、削除はBulkでまとめて行う.
      * @param index 削除対象インデックス
+     * @param esRecovery 削除に使用するEsRecovery
      * @throws Exception Exception
      */
-    private void deleteUnnecessaryCell(EsIndex index) throws Exception {
+    private void deleteUnnecessaryCell(EsIndex index, EsRecovery esRecovery) throws Exception {
         String indexName = index.getName();
         if (indexName.endsWith(EsIndex.CATEGORY_AD)) {
             return;
         }
-        // Cell一覧取得
         String unituseName = indexName.replace(this.unitPrefix + "_", "");
-        indexName = this.unitPrefix + "_" + EsIndex.CATEGORY_AD;
-
-        EsIndex esIndex = new EsIndexImpl(indexName, EsIndex.CATEGORY_AD, 0, 0, this.recovery.getClient());
-        DcSearchResponse scrollResponse = this.recovery.listCell(esIndex, "Cell", unituseName, 0L);
-        Long totalHits = scrollResponse.hits().allPages();
-        log.info("Unnecessary Cell Count :[" + totalHits + "]");
-        scrollResponse = this.recovery.listCell(esIndex, "Cell", unituseName, totalHits);
-
-        for (DcSearchHit hit : scrollResponse.getHits().getHits()) {
-            // 不要CellIDを取得
-            String cellId = hit.getId();
-            try {
-                // Cellの削除
-                this.recovery.deleteEntity(esIndex, "Cell", cellId);
-            } catch (Exception e) {
-                e.printStackTrace();
-                log.error("Failed to delete cell data [" + cellId + "] on elasticsearch");
-                throw e;
-            }
+        try {
+            this.cellCleaner.delete(esRecovery, unituseName);
+        } catch (Exception e) {
+            e.printStackTrace();
+            log.error("Failed to delete cell data of [" + unituseName + "] on elasticsearch");
+            throw e;
         }
     }
 }
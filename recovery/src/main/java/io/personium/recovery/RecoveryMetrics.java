@@ -0,0 +1,470 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リカバリの処理性能を計測するクラス.
+ * 処理段階毎の所要時間のヒストグラム、インデックス・テーブル毎の登録件数とサイズ、バルク登録の失敗件数を集計し、
+ * JSON形式とPrometheus(node_exporterのtextfile collector)形式のファイルへ定期的に出力する.
+ */
+class RecoveryMetrics {
+
+    private static Logger log = LoggerFactory.getLogger(RecoveryMetrics.class);
+
+    /** 計測する処理段階. */
+    enum Stage {
+        /** MySQLからのレコード読み込み. */
+        SELECT("select"),
+        /** レコードからESのドキュメントへの変換. */
+        MAP("map"),
+        /** バルク登録のウィンドウの空き待ち. */
+        BULK_WINDOW_WAIT("bulk_window_wait"),
+        /** バルク登録の送信から応答まで. */
+        BULK_SUBMIT("bulk_submit"),
+        /** バルク登録結果の確認（失敗したドキュメントの再登録を含む）. */
+        BULK_RESPONSE("bulk_response");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return 出力時の名前
+         */
+        String getLabel() {
+            return label;
+        }
+    }
+
+    /** ヒストグラムのバケットの上限(ミリ秒). */
+    private static final long[] BUCKET_BOUNDS_MILLIS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+    /** 1秒のミリ秒数. */
+    private static final double MILLIS_PER_SECOND = 1000.0;
+    /** Prometheusのメトリクス名の接頭辞. */
+    private static final String PREFIX = "personium_recovery_";
+
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(Stage.class);
+    /** インデックス・テーブル毎の登録件数（出力順を一定にするためキーでソートする）. */
+    private final ConcurrentMap<String, TableCounter> tables = new ConcurrentSkipListMap<String, TableCounter>();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final AtomicLong rejectedItems = new AtomicLong();
+    private final AtomicLong retriedItems = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private BulkWindow bulkWindow;
+    private String jsonFile;
+    private String prometheusFile;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * コンストラクタ.
+     */
+    RecoveryMetrics() {
+        for (Stage stage : Stage.values()) {
+            this.histograms.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * 処理段階の所要時間を記録する.
+     * @param stage 処理段階
+     * @param millis 所要時間(ミリ秒)
+     */
+    void record(Stage stage, long millis) {
+        this.histograms.get(stage).observe(millis);
+    }
+
+    /**
+     * 実行中のバルク登録数を出力するウィンドウを設定する.
+     * @param bulkWindow バルク登録のウィンドウ
+     */
+    void setBulkWindow(BulkWindow bulkWindow) {
+        this.bulkWindow = bulkWindow;
+    }
+
+    /**
+     * テーブルのリカバリ開始を記録する.
+     * @param index インデックス名
+     * @param table テーブル名
+     */
+    void startTable(String index, String table) {
+        tableCounter(index, table);
+    }
+
+    /**
+     * 登録したドキュメントの件数とサイズを加算する.
+     * @param index インデックス名
+     * @param table テーブル名
+     * @param documents ドキュメント件数
+     * @param bytes 推定サイズ(バイト)
+     */
+    void addDocuments(String index, String table, long documents, long bytes) {
+        TableCounter counter = tableCounter(index, table);
+        counter.documents.addAndGet(documents);
+        counter.bytes.addAndGet(bytes);
+        counter.batches.incrementAndGet();
+        counter.lastMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * バルク登録に失敗したドキュメントを加算する.
+     * @param rejected ESのキューが溢れて拒否された場合はtrue
+     */
+    void addFailure(boolean rejected) {
+        this.failedItems.incrementAndGet();
+        if (rejected) {
+            this.rejectedItems.incrementAndGet();
+        }
+    }
+
+    /**
+     * 再登録したドキュメントの件数を加算する.
+     * @param count 件数
+     */
+    void addRetried(int count) {
+        this.retriedItems.addAndGet(count);
+    }
+
+    /**
+     * デッドレタージャーナルへ記録したドキュメントを加算する.
+     */
+    void addDeadLetter() {
+        this.deadLetters.incrementAndGet();
+    }
+
+    /**
+     * 定期的なファイル出力を開始する.
+     * 出力先がいずれも指定されていない場合は出力しない.
+     * @param json JSON形式の出力先、nullの場合は出力しない
+     * @param prometheus Prometheus形式の出力先、nullの場合は出力しない
+     * @param intervalSeconds 出力間隔(秒)
+     */
+    void start(String json, String prometheus, int intervalSeconds) {
+        this.jsonFile = json;
+        this.prometheusFile = prometheus;
+        if (this.jsonFile == null && this.prometheusFile == null) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new RecoveryThreadFactory("metrics"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 定期的なファイル出力を終了し、最終結果を出力する.
+     */
+    void stop() {
+        if (this.scheduler == null) {
+            return;
+        }
+        this.scheduler.shutdownNow();
+        this.scheduler = null;
+        write();
+    }
+
+    /**
+     * 現在の集計結果をファイルへ出力する.
+     * 出力に失敗してもリカバリは継続する.
+     */
+    synchronized void write() {
+        try {
+            if (this.jsonFile != null) {
+                writeAtomically(this.jsonFile, toJson());
+            }
+            if (this.prometheusFile != null) {
+                writeAtomically(this.prometheusFile, toPrometheus());
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write recovery metrics", e);
+        }
+    }
+
+    /**
+     * 集計結果をJSON形式で取得する.
+     * @return JSON文字列
+     */
+    String toJson() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> root = new LinkedHashMap<String, Object>();
+        root.put("timestamp", now);
+        root.put("elapsedMillis", now - this.startMillis);
+
+        Map<String, Object> stages = new LinkedHashMap<String, Object>();
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = this.histograms.get(stage);
+            Map<String, Object> stat = new LinkedHashMap<String, Object>();
+            stat.put("count", histogram.count.get());
+            stat.put("sumMillis", histogram.sumMillis.get());
+            stat.put("maxMillis", histogram.maxMillis.get());
+            Map<String, Object> buckets = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                buckets.put(String.valueOf(BUCKET_BOUNDS_MILLIS[i]), histogram.buckets.get(i));
+            }
+            buckets.put("+Inf", histogram.buckets.get(BUCKET_BOUNDS_MILLIS.length));
+            stat.put("bucketsMillis", buckets);
+            stages.put(stage.getLabel(), stat);
+        }
+        root.put("stages", stages);
+
+        List<Object> tableList = new ArrayList<Object>();
+        for (TableCounter counter : this.tables.values()) {
+            Map<String, Object> table = new LinkedHashMap<String, Object>();
+            table.put("index", counter.index);
+            table.put("table", counter.table);
+            table.put("documents", counter.documents.get());
+            table.put("bytes", counter.bytes.get());
+            table.put("batches", counter.batches.get());
+            table.put("documentsPerSecond", counter.perSecond(counter.documents.get()));
+            table.put("bytesPerSecond", counter.perSecond(counter.bytes.get()));
+            tableList.add(table);
+        }
+        root.put("tables", tableList);
+
+        Map<String, Object> failures = new LinkedHashMap<String, Object>();
+        failures.put("failed", this.failedItems.get());
+        failures.put("rejected", this.rejectedItems.get());
+        failures.put("retried", this.retriedItems.get());
+        failures.put("deadLetters", this.deadLetters.get());
+        root.put("failures", failures);
+
+        BulkWindow window = this.bulkWindow;
+        if (window != null) {
+            Map<String, Object> bulkWindowStat = new LinkedHashMap<String, Object>();
+            bulkWindowStat.put("size", window.getSize());
+            bulkWindowStat.put("inFlight", window.getInFlight());
+            bulkWindowStat.put("waiting", window.getWaiting());
+            bulkWindowStat.put("peak", window.getPeak());
+            root.put("bulkWindow", bulkWindowStat);
+        }
+        return JSONValue.toJSONString(root);
+    }
+
+    /**
+     * 集計結果をPrometheusのテキスト形式で取得する.
+     * @return テキスト
+     */
+    String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String stageSeconds = PREFIX + "stage_seconds";
+        header(sb, stageSeconds, "histogram", "Time spent in each recovery stage.");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = this.histograms.get(stage);
+            String label = "stage=\"" + stage.getLabel() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                cumulative += histogram.buckets.get(i);
+                sample(sb, stageSeconds + "_bucket", label + ",le=\"" + seconds(BUCKET_BOUNDS_MILLIS[i]) + "\"",
+                        String.valueOf(cumulative));
+            }
+            cumulative += histogram.buckets.get(BUCKET_BOUNDS_MILLIS.length);
+            sample(sb, stageSeconds + "_bucket", label + ",le=\"+Inf\"", String.valueOf(cumulative));
+            sample(sb, stageSeconds + "_sum", label, seconds(histogram.sumMillis.get()));
+            sample(sb, stageSeconds + "_count", label, String.valueOf(histogram.count.get()));
+        }
+
+        header(sb, PREFIX + "documents_total", "counter", "Documents sent to elasticsearch.");
+        for (TableCounter counter : this.tables.values()) {
+            sample(sb, PREFIX + "documents_total", counter.labels(), String.valueOf(counter.documents.get()));
+        }
+        header(sb, PREFIX + "bytes_total", "counter", "Estimated bytes sent to elasticsearch.");
+        for (TableCounter counter : this.tables.values()) {
+            sample(sb, PREFIX + "bytes_total", counter.labels(), String.valueOf(counter.bytes.get()));
+        }
+        header(sb, PREFIX + "documents_per_second", "gauge", "Average documents per second of the table.");
+        for (TableCounter counter : this.tables.values()) {
+            sample(sb, PREFIX + "documents_per_second", counter.labels(),
+                    format(counter.perSecond(counter.documents.get())));
+        }
+        header(sb, PREFIX + "bytes_per_second", "gauge", "Average estimated bytes per second of the table.");
+        for (TableCounter counter : this.tables.values()) {
+            sample(sb, PREFIX + "bytes_per_second", counter.labels(), format(counter.perSecond(counter.bytes.get())));
+        }
+
+        counter(sb, "failed_documents_total", "Failed bulk items including retried ones.", this.failedItems.get());
+        counter(sb, "rejected_documents_total", "Bulk items rejected by elasticsearch.", this.rejectedItems.get());
+        counter(sb, "retried_documents_total", "Bulk items sent again.", this.retriedItems.get());
+        counter(sb, "dead_letters_total", "Documents written to the dead letter journal.", this.deadLetters.get());
+        BulkWindow window = this.bulkWindow;
+        if (window != null) {
+            gauge(sb, "bulk_window_size", "Maximum number of concurrent bulk requests.", window.getSize());
+            gauge(sb, "bulk_in_flight", "Bulk requests being sent or checked.", window.getInFlight());
+            gauge(sb, "bulk_waiting", "Producers waiting for a free slot of the bulk window.", window.getWaiting());
+            gauge(sb, "bulk_in_flight_peak", "Peak number of bulk requests in flight.", window.getPeak());
+        }
+        header(sb, PREFIX + "elapsed_seconds", "gauge", "Elapsed time of the recovery run.");
+        sample(sb, PREFIX + "elapsed_seconds", null, seconds(System.currentTimeMillis() - this.startMillis));
+        return sb.toString();
+    }
+
+    private TableCounter tableCounter(String index, String table) {
+        String key = index + "/" + table;
+        TableCounter counter = this.tables.get(key);
+        if (counter == null) {
+            counter = new TableCounter(index, table);
+            TableCounter existing = this.tables.putIfAbsent(key, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, PREFIX + name, "counter", help);
+        sample(sb, PREFIX + name, null, String.valueOf(value));
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, PREFIX + name, "gauge", help);
+        sample(sb, PREFIX + name, null, String.valueOf(value));
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long millis) {
+        return format(millis / MILLIS_PER_SECOND);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Prometheusのラベル値をエスケープする.
+     * @param value ラベル値
+     * @return エスケープしたラベル値
+     */
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * 一時ファイルへ書き込んでから置き換えることで、収集側が書き込み途中のファイルを読まないようにする.
+     * @param path 出力先
+     * @param content 内容
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private static void writeAtomically(String path, String content) throws IOException {
+        File file = new File(path);
+        File tmp = new File(path + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 所要時間のヒストグラム.
+     */
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        void observe(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            this.buckets.incrementAndGet(bucket);
+            this.count.incrementAndGet();
+            this.sumMillis.addAndGet(millis);
+            long max = this.maxMillis.get();
+            while (millis > max && !this.maxMillis.compareAndSet(max, millis)) {
+                max = this.maxMillis.get();
+            }
+        }
+    }
+
+    /**
+     * インデックス・テーブル毎の登録件数.
+     */
+    private static class TableCounter {
+        private final String index;
+        private final String table;
+        private final long startMillis = System.currentTimeMillis();
+        private volatile long lastMillis = startMillis;
+        private final AtomicLong documents = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+
+        TableCounter(String index, String table) {
+            this.index = index;
+            this.table = table;
+        }
+
+        double perSecond(long value) {
+            long elapsed = this.lastMillis - this.startMillis;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            return value * MILLIS_PER_SECOND / elapsed;
+        }
+
+        String labels() {
+            return "index=\"" + escapeLabel(this.index) + "\",table=\"" + escapeLabel(this.table) + "\"";
+        }
+    }
+}
@@ -0,0 +1,615 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.response.DcBulkResponse;
+import io.personium.recovery.tables.ITableReader;
+import io.personium.recovery.tables.KeysetTableReader;
+
+/**
+ * 1テーブル分のリカバリを、読み込み・変換・バルク登録の3ステージで並行に実行するパイプライン.
+ * <ul>
+ * <li>読み込み：呼び出し元スレッドでMySQLからページを読み込み、切断済みのCachedRowSetとしてキューへ渡す.</li>
+ * <li>変換：mapperThreads個のスレッドでページをESのドキュメントへ変換し、バルク登録の単位に分割してキューへ渡す.</li>
+ * <li>バルク登録：1個のスレッドでドキュメントを{@link BulkWindow}へ依頼する。ウィンドウが埋まっている場合は空くまで待機する。
+ * バルク登録が完了するごとに、ウィンドウのスレッドで結果を確認し、失敗したドキュメントを再登録する.</li>
+ * </ul>
+ * {@link CellBulkStream}を設定した場合、u0_adへ登録するCellはストリームへ渡し、他のインデックスのCellとまとめて登録する.
+ * Cellの登録結果の確認はパイプラインの終了後に完了することがあり、そのページはストリームからの通知でチェックポイントへ記録する.
+ * ステージ間のキューは容量queueSizeで制限されるため、後段が詰まると前段は待機し、保持するページ数が一定に保たれる.
+ */
+class RecoveryPipeline {
+
+    private static Logger log = LoggerFactory.getLogger(RecoveryPipeline.class);
+
+    /** キューの待機中に他ステージの異常終了を確認する間隔(ミリ秒). */
+    private static final long POLL_INTERVAL_MILLIS = 500L;
+
+    /** 読み込みの終了を表すページ. */
+    private static final Page END_OF_PAGES = new Page(null);
+    /** 変換の終了を表すドキュメント. */
+    private static final Batch END_OF_BATCHES = new Batch(null, null);
+
+    private final EsRecovery esRecovery;
+    private final BulkResponseChecker checker;
+    private final String index;
+    private final String tableType;
+    private final String unitPrefix;
+    private int mapperThreads = 1;
+    private int queueSize = 1;
+    private BulkSizeController sizeController;
+    private ShardRouting shardRouting;
+    private RecoveryCheckpoint checkpoint;
+    private RecoveryMetrics metrics = new RecoveryMetrics();
+    private RecoveryThrottle throttle = new RecoveryThrottle();
+    private MemoryBudget memoryBudget = new MemoryBudget(0);
+    /** このパイプラインがヒープ使用量の予算から予約中のサイズ. */
+    private final AtomicLong reserved = new AtomicLong(0);
+    private BulkWindow bulkWindow;
+    private CellBulkStream cellStream;
+    /** このパイプラインから依頼し、完了していないバルク登録数. */
+    private int pendingBulks = 0;
+    private final Object bulkLock = new Object();
+
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private final AtomicInteger restored = new AtomicInteger(0);
+    /** 読み込んだページ数（ページの連番の採番に使用）. */
+    private long pageCount = 0;
+    /** 次にチェックポイントへ記録するページの連番. */
+    private long nextCommitPage = 0;
+    /** バルク登録結果の確認まで完了したが、前のページが未完了のためチェックポイントへ記録していないページ. */
+    private final Map<Long, Page> completedPages = new HashMap<Long, Page>();
+
+    /**
+     * コンストラクタ.
+     * @param esRecovery 変換・バルク登録に使用するEsRecovery
+     * @param checker バルク登録結果のチェッカー
+     * @param index インデックス名
+     * @param tableType テーブル種別
+     * @param unitPrefix ESのプレフィックス
+     */
+    RecoveryPipeline(EsRecovery esRecovery, BulkResponseChecker checker, String index, String tableType,
+            String unitPrefix) {
+        this.esRecovery = esRecovery;
+        this.checker = checker;
+        this.index = index;
+        this.tableType = tableType;
+        this.unitPrefix = unitPrefix;
+    }
+
+    /**
+     * @param mapperThreads 変換ステージのスレッド数
+     */
+    void setMapperThreads(int mapperThreads) {
+        this.mapperThreads = mapperThreads;
+    }
+
+    /**
+     * @param bulkWindow バルク登録を実行するウィンドウ、nullの場合はこのパイプライン専用に1件ずつ実行する
+     */
+    void setBulkWindow(BulkWindow bulkWindow) {
+        this.bulkWindow = bulkWindow;
+    }
+
+    /**
+     * @param cellStream u0_adへ登録するCellをまとめるストリーム、nullの場合はページ毎にu0_adへ登録する
+     */
+    void setCellStream(CellBulkStream cellStream) {
+        this.cellStream = cellStream;
+    }
+
+    /**
+     * @param queueSize ステージ間のキューの容量
+     */
+    void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param sizeController バルク登録の単位を決めるコントローラ、nullの場合はページ単位でバルク登録する
+     */
+    void setSizeController(BulkSizeController sizeController) {
+        this.sizeController = sizeController;
+    }
+
+    /**
+     * @param shardRouting 登録先シャードの計算に使用するルーティング、nullの場合はシャード毎にまとめずにバルク登録する
+     */
+    void setShardRouting(ShardRouting shardRouting) {
+        this.shardRouting = shardRouting;
+    }
+
+    /**
+     * @param metrics 処理段階毎の所要時間、登録件数の集計先
+     */
+    void setMetrics(RecoveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param throttle 読み込み・バルク登録の流量制限
+     */
+    void setThrottle(RecoveryThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * ヒープ使用量の予算を設定する.
+     * 設定した場合は、ページの推定保持サイズをバルク登録結果の確認まで予約し、
+     * 1ページの推定保持サイズが予算の割り当てに収まるよう、次のページの件数を調整する.
+     * @param memoryBudget ヒープ使用量の予算
+     */
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * チェックポイントを設定する.
+     * 設定した場合は、バルク登録結果の確認まで完了したページの最後の主キーを、先頭のページから順に記録する.
+     * {@link KeysetTableReader}で読み込む場合のみ設定すること.
+     * @param checkpoint チェックポイント
+     */
+    void setCheckpoint(RecoveryCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * パイプラインを実行する.
+     * @param reader 読み込み済み(open済み)のテーブル読み込みオブジェクト
+     * @param total 読み込み対象の全レコード件数
+     * @param tableName テーブル名（ログ出力、デッドレタージャーナルへの記録に使用）
+     * @throws Exception いずれかのステージでエラーが発生した場合
+     */
+    void run(ITableReader reader, final int total, final String tableName) throws Exception {
+        this.metrics.startTable(this.index, tableName);
+        final BlockingQueue<Page> pageQueue = new ArrayBlockingQueue<Page>(this.queueSize);
+        final BlockingQueue<Batch> batchQueue = new ArrayBlockingQueue<Batch>(this.queueSize);
+        final CountDownLatch mappersDone = new CountDownLatch(this.mapperThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(this.mapperThreads + 1,
+                new RecoveryThreadFactory(Thread.currentThread().getName() + "-" + tableName));
+        boolean ownWindow = this.bulkWindow == null;
+        if (ownWindow) {
+            this.bulkWindow = new BulkWindow(1, this.metrics);
+        }
+        try {
+            for (int i = 0; i < this.mapperThreads; i++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mapPages(pageQueue, batchQueue);
+                        } catch (Throwable e) {
+                            abort(e);
+                        } finally {
+                            mappersDone.countDown();
+                        }
+                    }
+                });
+            }
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendBatches(batchQueue, total, tableName);
+                    } catch (Throwable e) {
+                        abort(e);
+                    }
+                }
+            });
+
+            try {
+                readPages(reader, pageQueue);
+                for (int i = 0; i < this.mapperThreads; i++) {
+                    put(pageQueue, END_OF_PAGES);
+                }
+                mappersDone.await();
+                put(batchQueue, END_OF_BATCHES);
+            } catch (Exception e) {
+                abort(e);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.debug("waiting for pipeline termination");
+            }
+        } finally {
+            executor.shutdownNow();
+            awaitBulks();
+            if (ownWindow) {
+                this.bulkWindow.shutdown();
+                this.bulkWindow = null;
+            }
+            // 異常終了時に残った予約を、他のパイプラインのために解放する
+            this.memoryBudget.release(this.reserved.getAndSet(0));
+        }
+
+        if (this.failure.get() != null) {
+            throw this.failure.get();
+        }
+    }
+
+    /**
+     * 読み込みステージ.
+     * @param reader テーブル読み込みオブジェクト
+     * @param pageQueue 変換ステージへのキュー
+     * @throws Exception エラー発生時
+     */
+    private void readPages(ITableReader reader, BlockingQueue<Page> pageQueue) throws Exception {
+        RowSetFactory factory = RowSetProvider.newFactory();
+        while (true) {
+            long start = System.currentTimeMillis();
+            ResultSet rs = reader.next();
+            if (null == rs) {
+                break;
+            }
+            // 読み込みオブジェクトは次ページの読み込み時にResultSetを閉じるため、切断済みのRowSetへ写す
+            CachedRowSet rows = factory.createCachedRowSet();
+            rows.populate(rs);
+            this.metrics.record(RecoveryMetrics.Stage.SELECT, System.currentTimeMillis() - start);
+            this.throttle.acquireRows(rows.size());
+            Page page = new Page(rows);
+            page.seq = this.pageCount++;
+            page.retained = estimateRetained(rows);
+            // 他のステージが異常終了した場合は、予約を持つページが解放されないため待機を打ち切る
+            while (!this.memoryBudget.tryAcquire(page.retained, POLL_INTERVAL_MILLIS)) {
+                checkAborted();
+            }
+            this.reserved.addAndGet(page.retained);
+            adjustPageSize(reader, rows.size(), page.retained);
+            if (this.checkpoint != null && rows.last()) {
+                page.lastKey = ((KeysetTableReader) reader).keyOf(rows);
+                rows.beforeFirst();
+            }
+            put(pageQueue, page);
+        }
+    }
+
+    /**
+     * ページを変換・バルク登録し終えるまでに保持する推定サイズを求める.
+     * 予算が無制限の場合は求めない.
+     * @param rows ページ
+     * @return 推定保持サイズ(バイト)
+     * @throws SQLException ページの参照に失敗した場合
+     */
+    private long estimateRetained(CachedRowSet rows) throws SQLException {
+        if (this.memoryBudget.getLimit() <= 0) {
+            return 0;
+        }
+        int columns = rows.getMetaData().getColumnCount();
+        long chars = 0;
+        rows.beforeFirst();
+        while (rows.next()) {
+            for (int i = 1; i <= columns; i++) {
+                String value = rows.getString(i);
+                if (value != null) {
+                    chars += value.length();
+                }
+            }
+        }
+        rows.beforeFirst();
+        return chars * MemoryBudget.RETAINED_BYTES_PER_CHAR + (long) rows.size() * MemoryBudget.RETAINED_BYTES_PER_ROW;
+    }
+
+    /**
+     * 読み込んだページの1レコードあたりの推定保持サイズから、1ページの予算に収まるよう次のページの件数を調整する.
+     * @param reader テーブル読み込みオブジェクト
+     * @param rowCount 読み込んだページの件数
+     * @param retained 読み込んだページの推定保持サイズ(バイト)
+     */
+    private void adjustPageSize(ITableReader reader, int rowCount, long retained) {
+        long pageLimit = this.memoryBudget.getPageLimit();
+        if (pageLimit <= 0 || rowCount == 0) {
+            return;
+        }
+        long perRow = Math.max(1, retained / rowCount);
+        reader.setPageSize((int) Math.min(Integer.MAX_VALUE, pageLimit / perRow));
+    }
+
+    /**
+     * 変換ステージ.
+     * @param pageQueue 読み込みステージからのキュー
+     * @param batchQueue バルク登録ステージへのキュー
+     * @throws Exception エラー発生時
+     */
+    private void mapPages(BlockingQueue<Page> pageQueue, BlockingQueue<Batch> batchQueue)
+            throws Exception {
+        while (true) {
+            Page page = take(pageQueue);
+            if (page == END_OF_PAGES) {
+                break;
+            }
+            long start = System.currentTimeMillis();
+            List<EsBulkBatch> batches = this.esRecovery.map(this.index, this.tableType, page.rows, this.unitPrefix,
+                    this.sizeController, this.shardRouting);
+            this.metrics.record(RecoveryMetrics.Stage.MAP, System.currentTimeMillis() - start);
+            page.rows.close();
+            page.pendingBatches.set(batches.size());
+            page.heldBatches.set(batches.size());
+            for (EsBulkBatch batch : batches) {
+                put(batchQueue, new Batch(batch, page));
+            }
+        }
+    }
+
+    /**
+     * バルク登録ステージ.
+     * 変換済みのドキュメントをウィンドウへ依頼する。ウィンドウが埋まっている場合は空くまで待機する.
+     * @param batchQueue 変換ステージからのキュー
+     * @param total 読み込み対象の全レコード件数
+     * @param tableName テーブル名（ログ出力、デッドレタージャーナルへの記録に使用）
+     * @throws Exception エラー発生時
+     */
+    private void sendBatches(BlockingQueue<Batch> batchQueue, final int total, final String tableName)
+            throws Exception {
+        while (true) {
+            final Batch item = take(batchQueue);
+            if (item == END_OF_BATCHES) {
+                break;
+            }
+            this.throttle.acquireBulk(item.docs.getDocumentCount(), item.docs.getEstimatedBytes());
+            checkAborted();
+            if (this.cellStream != null && !item.docs.getCellList().isEmpty() && item.docs.getBulkMap().isEmpty()) {
+                streamCells(item, total, tableName);
+                continue;
+            }
+            synchronized (this.bulkLock) {
+                this.pendingBulks++;
+            }
+            boolean submitted = false;
+            try {
+                this.bulkWindow.submit(new BulkWindow.Bulk() {
+                    @Override
+                    public DcBulkResponse send() {
+                        return esRecovery.send(index, item.docs, unitPrefix);
+                    }
+
+                    @Override
+                    public void onCompleted(DcBulkResponse response, long latencyMillis) throws Exception {
+                        // 結果の確認に失敗した場合はonFailedで完了を記録する
+                        completeBulk(item, response, latencyMillis, total, tableName);
+                        bulkDone();
+                    }
+
+                    @Override
+                    public void onFailed(Throwable cause) {
+                        // Elasticsearchで例外がスローされた場合は、レスポンスはチェックせずに終了する。
+                        cause.printStackTrace();
+                        log.error("Failed to recover index data [" + index + "] on elasticsearch");
+                        abort(cause);
+                        bulkDone();
+                    }
+                });
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    bulkDone();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cellのみのドキュメントをストリームへ渡す.
+     * ドキュメントはストリームが保持するため、ページの予約は渡した時点で解放する.
+     * @param item Cellのみのドキュメント
+     * @param total 読み込み対象の全レコード件数
+     * @param tableName テーブル名
+     * @throws InterruptedException ストリームからのバルク登録の依頼の待機中に割り込まれた場合
+     */
+    private void streamCells(final Batch item, final int total, final String tableName)
+            throws InterruptedException {
+        releaseBatch(item.page);
+        this.cellStream.add(this.index, item.docs, new CellBulkStream.Listener() {
+            @Override
+            public void onFlushed() throws Exception {
+                EsBulkBatch batch = item.docs;
+                metrics.addDocuments(index, tableName, batch.getDocumentCount(), batch.getEstimatedBytes());
+                log.info(String.format("  type : %s [%d/%d]", tableName, restored.addAndGet(batch.getCount()),
+                        total));
+                if (item.page.pendingBatches.decrementAndGet() == 0) {
+                    completePage(item.page, tableName);
+                }
+            }
+        });
+    }
+
+    /**
+     * 完了したバルク登録の結果を確認する. ウィンドウのスレッドで実行する.
+     * @param item 登録したドキュメント
+     * @param res バルク登録結果のレスポンス、登録データなしの場合はnull
+     * @param latency 送信から応答までの時間(ミリ秒)
+     * @param total 読み込み対象の全レコード件数
+     * @param tableName テーブル名
+     * @throws Exception 結果の確認、チェックポイントの記録に失敗した場合
+     */
+    private void completeBulk(Batch item, DcBulkResponse res, long latency, int total, String tableName)
+            throws Exception {
+        EsBulkBatch batch = item.docs;
+        this.metrics.record(RecoveryMetrics.Stage.BULK_SUBMIT, latency);
+        this.metrics.addDocuments(this.index, tableName, batch.getDocumentCount(), batch.getEstimatedBytes());
+        if (this.sizeController != null) {
+            this.sizeController.onBulkCompleted(batch, latency, res);
+        }
+        this.throttle.onBulkCompleted(latency, res);
+        // 各テーブル内のレコード件数を出力
+        log.info(String.format("  type : %s [%d/%d]", tableName, this.restored.addAndGet(batch.getCount()),
+                total));
+
+        // 失敗したドキュメントはドキュメントを保持しているこの時点で再登録する
+        // CELLテーブルへの登録のみの場合、登録データなしの場合はresにnullが返却される
+        long start = System.currentTimeMillis();
+        this.checker.check(this.esRecovery, this.index, tableName, batch, res, this.unitPrefix);
+        this.metrics.record(RecoveryMetrics.Stage.BULK_RESPONSE, System.currentTimeMillis() - start);
+        releaseBatch(item.page);
+        if (item.page.pendingBatches.decrementAndGet() == 0) {
+            completePage(item.page, tableName);
+        }
+    }
+
+    /**
+     * ページから変換したドキュメントを保持し終えたことを記録し、全て保持し終えたらページの予約を解放する.
+     * @param page ページ
+     */
+    private void releaseBatch(Page page) {
+        if (page.heldBatches.decrementAndGet() == 0) {
+            this.reserved.addAndGet(-page.retained);
+            this.memoryBudget.release(page.retained);
+        }
+    }
+
+    private void bulkDone() {
+        synchronized (this.bulkLock) {
+            this.pendingBulks--;
+            this.bulkLock.notifyAll();
+        }
+    }
+
+    /**
+     * このパイプラインから依頼したバルク登録が全て完了するまで待つ.
+     * 異常終了時も、ウィンドウのスレッドが結果の確認中にページ等を参照しないよう完了を待ち合わせる.
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private void awaitBulks() throws InterruptedException {
+        synchronized (this.bulkLock) {
+            while (this.pendingBulks > 0) {
+                this.bulkLock.wait(POLL_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * バルク登録結果の確認まで完了したページを記録する.
+     * 先頭から連続して完了したページのうち、最後のページの主キーをチェックポイントへ記録する.
+     * @param page 完了したページ
+     * @param tableName テーブル名
+     * @throws IOException チェックポイントの書き込みに失敗した場合
+     */
+    private void completePage(Page page, String tableName) throws IOException {
+        if (this.checkpoint == null) {
+            return;
+        }
+        String key = null;
+        synchronized (this.completedPages) {
+            this.completedPages.put(page.seq, page);
+            while (this.completedPages.containsKey(this.nextCommitPage)) {
+                Page committed = this.completedPages.remove(this.nextCommitPage);
+                if (committed.lastKey != null) {
+                    key = committed.lastKey;
+                }
+                this.nextCommitPage++;
+            }
+            if (key != null) {
+                this.checkpoint.commitTableKey(this.index, tableName, key);
+            }
+        }
+    }
+
+    /**
+     * いずれかのステージが異常終了したことを記録する.
+     * OutOfMemoryError等のエラーでも他のステージが待ち続けないよう、Throwableを受け付ける.
+     * @param e 発生した例外
+     */
+    private void abort(Throwable e) {
+        Exception cause;
+        if (e instanceof Exception) {
+            cause = (Exception) e;
+        } else {
+            cause = new RecoveryException("Recovery pipeline stage failed.", e);
+        }
+        if (this.failure.compareAndSet(null, cause)) {
+            log.error(String.format("Recovery pipeline aborted. [%s]", this.index));
+        }
+    }
+
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException, RecoveryException {
+        while (!queue.offer(item, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkAborted();
+        }
+    }
+
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException, RecoveryException {
+        while (true) {
+            T item = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+            checkAborted();
+        }
+    }
+
+    private void checkAborted() throws RecoveryException {
+        if (this.failure.get() != null) {
+            throw new RecoveryException("Recovery pipeline aborted by another stage.");
+        }
+    }
+
+    /**
+     * 読み込みステージから変換ステージへ渡すページ.
+     */
+    private static class Page {
+        private final ResultSet rows;
+        /** 読み込み順の連番. */
+        private long seq;
+        /** ページの最後の主キー. */
+        private String lastKey;
+        /** ヒープ使用量の予算から予約した推定保持サイズ. */
+        private long retained;
+        /** バルク登録結果の確認が済んでいない、このページから変換したドキュメント数. */
+        private final AtomicInteger pendingBatches = new AtomicInteger(0);
+        /** パイプラインが保持している、このページから変換したドキュメント数. */
+        private final AtomicInteger heldBatches = new AtomicInteger(0);
+
+        Page(ResultSet rows) {
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * 変換ステージからバルク登録ステージへ渡すドキュメント.
+     */
+    private static class Batch {
+        private final EsBulkBatch docs;
+        private final Page page;
+
+        Batch(EsBulkBatch docs, Page page) {
+            this.docs = docs;
+            this.page = page;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.recovery.tables.MySqlDumpIndex;
+
+/**
+ * 全インデックスのリカバリ計画.
+ * <p>
+ * インデックス毎のデータ量(バイト数・レコード件数)から見積もった所要時間の長い順にインデックスを並べる.
+ * ワーカーは空いた順に次のインデックスを処理するため、長い順に登録することで、
+ * 最後に大きいインデックスが1つだけ残って全体の所要時間が延びることを避ける.
+ * 指定した場合は、データ量から新しく作成するインデックスのシャード数も決める.
+ */
+class RecoveryPlan {
+
+    private static Logger log = LoggerFactory.getLogger(RecoveryPlan.class);
+
+    /** 計画の出力で、個別に出力するインデックス数. */
+    private static final int LOG_LARGEST_COUNT = 10;
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long SECONDS_PER_MINUTE = 60L;
+    private static final long SECONDS_PER_HOUR = 3600L;
+
+    private final Map<String, IndexSize> sizes = new HashMap<String, IndexSize>();
+    private final long rowsPerSecond;
+    private final long bytesPerSecond;
+
+    /**
+     * コンストラクタ.
+     * @param rowsPerSecond 所要時間の見積もりに使用する、1ワーカーが1秒あたりに登録するレコード件数
+     * @param bytesPerSecond 所要時間の見積もりに使用する、1ワーカーが1秒あたりに登録するバイト数
+     */
+    RecoveryPlan(long rowsPerSecond, long bytesPerSecond) {
+        this.rowsPerSecond = rowsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * information_schemaから、リカバリ対象テーブルのデータ量をデータベース毎に読み込む.
+     * InnoDBのレコード件数(table_rows)は統計情報による概算値である.
+     * @param con MySQLコネクション
+     * @param tableNames リカバリ対象のテーブル名
+     * @throws SQLException 読み込みに失敗した場合
+     */
+    void readTableSizes(Connection con, String[] tableNames) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+                "SELECT table_schema, data_length, table_rows FROM information_schema.tables WHERE table_name IN (");
+        for (int i = 0; i < tableNames.length; i++) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append("?");
+        }
+        sql.append(")");
+        PreparedStatement stmt = con.prepareStatement(sql.toString());
+        try {
+            for (int i = 0; i < tableNames.length; i++) {
+                stmt.setString(i + 1, tableNames[i]);
+            }
+            ResultSet rs = stmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    add(rs.getString(1), rs.getLong(2), rs.getLong(3));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * ダンプファイルの目次から、リカバリ対象テーブルのレコード件数をデータベース毎に読み込む.
+     * ダンプファイルからはバイト数を求めないため、レコード件数のみで見積もる.
+     * @param dumpIndex ダンプファイルの目次
+     * @param tableNames リカバリ対象のテーブル名
+     */
+    void readTableSizes(MySqlDumpIndex dumpIndex, String[] tableNames) {
+        for (String database : dumpIndex.getDatabaseNames()) {
+            for (String tableName : tableNames) {
+                add(database, 0, dumpIndex.getRowCount(database, tableName));
+            }
+        }
+    }
+
+    /**
+     * インデックスのデータ量を加算する.
+     * @param index インデックス名
+     * @param bytes バイト数
+     * @param rows レコード件数
+     */
+    void add(String index, long bytes, long rows) {
+        IndexSize size = this.sizes.get(index);
+        if (size == null) {
+            size = new IndexSize();
+            this.sizes.put(index, size);
+        }
+        size.bytes += bytes;
+        size.rows += rows;
+    }
+
+    /**
+     * 新しく作成するインデックスのシャード数を、1シャードあたりのバイト数から決める.
+     * @param bytesPerShard 1シャードあたりのバイト数
+     * @param maxShards シャード数の上限
+     * @param excluded シャード数を決めないインデックス名(u0_ad等)
+     */
+    void planShards(long bytesPerShard, int maxShards, String excluded) {
+        for (Map.Entry<String, IndexSize> entry : this.sizes.entrySet()) {
+            if (entry.getKey().equals(excluded)) {
+                continue;
+            }
+            long shards = (entry.getValue().bytes + bytesPerShard - 1) / bytesPerShard;
+            entry.getValue().shards = (int) Math.max(1, Math.min(maxShards, shards));
+        }
+    }
+
+    /**
+     * @param index インデックス名
+     * @return 計画したシャード数、決めていない場合は0
+     */
+    int getShards(String index) {
+        IndexSize size = this.sizes.get(index);
+        if (size == null) {
+            return 0;
+        }
+        return size.shards;
+    }
+
+    /**
+     * インデックスを見積もった所要時間の長い順に並べる. データ量が不明なインデックスは最後に元の順序で並べる.
+     * @param indexes インデックス名の一覧
+     * @return 並べ替えたインデックス名の一覧
+     */
+    List<String> order(List<String> indexes) {
+        List<String> ordered = new ArrayList<String>(indexes);
+        // 安定ソートのため、所要時間が同じインデックスは元の順序を保つ
+        Collections.sort(ordered, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(estimate(b), estimate(a));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * インデックスのリカバリの所要時間を見積もる.
+     * レコード件数とバイト数のそれぞれから求めた時間のうち、長い方とする.
+     * @param index インデックス名
+     * @return 見積もった所要時間(ミリ秒)、データ量が不明な場合は0
+     */
+    long estimate(String index) {
+        IndexSize size = this.sizes.get(index);
+        if (size == null) {
+            return 0;
+        }
+        return Math.max(size.rows * MILLIS_PER_SECOND / this.rowsPerSecond,
+                size.bytes * MILLIS_PER_SECOND / this.bytesPerSecond);
+    }
+
+    /**
+     * 計画とリカバリ全体の所要時間の見積もりを出力する.
+     * 先に単独で処理するインデックスの後に、残りのインデックスを並べた順に空いたワーカーへ割り当てるものとして見積もる.
+     * @param first 先に単独で処理するインデックス名、ない場合はnull
+     * @param ordered 並べ替えたインデックス名の一覧
+     * @param workers ワーカー数
+     * @return 見積もった所要時間(ミリ秒)
+     */
+    long report(String first, List<String> ordered, int workers) {
+        long[] loads = new long[workers];
+        long rows = 0;
+        long bytes = 0;
+        for (String index : ordered) {
+            int idle = 0;
+            for (int i = 1; i < workers; i++) {
+                if (loads[i] < loads[idle]) {
+                    idle = i;
+                }
+            }
+            loads[idle] += estimate(index);
+            IndexSize size = this.sizes.get(index);
+            if (size != null) {
+                rows += size.rows;
+                bytes += size.bytes;
+            }
+        }
+        long makespan = 0;
+        for (long load : loads) {
+            makespan = Math.max(makespan, load);
+        }
+        int indexNum = ordered.size();
+        if (first != null) {
+            indexNum++;
+            makespan += estimate(first);
+            IndexSize size = this.sizes.get(first);
+            if (size != null) {
+                rows += size.rows;
+                bytes += size.bytes;
+            }
+        }
+
+        log.info(String.format("Recovery plan. [indexNum=%d, workers=%d, rows=%d, bytes=%d, estimated=%s]",
+                indexNum, workers, rows, bytes, formatDuration(makespan)));
+        if (first != null) {
+            log.info("  " + describe(first) + " (first)");
+        }
+        for (int i = 0; i < ordered.size() && i < LOG_LARGEST_COUNT; i++) {
+            log.info("  " + describe(ordered.get(i)));
+        }
+        if (ordered.size() > LOG_LARGEST_COUNT) {
+            log.info(String.format("  ... and %d more indexes", ordered.size() - LOG_LARGEST_COUNT));
+        }
+        return makespan;
+    }
+
+    private String describe(String index) {
+        IndexSize size = this.sizes.get(index);
+        if (size == null) {
+            return String.format("%s : size unknown", index);
+        }
+        String text = String.format("%s : rows=%d, bytes=%d, estimated=%s", index, size.rows, size.bytes,
+                formatDuration(estimate(index)));
+        if (size.shards > 0) {
+            text += ", shards=" + size.shards;
+        }
+        return text;
+    }
+
+    /**
+     * 所要時間を時:分:秒の形式にする.
+     * @param millis 所要時間(ミリ秒)
+     * @return 時:分:秒
+     */
+    static String formatDuration(long millis) {
+        long seconds = millis / MILLIS_PER_SECOND;
+        return String.format("%d:%02d:%02d", seconds / SECONDS_PER_HOUR, (seconds % SECONDS_PER_HOUR)
+                / SECONDS_PER_MINUTE, seconds % SECONDS_PER_MINUTE);
+    }
+
+    /**
+     * インデックスのデータ量.
+     */
+    private static class IndexSize {
+        private long bytes;
+        private long rows;
+        /** 計画したシャード数、決めていない場合は0. */
+        private int shards;
+    }
+}
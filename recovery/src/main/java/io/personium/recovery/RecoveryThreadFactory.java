@@ -0,0 +1,45 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * リカバリ用ワーカースレッドを生成するファクトリ.
+ * ログ出力時にどのワーカーの処理かを判別できるよう、スレッド名に用途と連番を付与する.
+ */
+class RecoveryThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger number = new AtomicInteger(0);
+
+    /**
+     * コンストラクタ.
+     * @param name スレッド名の接頭辞
+     */
+    RecoveryThreadFactory(String name) {
+        this.prefix = name + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, this.prefix + this.number.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.response.DcBulkResponse;
+
+/**
+ * 稼働中のクラスタへの影響を抑えるため、リカバリの流量をトークンバケットで制限するクラス.
+ * <p>
+ * 1秒あたりのドキュメント数・バルク登録の推定サイズ(バイト)・MySQLからの読み込みレコード数に上限を設け、
+ * 上限を超える場合は呼び出し元のスレッドを待機させる。上限の0は無制限を表す.
+ * 上限は実行中にJMX({@link #OBJECT_NAME})、または制御ファイル(プロパティ形式)の書き換えで変更できる.
+ * <p>
+ * 自動制御を有効にした場合は、バルク登録の結果に応じて上限に掛ける係数を増減する.
+ * <ul>
+ * <li>拒否(EsRejectedExecutionException)が発生した場合：係数を半分にする.</li>
+ * <li>応答時間が目標を超えた場合：係数を1/4減らす.</li>
+ * <li>応答時間が目標の半分未満の場合：係数を1/8増やす(1.0まで).</li>
+ * </ul>
+ * 上限が無制限の項目は、係数が下がり始めた時点の実績値を上限とみなして係数を掛ける.
+ */
+class RecoveryThrottle implements RecoveryThrottleMBean {
+
+    private static Logger log = LoggerFactory.getLogger(RecoveryThrottle.class);
+
+    /** JMXに登録する名前. */
+    static final String OBJECT_NAME = "io.personium.recovery:type=RecoveryThrottle";
+
+    private static final double NANOS_PER_SECOND = 1000000000d;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /** 自動制御で係数を下げる下限. */
+    private static final double MIN_FACTOR = 1d / 64;
+    /** 応答時間が目標を超えた場合に係数に掛ける値. */
+    private static final double SLOW_FACTOR = 0.75d;
+    /** 応答時間が十分に短い場合に係数に掛ける値. */
+    private static final double FAST_FACTOR = 1.125d;
+    /** 応答時間が十分に短いと判断する目標応答時間に対する割合の分母（1/2未満）. */
+    private static final int FAST_DIVISOR = 2;
+
+    private final TokenBucket docs = new TokenBucket();
+    private final TokenBucket bytes = new TokenBucket();
+    private final TokenBucket rows = new TokenBucket();
+    private volatile boolean auto;
+    private final long latencyTargetMillis;
+    private volatile double factor = 1d;
+    private ScheduledExecutorService scheduler;
+    private ObjectName registeredName;
+    private long controlFileModified;
+
+    /**
+     * 流量を制限しないコンストラクタ.
+     */
+    RecoveryThrottle() {
+        this(0, 0, 0, false, 0);
+    }
+
+    /**
+     * コンストラクタ.
+     * @param docsPerSecond 1秒あたりに登録するドキュメント数の上限、0の場合は無制限
+     * @param bytesPerSecond 1秒あたりに登録するバルク登録の推定サイズ(バイト)の上限、0の場合は無制限
+     * @param rowsPerSecond 1秒あたりにMySQLから読み込むレコード数の上限、0の場合は無制限
+     * @param auto ESの負荷に応じて上限を自動で下げる場合はtrue
+     * @param latencyTargetMillis 自動制御時の目標応答時間(ミリ秒)
+     */
+    RecoveryThrottle(long docsPerSecond, long bytesPerSecond, long rowsPerSecond, boolean auto,
+            long latencyTargetMillis) {
+        this.docs.setRate(docsPerSecond);
+        this.bytes.setRate(bytesPerSecond);
+        this.rows.setRate(rowsPerSecond);
+        this.auto = auto;
+        this.latencyTargetMillis = latencyTargetMillis;
+    }
+
+    /**
+     * 上限の設定値を解析する.
+     * @param key 設定項目名
+     * @param value 設定値
+     * @param current 設定値が指定されていない場合、不正な場合の値
+     * @return 解析した値
+     */
+    static long parseRate(String key, String value, long current) {
+        if (value == null || "".equals(value.trim())) {
+            return current;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            log.debug("invalid number", e);
+        }
+        String format = "configuration parameter value failed(%s), value ignored. [%s -> %d]";
+        log.warn(String.format(format, key, value, current));
+        return current;
+    }
+
+    /**
+     * JMXへの登録と、制御ファイルの監視を開始する.
+     * @param controlFile 制御ファイルのパス、nullの場合は監視しない
+     * @param intervalSeconds 制御ファイルを確認する間隔(秒)
+     */
+    void start(final String controlFile, int intervalSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, RecoveryThrottleMBean.class), name);
+            this.registeredName = name;
+        } catch (JMException e) {
+            log.warn("Failed to register throttle to JMX : " + e.getMessage());
+        }
+        if (controlFile == null) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new RecoveryThreadFactory("throttle"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload(new File(controlFile));
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * JMXへの登録と、制御ファイルの監視を終了する.
+     */
+    void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+        if (this.registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredName);
+            } catch (JMException e) {
+                log.debug("Failed to unregister throttle from JMX", e);
+            }
+            this.registeredName = null;
+        }
+    }
+
+    /**
+     * 制御ファイルが更新されていれば、記載された上限を反映する.
+     * 読み込みに失敗した場合は現在の上限のまま継続する.
+     * @param file 制御ファイル
+     */
+    private void reload(File file) {
+        long modified = file.lastModified();
+        if (modified == 0 || modified == this.controlFileModified) {
+            return;
+        }
+        this.controlFileModified = modified;
+        Properties properties = new Properties();
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read throttle control file : " + e.getMessage());
+            return;
+        }
+        setDocsPerSecond(parseRate(Recovery.THROTTLE_DOCS, properties.getProperty(Recovery.THROTTLE_DOCS),
+                getDocsPerSecond()));
+        setBytesPerSecond(parseRate(Recovery.THROTTLE_BYTES, properties.getProperty(Recovery.THROTTLE_BYTES),
+                getBytesPerSecond()));
+        setRowsPerSecond(parseRate(Recovery.THROTTLE_ROWS, properties.getProperty(Recovery.THROTTLE_ROWS),
+                getRowsPerSecond()));
+        String autoValue = properties.getProperty(Recovery.THROTTLE_AUTO);
+        if (autoValue != null && !"".equals(autoValue.trim())) {
+            setAuto(Boolean.parseBoolean(autoValue.trim()));
+        }
+    }
+
+    /**
+     * MySQLから読み込んだレコード数を計上し、上限を超えている場合は待機する.
+     * @param count 読み込んだレコード数
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void acquireRows(long count) throws InterruptedException {
+        sleep(this.rows.reserve(count, limitOf(this.rows)));
+    }
+
+    /**
+     * バルク登録するドキュメント数と推定サイズを計上し、上限を超えている場合は待機する.
+     * @param count ドキュメント数
+     * @param size 推定サイズ(バイト)
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void acquireBulk(long count, long size) throws InterruptedException {
+        long docsWait = this.docs.reserve(count, limitOf(this.docs));
+        long bytesWait = this.bytes.reserve(size, limitOf(this.bytes));
+        sleep(Math.max(docsWait, bytesWait));
+    }
+
+    /**
+     * バルク登録の結果を反映して、自動制御の係数を調整する.
+     * @param latencyMillis バルク登録の応答時間(ミリ秒)
+     * @param response バルク登録結果のレスポンス、登録データなしの場合はnull
+     */
+    void onBulkCompleted(long latencyMillis, DcBulkResponse response) {
+        if (!this.auto) {
+            return;
+        }
+        boolean rejected = BulkSizeController.isRejected(response);
+        synchronized (this) {
+            double current = this.factor;
+            double next = current;
+            if (rejected) {
+                next = current / 2;
+            } else if (latencyMillis > this.latencyTargetMillis) {
+                next = current * SLOW_FACTOR;
+            } else if (latencyMillis < this.latencyTargetMillis / FAST_DIVISOR) {
+                next = Math.min(1d, current * FAST_FACTOR);
+            }
+            next = Math.max(MIN_FACTOR, next);
+            if (next == current) {
+                return;
+            }
+            if (current == 1d) {
+                // 無制限の項目は、下げ始めた時点の実績値を基準にする
+                this.docs.holdCeiling();
+                this.bytes.holdCeiling();
+                this.rows.holdCeiling();
+            } else if (next == 1d) {
+                this.docs.releaseCeiling();
+                this.bytes.releaseCeiling();
+                this.rows.releaseCeiling();
+            }
+            this.factor = next;
+            if (rejected) {
+                log.info(String.format("Bulk request rejected. Throttle factor changed. [%.3f -> %.3f]", current,
+                        next));
+            } else {
+                log.debug(String.format("Throttle factor changed. [%.3f -> %.3f] latency=%dms", current, next,
+                        latencyMillis));
+            }
+        }
+    }
+
+    /**
+     * 現在の係数を掛けた、1秒あたりの上限を求める.
+     * @param bucket 対象のバケット
+     * @return 1秒あたりの上限、0の場合は無制限
+     */
+    private double limitOf(TokenBucket bucket) {
+        if (!this.auto) {
+            return bucket.getRate();
+        }
+        double base = bucket.getRate();
+        if (base == 0) {
+            base = bucket.getCeiling();
+        }
+        return base * this.factor;
+    }
+
+    private static void sleep(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    @Override
+    public long getDocsPerSecond() {
+        return this.docs.getRate();
+    }
+
+    @Override
+    public void setDocsPerSecond(long value) {
+        changeRate("docs/sec", this.docs, value);
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return this.bytes.getRate();
+    }
+
+    @Override
+    public void setBytesPerSecond(long value) {
+        changeRate("bytes/sec", this.bytes, value);
+    }
+
+    @Override
+    public long getRowsPerSecond() {
+        return this.rows.getRate();
+    }
+
+    @Override
+    public void setRowsPerSecond(long value) {
+        changeRate("rows/sec", this.rows, value);
+    }
+
+    @Override
+    public boolean isAuto() {
+        return this.auto;
+    }
+
+    @Override
+    public synchronized void setAuto(boolean value) {
+        if (this.auto == value) {
+            return;
+        }
+        this.auto = value;
+        this.factor = 1d;
+        this.docs.releaseCeiling();
+        this.bytes.releaseCeiling();
+        this.rows.releaseCeiling();
+        log.info(String.format("Throttle auto mode changed. [%b]", value));
+    }
+
+    @Override
+    public double getAutoFactor() {
+        return this.factor;
+    }
+
+    private static void changeRate(String name, TokenBucket bucket, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        long current = bucket.getRate();
+        if (current != value) {
+            bucket.setRate(value);
+            log.info(String.format("Throttle %s changed. [%d -> %d]", name, current, value));
+        }
+    }
+
+    /**
+     * 1種類の流量を制限するトークンバケット.
+     * 1秒分のトークンまで蓄積し、不足分は前借りさせて、不足が解消するまでの時間だけ待機させる.
+     * 実績値の計測のため、流量を制限しない場合も計上する.
+     */
+    private static final class TokenBucket {
+        private volatile long rate;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+        /** 実績値を計測している期間の開始時刻. */
+        private long windowStart = System.nanoTime();
+        /** 実績値を計測している期間に計上した量. */
+        private long windowCount;
+        /** 直前の計測期間の1秒あたりの実績値. */
+        private double measured;
+        /** 上限が無制限の場合に、自動制御の基準とする1秒あたりの値. */
+        private volatile double ceiling;
+
+        long getRate() {
+            return this.rate;
+        }
+
+        synchronized void setRate(long value) {
+            this.rate = value;
+            this.tokens = Math.min(this.tokens, value);
+        }
+
+        double getCeiling() {
+            return this.ceiling;
+        }
+
+        synchronized void holdCeiling() {
+            this.ceiling = Math.max(this.measured, currentRate(System.nanoTime()));
+        }
+
+        void releaseCeiling() {
+            this.ceiling = 0;
+        }
+
+        /**
+         * 指定した量を計上し、待機が必要な時間を求める.
+         * @param count 計上する量
+         * @param limit 1秒あたりの上限、0の場合は無制限
+         * @return 待機が必要な時間(ナノ秒)
+         */
+        synchronized long reserve(long count, double limit) {
+            long now = System.nanoTime();
+            this.windowCount += count;
+            if (now - this.windowStart >= NANOS_PER_SECOND) {
+                this.measured = currentRate(now);
+                this.windowStart = now;
+                this.windowCount = 0;
+            }
+            if (limit <= 0) {
+                this.tokens = 0;
+                this.lastNanos = now;
+                return 0;
+            }
+            this.tokens = Math.min(limit, this.tokens + (now - this.lastNanos) * limit / NANOS_PER_SECOND);
+            this.lastNanos = now;
+            this.tokens -= count;
+            if (this.tokens >= 0) {
+                return 0;
+            }
+            return Math.max(NANOS_PER_MILLI, (long) (-this.tokens * NANOS_PER_SECOND / limit));
+        }
+
+        private double currentRate(long now) {
+            long elapsed = now - this.windowStart;
+            if (elapsed <= 0) {
+                return this.measured;
+            }
+            return this.windowCount * NANOS_PER_SECOND / elapsed;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+/**
+ * リカバリの流量制限をJMXから参照・変更するためのインタフェース.
+ * 上限値の0は無制限を表す.
+ */
+public interface RecoveryThrottleMBean {
+
+    /**
+     * @return 1秒あたりに登録するドキュメント数の上限
+     */
+    long getDocsPerSecond();
+
+    /**
+     * @param value 1秒あたりに登録するドキュメント数の上限
+     */
+    void setDocsPerSecond(long value);
+
+    /**
+     * @return 1秒あたりに登録するバルク登録の推定サイズ(バイト)の上限
+     */
+    long getBytesPerSecond();
+
+    /**
+     * @param value 1秒あたりに登録するバルク登録の推定サイズ(バイト)の上限
+     */
+    void setBytesPerSecond(long value);
+
+    /**
+     * @return 1秒あたりにMySQLから読み込むレコード数の上限
+     */
+    long getRowsPerSecond();
+
+    /**
+     * @param value 1秒あたりにMySQLから読み込むレコード数の上限
+     */
+    void setRowsPerSecond(long value);
+
+    /**
+     * @return ESの負荷に応じて上限を自動で下げる場合はtrue
+     */
+    boolean isAuto();
+
+    /**
+     * @param value ESの負荷に応じて上限を自動で下げる場合はtrue
+     */
+    void setAuto(boolean value);
+
+    /**
+     * @return 自動制御で上限に掛けている係数(1.0で上限どおり)
+     */
+    double getAutoFactor();
+}
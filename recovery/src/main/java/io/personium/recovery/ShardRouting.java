@@ -0,0 +1,52 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+/**
+ * ルーティングキーからドキュメントの登録先シャードを求めるクラス.
+ * Elasticsearch(0.19/1.2)のデフォルトのルーティング(DJBハッシュをシャード数で割った余り)と同じ計算を行う.
+ */
+class ShardRouting {
+
+    /** DJBハッシュの初期値. */
+    private static final long DJB_HASH_SEED = 5381L;
+    /** DJBハッシュのシフト量. */
+    private static final int DJB_HASH_SHIFT = 5;
+
+    private final int numberOfShards;
+
+    /**
+     * コンストラクタ.
+     * @param numberOfShards 登録先インデックスのシャード数
+     */
+    ShardRouting(int numberOfShards) {
+        this.numberOfShards = numberOfShards;
+    }
+
+    /**
+     * ルーティングキーから登録先シャードの番号を求める.
+     * @param routing ルーティングキー
+     * @return シャード番号
+     */
+    int shardOf(String routing) {
+        long hash = DJB_HASH_SEED;
+        for (int i = 0; i < routing.length(); i++) {
+            hash = ((hash << DJB_HASH_SHIFT) + hash) + routing.charAt(i);
+        }
+        return Math.abs(((int) hash) % this.numberOfShards);
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.common.es.EsClient;
+import io.personium.common.es.response.DcBulkResponse;
+import io.personium.common.es.response.DcSearchHit;
+import io.personium.common.es.response.DcSearchResponse;
+import io.personium.core.model.impl.es.odata.EsQueryHandlerHelper;
+
+/**
+ * リカバリするインデックスのユニットユーザが所有するCellを、u0_adからまとめて削除するクラス.
+ * 最初の削除時にu0_adの全Cellの所有者をスクロール検索で一度だけ取得し、ユニットユーザ毎のCellのIDを保持する.
+ * スクロール検索用のESクライアントは検索の間だけ作成し、検索後にスクロールのコンテキストとともに解放する.
+ * 所有者での絞り込み(前方ワイルドカード)をESで行わないため、インデックス毎の検索が不要となる.
+ */
+class UnnecessaryCellCleaner {
+
+    private static Logger log = LoggerFactory.getLogger(UnnecessaryCellCleaner.class);
+
+    /** 所有者のないCellのユニットユーザ名. */
+    private static final String ANONYMOUS_OWNER = "anon";
+    /** 所有者URLとユニットユーザ名の区切り文字. */
+    private static final char OWNER_SEPARATOR = '#';
+
+    private final String adIndex;
+    private final int bulkSize;
+    private final int threads;
+    private final String esHosts;
+    private final String esCluster;
+    private final EsAliasClient httpClient;
+    /** ユニットユーザ名毎のCellのID. 最初の削除時に作成する. */
+    private Map<String, List<String>> cellsByOwner;
+
+    /**
+     * コンストラクタ.
+     * @param adIndex Cellを登録しているインデックス名(u0_ad)
+     * @param bulkSize 1回のスクロール検索での取得件数、および1回のBulk削除の件数
+     * @param threads 同時に実行するBulk削除の数
+     * @param esHosts ESのホスト一覧
+     * @param esCluster ESのクラスタ名
+     * @param esHttpPort ESのHTTPのポート(スクロールの解放に使用する)
+     */
+    UnnecessaryCellCleaner(String adIndex, int bulkSize, int threads, String esHosts, String esCluster,
+            int esHttpPort) {
+        this.adIndex = adIndex;
+        this.bulkSize = bulkSize;
+        this.threads = threads;
+        this.esHosts = esHosts;
+        this.esCluster = esCluster;
+        this.httpClient = new EsAliasClient(esHosts, esHttpPort);
+    }
+
+    /**
+     * 指定したユニットユーザが所有するCellを削除する.
+     * @param esRecovery 使用するEsRecovery
+     * @param unitUserName ユニットユーザ名
+     * @throws Exception 削除に失敗した場合
+     */
+    void delete(final EsRecovery esRecovery, String unitUserName) throws Exception {
+        final List<String> cellIds = cellsOf(esRecovery, unitUserName);
+        log.info("Unnecessary Cell Count :[" + cellIds.size() + "]");
+        if (cellIds.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads,
+                new RecoveryThreadFactory(Thread.currentThread().getName() + "-cell"));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        final AtomicInteger deleted = new AtomicInteger(0);
+        try {
+            for (int from = 0; from < cellIds.size(); from += this.bulkSize) {
+                final List<String> chunk = cellIds.subList(from, Math.min(from + this.bulkSize, cellIds.size()));
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        deleteChunk(esRecovery, chunk);
+                        log.info(String.format("Deleted cells [%d/%d]", deleted.addAndGet(chunk.size()),
+                                cellIds.size()));
+                        return null;
+                    }
+                }));
+            }
+
+            // 全Bulk削除の完了を待ち合わせ、最初に発生した失敗を通知する
+            Exception failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        if (e.getCause() instanceof Exception) {
+                            failure = (Exception) e.getCause();
+                        } else {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * CellをまとめてBulk削除する.
+     * @param esRecovery 使用するEsRecovery
+     * @param chunk 削除するCellのID
+     * @throws RecoveryException 削除に失敗したCellがある場合
+     */
+    private void deleteChunk(EsRecovery esRecovery, List<String> chunk) throws RecoveryException {
+        DcBulkResponse response = esRecovery.deleteCells(this.adIndex, chunk);
+        if (response != null && response.hasFailures()) {
+            log.error("Failed to delete cell data on elasticsearch");
+            throw new RecoveryException(response.buildFailureMessage());
+        }
+    }
+
+    /**
+     * 指定したユニットユーザが所有するCellのIDを取得する.
+     * 削除対象として返したIDは保持しない.
+     * @param esRecovery 使用するEsRecovery
+     * @param unitUserName ユニットユーザ名
+     * @return CellのID
+     */
+    private synchronized List<String> cellsOf(EsRecovery esRecovery, String unitUserName) {
+        if (this.cellsByOwner == null) {
+            this.cellsByOwner = scanCells();
+        }
+        List<String> cellIds = this.cellsByOwner.remove(unitUserName);
+        if (cellIds == null) {
+            return Collections.emptyList();
+        }
+        return cellIds;
+    }
+
+    /**
+     * u0_adの全Cellの所有者(h.Owner)をスクロール検索し、ユニットユーザ毎のCellのIDを作成する.
+     * 所有者での絞り込みは行わず、全Cellを対象とする.
+     * @return ユニットユーザ名毎のCellのID
+     */
+    private Map<String, List<String>> scanCells() {
+        Map<String, List<String>> owners = new HashMap<String, List<String>>();
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("size", this.bulkSize);
+        List<String> fields = new ArrayList<String>();
+        fields.add("h");
+        // ESのバージョンに合わせたクエリの作成
+        EsQueryHandlerHelper.composeSourceFilter(query, fields);
+
+        EsClient scrollClient = new EsClient(this.esCluster, this.esHosts);
+        String scrollId = null;
+        try {
+            DcSearchResponse response = scrollClient.scrollSearch(this.adIndex, "Cell", query);
+            long total = response.hits().allPages();
+            scrollId = response.getScrollId();
+            long scanned = 0;
+            while (true) {
+                response = scrollClient.scrollSearch(scrollId);
+                scrollId = response.getScrollId();
+                DcSearchHit[] hits = response.hits().hits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (DcSearchHit hit : hits) {
+                    addCell(owners, hit);
+                }
+                scanned += hits.length;
+                log.info(String.format("Scanned cells [%d/%d]", scanned, total));
+            }
+        } finally {
+            clearScroll(scrollId);
+            scrollClient.closeConnection();
+        }
+        return owners;
+    }
+
+    /**
+     * スクロール検索のコンテキストを解放する. 解放に失敗した場合は、保持期間の経過後にESが解放するため警告のみとする.
+     * @param scrollId スクロールID、検索を開始できなかった場合はnull
+     */
+    private void clearScroll(String scrollId) {
+        if (scrollId == null) {
+            return;
+        }
+        try {
+            this.httpClient.clearScroll(scrollId);
+        } catch (IOException e) {
+            log.warn("Failed to clear scroll context of cell scan. " + e.toString());
+        }
+    }
+
+    /**
+     * Cellを所有者のユニットユーザ名毎のリストへ追加する.
+     * 従来の検索条件(h.Owner.untouchedが「ユニットユーザ名」または「*#ユニットユーザ名」に一致、所有者がない場合はanon)と同じ分類とする.
+     * @param owners ユニットユーザ名毎のCellのID
+     * @param hit 検索結果のCell
+     */
+    private void addCell(Map<String, List<String>> owners, DcSearchHit hit) {
+        String owner = null;
+        Map<String, Object> source = hit.getSource();
+        if (source != null && source.get("h") instanceof Map) {
+            Object value = ((Map<?, ?>) source.get("h")).get("Owner");
+            if (value != null) {
+                owner = value.toString();
+            }
+        }
+        if (owner == null) {
+            addCell(owners, ANONYMOUS_OWNER, hit.getId());
+            return;
+        }
+        addCell(owners, owner, hit.getId());
+        int separator = owner.lastIndexOf(OWNER_SEPARATOR);
+        if (separator >= 0) {
+            addCell(owners, owner.substring(separator + 1), hit.getId());
+        }
+    }
+
+    /**
+     * Cellをユニットユーザ名のリストへ追加する.
+     * @param owners ユニットユーザ名毎のCellのID
+     * @param unitUserName ユニットユーザ名
+     * @param cellId CellのID
+     */
+    private void addCell(Map<String, List<String>> owners, String unitUserName, String cellId) {
+        List<String> cellIds = owners.get(unitUserName);
+        if (cellIds == null) {
+            cellIds = new ArrayList<String>();
+            owners.put(unitUserName, cellIds);
+        }
+        cellIds.add(cellId);
+    }
+}
@@ -21,6 +21,12 @@ package io.personium.recovery.tables;
  */
 public abstract class AbstractTableHandler implements ITableHandler {
 
+    /**
+     * リカバリ元テーブル名を取得する.
+     * @return リカバリ元テーブル名
+     */
+    public abstract String getTableName();
+
     /**
      * リカバリ用一時テーブル名を取得する.
      * @return リカバリ用一時テーブル名
@@ -93,4 +99,149 @@ public abstract class AbstractTableHandler implements ITableHandler {
         return String.format(sqlFormat, dbName, getCopiedTableName(), start, end);
     }
 
+    /**
+     * リカバリ元テーブルを主キー順にページングして取得するDMLを取得する.
+     * afterKeyがtrueの場合は、前ページの最後の主キーをパラメータ(?)として受け取るDMLとなる.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @return 生成したレコード取得用DML
+     */
+    public String getSelectTableByKeySqlString(String dbName, boolean afterKey, int limit) {
+        return getSelectTableByKeySqlString(dbName, afterKey, limit, false);
+    }
+
+    /**
+     * リカバリ元テーブルを主キー順にページングして取得するDMLを取得する.
+     * updatedSinceがtrueの場合は、更新日時(updated)の下限を最初のパラメータ(?)として受け取り、それ以降に更新されたレコードのみ取得する.
+     * afterKeyがtrueの場合は、前ページの最後の主キーを次のパラメータ(?)として受け取るDMLとなる.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @param updatedSince 更新日時で絞り込む場合はtrue
+     * @return 生成したレコード取得用DML
+     */
+    public String getSelectTableByKeySqlString(String dbName, boolean afterKey, int limit, boolean updatedSince) {
+        StringBuilder sql = new StringBuilder();
+        sql.append(String.format("SELECT * FROM `%s`.`%s`", dbName, getTableName()));
+        String conjunction = " WHERE ";
+        if (updatedSince) {
+            sql.append(conjunction).append("updated >= ?");
+            conjunction = " AND ";
+        }
+        if (afterKey) {
+            sql.append(conjunction).append("id > ?");
+        }
+        sql.append(String.format(" ORDER BY id LIMIT %d", limit));
+        return sql.toString();
+    }
+
+    /**
+     * リカバリ元テーブルの指定した更新日時(updated)以降に更新されたレコード件数取得用DMLを取得する.
+     * 更新日時の下限はパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @return 生成したレコード件数取得用DML
+     */
+    public String getSelectCountUpdatedSqlString(String dbName) {
+        String sqlFormat = "SELECT COUNT(*) AS CNT FROM `%s`.`%s` WHERE updated >= ?";
+        return String.format(sqlFormat, dbName, getTableName());
+    }
+
+    /**
+     * リカバリ元テーブルから指定した主キーのレコードを取得するDMLを取得する.
+     * 主キーはパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @param count 主キーの数
+     * @return 生成したレコード取得用DML
+     */
+    public String getSelectTableByIdsSqlString(String dbName, int count) {
+        StringBuilder sql = new StringBuilder();
+        sql.append(String.format("SELECT * FROM `%s`.`%s` WHERE id IN (", dbName, getTableName()));
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append("?");
+        }
+        sql.append(") ORDER BY id");
+        return sql.toString();
+    }
+
+    /**
+     * ドキュメントのルーティングIDを保持するカラム名を取得する.
+     * @return カラム名
+     */
+    public String getRoutingColumn() {
+        return "cell_id";
+    }
+
+    /**
+     * リカバリ元テーブルをルーティングID、主キーの順にページングして取得するDMLを取得する.
+     * updatedSinceがtrueの場合は、更新日時(updated)の下限を最初のパラメータ(?)として受け取り、それ以降に更新されたレコードのみ取得する.
+     * afterKeyがtrueの場合は、前ページの最後のレコードのルーティングID、ルーティングID、主キーを続くパラメータ(?)として受け取るDMLとなる.
+     * 前ページの最後のレコードのルーティングIDがNULLの場合(nullRoutingがtrue)は、主キーのみをパラメータ(?)として受け取る.
+     * MySQLではNULLは最初に並ぶため、ルーティングIDがNULLのレコードの後にNULL以外のレコードを取得する.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後のレコードより後を取得する場合はtrue
+     * @param nullRouting 前ページの最後のレコードのルーティングIDがNULLの場合はtrue
+     * @param limit 1ページの件数
+     * @param updatedSince 更新日時で絞り込む場合はtrue
+     * @return 生成したレコード取得用DML
+     */
+    public String getSelectTableByRoutingSqlString(String dbName, boolean afterKey, boolean nullRouting, int limit,
+            boolean updatedSince) {
+        String column = getRoutingColumn();
+        StringBuilder sql = new StringBuilder();
+        sql.append(String.format("SELECT * FROM `%s`.`%s`", dbName, getTableName()));
+        String conjunction = " WHERE ";
+        if (updatedSince) {
+            sql.append(conjunction).append("updated >= ?");
+            conjunction = " AND ";
+        }
+        if (afterKey && nullRouting) {
+            sql.append(conjunction).append(String.format("((%1$s IS NULL AND id > ?) OR %1$s IS NOT NULL)", column));
+        } else if (afterKey) {
+            sql.append(conjunction).append(String.format("(%1$s > ? OR (%1$s = ? AND id > ?))", column));
+        }
+        sql.append(String.format(" ORDER BY %s, id LIMIT %d", column, limit));
+        return sql.toString();
+    }
+
+    /**
+     * レコードが属するCellのIDを保持するカラム名を取得する.
+     * @return カラム名
+     */
+    public String getCellColumn() {
+        return "cell_id";
+    }
+
+    /**
+     * リカバリ元テーブルの指定したCellに属するレコード件数取得用DMLを取得する.
+     * CellのIDはパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @return 生成したレコード件数取得用DML
+     */
+    public String getSelectCountCellSqlString(String dbName) {
+        String sqlFormat = "SELECT COUNT(*) AS CNT FROM `%s`.`%s` WHERE %s = ?";
+        return String.format(sqlFormat, dbName, getTableName(), getCellColumn());
+    }
+
+    /**
+     * リカバリ元テーブルの指定したCellに属するレコードを主キー順にページングして取得するDMLを取得する.
+     * CellのIDを最初のパラメータ(?)として受け取り、afterKeyがtrueの場合は前ページの最後の主キーを次のパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @return 生成したレコード取得用DML
+     */
+    public String getSelectTableByCellSqlString(String dbName, boolean afterKey, int limit) {
+        StringBuilder sql = new StringBuilder();
+        sql.append(String.format("SELECT * FROM `%s`.`%s` WHERE %s = ?", dbName, getTableName(), getCellColumn()));
+        if (afterKey) {
+            sql.append(" AND id > ?");
+        }
+        sql.append(String.format(" ORDER BY id LIMIT %d", limit));
+        return sql.toString();
+    }
+
 }
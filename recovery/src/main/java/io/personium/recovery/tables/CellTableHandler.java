@@ -21,6 +21,35 @@ package io.personium.recovery.tables;
  */
 public class CellTableHandler extends AbstractTableHandler {
 
+    /**
+     * リカバリ元テーブル名を取得する.
+     * @return リカバリ元テーブル名
+     */
+    @Override
+    public String getTableName() {
+        return "CELL";
+    }
+
+    /**
+     * ドキュメントのルーティングIDを保持するカラム名を取得する.
+     * Cellはu0_adへ固定のルーティングIDで登録するため、ルーティングIDを保持するカラムを持たない.
+     * @return null
+     */
+    @Override
+    public String getRoutingColumn() {
+        return null;
+    }
+
+    /**
+     * レコードが属するCellのIDを保持するカラム名を取得する.
+     * CELLテーブルはCell自身のレコードのため、主キーがCellのIDとなる.
+     * @return id
+     */
+    @Override
+    public String getCellColumn() {
+        return "id";
+    }
+
     /**
      * リカバリ用一時テーブル名を取得する.
      * @return リカバリ用一時テーブル名
@@ -0,0 +1,149 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.recovery.RecoveryException;
+
+/**
+ * リカバリ用一時テーブル（*_COPIED）へコピーしてから、シーケンス番号の範囲でページ単位に読み込むクラス.
+ */
+public class CopiedTableReader implements ITableReader {
+
+    private static Logger log = LoggerFactory.getLogger(CopiedTableReader.class);
+
+    private final String dbName;
+    private final ITableHandler handler;
+    private final Connection connection;
+    private final int pageSize;
+    /** 次に読み込むページの件数. */
+    private int limit;
+    private Statement stmt;
+    private ResultSet rs;
+    private int total;
+    private int current;
+
+    /**
+     * コンストラクタ.
+     * @param dbName DB名
+     * @param handler ESへのリストア用テーブル操作オブジェクト
+     * @param connection MySQLコネクション
+     * @param pageSize 1ページの件数
+     */
+    public CopiedTableReader(String dbName, ITableHandler handler, Connection connection, int pageSize) {
+        this.dbName = dbName;
+        this.handler = handler;
+        this.connection = connection;
+        this.pageSize = pageSize;
+        this.limit = pageSize;
+    }
+
+    @Override
+    public int open() throws SQLException, RecoveryException {
+        this.stmt = this.connection.createStatement();
+        this.total = selectCountTable(handler.getSelectCountTableSqlString(dbName, handler.getTableName()));
+
+        // ESへのリストア用テーブルを作成して、データをコピーする。これにより、シーケンス番号が付加されたテーブルとなる。
+        // まずはリストア用のESへのリストア用テーブルを作成する。
+        stmt.executeUpdate(handler.getCreateTableSqlString(dbName));
+        log.info(String.format("create table %s.", handler.getCopiedTableName()));
+
+        // すでにテーブルが作成されている可能性があるため、一旦テーブル内のレコードを削除する。
+        stmt.executeUpdate(handler.getTruncateTableSqlString(dbName));
+        log.info(String.format("truncate table %s.", handler.getCopiedTableName()));
+
+        // テーブルをコピーする。
+        stmt.executeUpdate(handler.getCopyTableSqlString(dbName));
+        log.info(String.format("copied table %s.", handler.getCopiedTableName()));
+
+        // コピーしたレコード件数が正しいかどうかを確認する。
+        int count = selectCountTable(handler.getSelectCountTableSqlString(dbName));
+        if (count != this.total) {
+            String message = String.format("failed to copy recoreds. [master=%d, copied=%d]", this.total, count);
+            log.error(message);
+            throw new RecoveryException(message);
+        }
+        this.current = 0;
+        return this.total;
+    }
+
+    @Override
+    public ResultSet next() throws SQLException {
+        closeResultSet();
+        if (this.current >= this.total) {
+            return null;
+        }
+        String sqlstatement = handler.getSelectTableSqlString(dbName, this.current + 1, this.current
+                + this.limit);
+        this.current += this.limit;
+        this.rs = stmt.executeQuery(sqlstatement);
+        return this.rs;
+    }
+
+    @Override
+    public void setPageSize(int size) {
+        this.limit = Math.max(1, Math.min(this.pageSize, size));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closeResultSet();
+        if (null != this.stmt) {
+            try {
+                // リカバリの完了後、ESへのリストア用テーブルを削除する。
+                stmt.executeUpdate(handler.getDropTableSqlString(dbName));
+                log.info(String.format("drop table %s.", handler.getCopiedTableName()));
+            } finally {
+                this.stmt.close();
+                this.stmt = null;
+            }
+        }
+    }
+
+    /**
+     * テーブル内の全レコード件数を取得する.
+     * @param sql 件数取得用DML
+     * @return テーブル内の全レコード件数
+     * @throws SQLException SQL実行エラー
+     */
+    private int selectCountTable(String sql) throws SQLException {
+        ResultSet result = stmt.executeQuery(sql);
+        try {
+            int count = -1;
+            if (result.next()) {
+                count = result.getInt("CNT");
+            }
+            return count;
+        } finally {
+            result.close();
+        }
+    }
+
+    private void closeResultSet() throws SQLException {
+        if (null != this.rs) {
+            this.rs.close();
+            this.rs = null;
+        }
+    }
+}
@@ -21,6 +21,15 @@ package io.personium.recovery.tables;
  */
 public class DavNodeTableHandler extends AbstractTableHandler {
 
+    /**
+     * リカバリ元テーブル名を取得する.
+     * @return リカバリ元テーブル名
+     */
+    @Override
+    public String getTableName() {
+        return "DAV_NODE";
+    }
+
     /**
      * リカバリ用一時テーブル名を取得する.
      * @return リカバリ用一時テーブル名
@@ -0,0 +1,424 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.recovery.RecoveryException;
+
+/**
+ * mysqldumpで出力したダンプファイルのINSERT文を解析して、ページ単位に読み込むクラス.
+ * MySQLへリストアせずに、バックアップしたダンプファイルから直接ESをリカバリするために使用する.
+ * ダンプファイルの目次({@link MySqlDumpIndex})からテーブルのINSERT文の位置へ移動し、INSERT文を順に解析する.
+ */
+public class DumpTableReader implements ITableReader {
+
+    private static Logger log = LoggerFactory.getLogger(DumpTableReader.class);
+
+    private static final String VALUES = " VALUES ";
+    private static final String UPDATED_COLUMN = "updated";
+    private static final char CTRL_Z = '\u001a';
+    /** エラーメッセージに含めるINSERT文の長さ. */
+    private static final int ABBREVIATE_LENGTH = 100;
+
+    private final MySqlDumpIndex index;
+    private final String dbName;
+    private final ITableHandler handler;
+    private final int pageSize;
+    /** 次に読み込むページの件数. */
+    private int limit;
+    private final String insertPrefix;
+    private Long updatedSince;
+    private String cellId;
+    private MySqlDumpIndex.Section section;
+    private RowSetMetaDataImpl metaData;
+    private RowSetFactory factory;
+    private int updatedIndex = -1;
+    private int cellIndex = -1;
+    private int segment = 0;
+    private BufferedReader input;
+    /** 解析中のINSERT文. */
+    private String statement;
+    /** 解析中のINSERT文の、次の値の組の位置. */
+    private int position;
+
+    /**
+     * コンストラクタ.
+     * @param index ダンプファイルの目次
+     * @param dbName DB名
+     * @param handler ESへのリストア用テーブル操作オブジェクト
+     * @param pageSize 1ページの件数
+     */
+    public DumpTableReader(MySqlDumpIndex index, String dbName, ITableHandler handler, int pageSize) {
+        this.index = index;
+        this.dbName = dbName;
+        this.handler = handler;
+        this.pageSize = pageSize;
+        this.limit = pageSize;
+        this.insertPrefix = MySqlDumpIndex.INSERT_PREFIX + handler.getTableName() + "` ";
+    }
+
+    /**
+     * 差分リカバリの更新日時の下限を設定する.
+     * @param since 更新日時の下限(エポックミリ秒)、全件読み込む場合はnull
+     */
+    public void setUpdatedSince(Long since) {
+        this.updatedSince = since;
+    }
+
+    /**
+     * 指定したCellに属するレコードのみ読み込むよう設定する.
+     * @param cellId CellのID、nullの場合は全レコードを読み込む
+     */
+    public void setCellId(String cellId) {
+        this.cellId = cellId;
+    }
+
+    @Override
+    public int open() throws SQLException, RecoveryException {
+        this.section = this.index.getSection(this.dbName, this.handler.getTableName());
+        if (this.section == null) {
+            log.info(String.format("%s.%s is not found in dump.", this.dbName, this.handler.getTableName()));
+            return 0;
+        }
+        List<String> columns = this.section.getColumns();
+        if (columns == null) {
+            throw new RecoveryException(String.format("Column definition of %s.%s is not found in dump."
+                    + " Dump with CREATE TABLE statements or --complete-insert.",
+                    this.dbName, this.handler.getTableName()));
+        }
+        this.metaData = new RowSetMetaDataImpl();
+        this.metaData.setColumnCount(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            this.metaData.setColumnName(i + 1, columns.get(i));
+            this.metaData.setColumnLabel(i + 1, columns.get(i));
+            this.metaData.setColumnType(i + 1, Types.VARCHAR);
+            if (UPDATED_COLUMN.equals(columns.get(i))) {
+                this.updatedIndex = i;
+            }
+            if (this.handler.getCellColumn().equals(columns.get(i))) {
+                this.cellIndex = i;
+            }
+        }
+        this.factory = RowSetProvider.newFactory();
+        if (this.updatedSince != null && this.updatedIndex < 0) {
+            throw new RecoveryException(String.format("%s.%s has no %s column.", this.dbName,
+                    this.handler.getTableName(), UPDATED_COLUMN));
+        }
+        if (this.cellId != null && this.cellIndex < 0) {
+            throw new RecoveryException(String.format("%s.%s has no %s column.", this.dbName,
+                    this.handler.getTableName(), this.handler.getCellColumn()));
+        }
+        if (this.updatedSince == null && this.cellId == null) {
+            return (int) this.section.getRows();
+        }
+        return countTargets();
+    }
+
+    @Override
+    public ResultSet next() throws SQLException {
+        if (this.section == null) {
+            return null;
+        }
+        CachedRowSet page = null;
+        int count = 0;
+        String[] row = new String[this.metaData.getColumnCount()];
+        while (count < this.limit && nextRow(row)) {
+            if (!isTarget(row)) {
+                continue;
+            }
+            if (page == null) {
+                page = this.factory.createCachedRowSet();
+                page.setMetaData(this.metaData);
+            }
+            // 挿入行は現在行の後ろに追加されるため、最終行へ移動してから追加する
+            page.last();
+            page.moveToInsertRow();
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] == null) {
+                    page.updateNull(i + 1);
+                } else {
+                    page.updateString(i + 1, row[i]);
+                }
+            }
+            page.insertRow();
+            page.moveToCurrentRow();
+            count++;
+        }
+        if (page == null) {
+            return null;
+        }
+        page.beforeFirst();
+        return page;
+    }
+
+    @Override
+    public void setPageSize(int size) {
+        this.limit = Math.max(1, Math.min(this.pageSize, size));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closeInput();
+    }
+
+    /**
+     * 指定したCellに属するレコード、差分リカバリの対象のレコードの件数を数える.
+     * 目次のレコード件数は絞り込み前の件数のため、INSERT文を一通り解析して数え、読み込み位置を先頭へ戻す.
+     * @return 対象のレコード件数
+     * @throws SQLException ダンプファイルの読み込み、解析に失敗した場合
+     */
+    private int countTargets() throws SQLException {
+        int count = 0;
+        String[] row = new String[this.metaData.getColumnCount()];
+        try {
+            while (nextRow(row)) {
+                if (isTarget(row)) {
+                    count++;
+                }
+            }
+        } finally {
+            closeInput();
+            this.segment = 0;
+            this.statement = null;
+            this.position = 0;
+        }
+        return count;
+    }
+
+    /**
+     * 指定したCellに属するレコード、差分リカバリの対象のレコードかどうかを判定する.
+     * @param row 値の組
+     * @return 対象の場合はtrue
+     */
+    private boolean isTarget(String[] row) {
+        if (this.cellId != null && !this.cellId.equals(row[this.cellIndex])) {
+            return false;
+        }
+        if (this.updatedSince == null) {
+            return true;
+        }
+        String updated = row[this.updatedIndex];
+        return updated != null && Long.parseLong(updated) >= this.updatedSince;
+    }
+
+    /**
+     * 次の値の組を読み込む.
+     * @param row 値の格納先
+     * @return 読み込んだ場合はtrue、全てのINSERT文を読み終えた場合はfalse
+     * @throws SQLException ダンプファイルの読み込み、解析に失敗した場合
+     */
+    private boolean nextRow(String[] row) throws SQLException {
+        while (this.statement == null || this.position >= this.statement.length()) {
+            if (!nextStatement()) {
+                return false;
+            }
+        }
+        try {
+            parseTuple(row);
+        } catch (RuntimeException e) {
+            throw new SQLException(String.format("Invalid INSERT statement for %s.%s in dump at column %d",
+                    this.dbName, this.handler.getTableName(), this.position), e);
+        }
+        return true;
+    }
+
+    /**
+     * 次のINSERT文を読み込む. 区間の終わりに達した場合は次の区間へ移動する.
+     * @return 読み込んだ場合はtrue、全ての区間を読み終えた場合はfalse
+     * @throws SQLException ダンプファイルの読み込みに失敗した場合
+     */
+    private boolean nextStatement() throws SQLException {
+        this.statement = null;
+        try {
+            while (true) {
+                if (this.input == null) {
+                    if (this.segment >= this.section.getSegmentCount()) {
+                        return false;
+                    }
+                    openSegment(this.segment++);
+                }
+                String line = this.input.readLine();
+                if (line == null || !line.startsWith(this.insertPrefix)) {
+                    closeInput();
+                    continue;
+                }
+                int start = this.insertPrefix.length();
+                if (line.startsWith("(", start)) {
+                    // --complete-insertのカラム名の一覧を読み飛ばす
+                    start = line.indexOf(')', start) + 1;
+                }
+                int values = line.indexOf(VALUES, start - 1);
+                if (values < 0) {
+                    throw new SQLException("Invalid INSERT statement in dump: " + abbreviate(line));
+                }
+                this.statement = line;
+                this.position = values + VALUES.length();
+                return true;
+            }
+        } catch (IOException e) {
+            throw new SQLException("Failed to read dump file", e);
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        InputStream in = MySqlDumpIndex.openStream(this.section.getFile(number));
+        try {
+            long remaining = this.section.getOffset(number);
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Unexpected end of dump file " + this.section.getFile(number));
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        this.input = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                MySqlDumpIndex.BUFFER_SIZE);
+    }
+
+    private void closeInput() throws SQLException {
+        if (this.input != null) {
+            try {
+                this.input.close();
+            } catch (IOException e) {
+                throw new SQLException("Failed to close dump file", e);
+            } finally {
+                this.input = null;
+            }
+        }
+    }
+
+    /**
+     * 値の組 (v1,v2,...) を1つ解析し、位置を次の組へ進める.
+     * @param row 値の格納先
+     */
+    private void parseTuple(String[] row) {
+        String s = this.statement;
+        int p = expect(s, this.position, '(');
+        for (int i = 0; i < row.length; i++) {
+            if (s.charAt(p) == '\'') {
+                StringBuilder sb = new StringBuilder();
+                p = parseString(s, p + 1, sb);
+                row[i] = sb.toString();
+            } else {
+                int end = p;
+                while (s.charAt(end) != ',' && s.charAt(end) != ')') {
+                    end++;
+                }
+                String token = s.substring(p, end);
+                if ("NULL".equals(token)) {
+                    row[i] = null;
+                } else {
+                    row[i] = token;
+                }
+                p = end;
+            }
+            if (i < row.length - 1) {
+                p = expect(s, p, ',');
+            }
+        }
+        p = expect(s, p, ')');
+        // 次の組はカンマの後、文の終わりはセミコロン
+        if (s.charAt(p) == ';') {
+            this.position = s.length();
+        } else {
+            this.position = expect(s, p, ',');
+        }
+    }
+
+    /**
+     * 文字列リテラルを解析する.
+     * @param s INSERT文
+     * @param start 開始のシングルクォーテーションの次の位置
+     * @param sb 値の格納先
+     * @return 終了のシングルクォーテーションの次の位置
+     */
+    private static int parseString(String s, int start, StringBuilder sb) {
+        int p = start;
+        while (true) {
+            char c = s.charAt(p++);
+            if (c == '\\') {
+                sb.append(unescape(s.charAt(p++)));
+            } else if (c == '\'') {
+                if (p < s.length() && s.charAt(p) == '\'') {
+                    sb.append('\'');
+                    p++;
+                } else {
+                    return p;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static char unescape(char c) {
+        switch (c) {
+        case '0':
+            return '\0';
+        case 'b':
+            return '\b';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'Z':
+            return CTRL_Z;
+        default:
+            return c;
+        }
+    }
+
+    private static int expect(String s, int p, char c) {
+        if (s.charAt(p) != c) {
+            throw new IllegalStateException("'" + c + "' expected");
+        }
+        return p + 1;
+    }
+
+    private static String abbreviate(String line) {
+        if (line.length() <= ABBREVIATE_LENGTH) {
+            return line;
+        }
+        return line.substring(0, ABBREVIATE_LENGTH) + "...";
+    }
+}
@@ -21,6 +21,12 @@ package io.personium.recovery.tables;
  */
 public interface ITableHandler {
 
+    /**
+     * リカバリ元テーブル名を取得する.
+     * @return リカバリ元テーブル名
+     */
+    String getTableName();
+
     /**
      * リカバリ用一時テーブル名を取得する.
      * @return リカバリ用一時テーブル名
@@ -79,4 +85,89 @@ public interface ITableHandler {
      */
     String getSelectTableSqlString(String dbName, int start, int end);
 
+    /**
+     * リカバリ元テーブルを主キー順にページングして取得するDMLを取得する.
+     * afterKeyがtrueの場合は、前ページの最後の主キーをパラメータ(?)として受け取るDMLとなる.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @return 生成したレコード取得用DML
+     */
+    String getSelectTableByKeySqlString(String dbName, boolean afterKey, int limit);
+
+    /**
+     * リカバリ元テーブルを主キー順にページングして取得するDMLを取得する.
+     * updatedSinceがtrueの場合は、更新日時(updated)の下限を最初のパラメータ(?)として受け取り、それ以降に更新されたレコードのみ取得する.
+     * afterKeyがtrueの場合は、前ページの最後の主キーを次のパラメータ(?)として受け取るDMLとなる.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @param updatedSince 更新日時で絞り込む場合はtrue
+     * @return 生成したレコード取得用DML
+     */
+    String getSelectTableByKeySqlString(String dbName, boolean afterKey, int limit, boolean updatedSince);
+
+    /**
+     * リカバリ元テーブルの指定した更新日時(updated)以降に更新されたレコード件数取得用DMLを取得する.
+     * 更新日時の下限はパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @return 生成したレコード件数取得用DML
+     */
+    String getSelectCountUpdatedSqlString(String dbName);
+
+    /**
+     * リカバリ元テーブルから指定した主キーのレコードを取得するDMLを取得する.
+     * 主キーはパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @param count 主キーの数
+     * @return 生成したレコード取得用DML
+     */
+    String getSelectTableByIdsSqlString(String dbName, int count);
+
+    /**
+     * ドキュメントのルーティングIDを保持するカラム名を取得する.
+     * @return カラム名、ルーティングIDを持たないテーブルの場合はnull
+     */
+    String getRoutingColumn();
+
+    /**
+     * リカバリ元テーブルをルーティングID、主キーの順にページングして取得するDMLを取得する.
+     * updatedSinceがtrueの場合は、更新日時(updated)の下限を最初のパラメータ(?)として受け取り、それ以降に更新されたレコードのみ取得する.
+     * afterKeyがtrueの場合は、前ページの最後のレコードのルーティングID、ルーティングID、主キーを続くパラメータ(?)として受け取るDMLとなる.
+     * 前ページの最後のレコードのルーティングIDがNULLの場合(nullRoutingがtrue)は、主キーのみをパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後のレコードより後を取得する場合はtrue
+     * @param nullRouting 前ページの最後のレコードのルーティングIDがNULLの場合はtrue
+     * @param limit 1ページの件数
+     * @param updatedSince 更新日時で絞り込む場合はtrue
+     * @return 生成したレコード取得用DML
+     */
+    String getSelectTableByRoutingSqlString(String dbName, boolean afterKey, boolean nullRouting, int limit,
+            boolean updatedSince);
+
+    /**
+     * レコードが属するCellのIDを保持するカラム名を取得する.
+     * @return カラム名
+     */
+    String getCellColumn();
+
+    /**
+     * リカバリ元テーブルの指定したCellに属するレコード件数取得用DMLを取得する.
+     * CellのIDはパラメータ(?)として受け取る.
+     * @param dbName DB名
+     * @return 生成したレコード件数取得用DML
+     */
+    String getSelectCountCellSqlString(String dbName);
+
+    /**
+     * リカバリ元テーブルの指定したCellに属するレコードを主キー順にページングして取得するDMLを取得する.
+     * CellのIDを最初のパラメータ(?)として受け取り、afterKeyがtrueの場合は前ページの最後の主キーを次のパラメータ(?)として受け取る.
+     * Cellのカラムのインデックスには主キーが含まれるため、インデックスの範囲検索で取得できる.
+     * @param dbName DB名
+     * @param afterKey 前ページの最後の主キーより後を取得する場合はtrue
+     * @param limit 1ページの件数
+     * @return 生成したレコード取得用DML
+     */
+    String getSelectTableByCellSqlString(String dbName, boolean afterKey, int limit);
+
 }
@@ -0,0 +1,57 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import io.personium.recovery.RecoveryException;
+
+/**
+ * ESへのリストア対象レコードをMySQLからページ単位に読み込むためのインターフェース.
+ */
+public interface ITableReader {
+
+    /**
+     * 読み込みを開始する.
+     * @return 読み込み対象の全レコード件数
+     * @throws SQLException SQL実行エラー
+     * @throws RecoveryException 読み込み準備に失敗した場合
+     */
+    int open() throws SQLException, RecoveryException;
+
+    /**
+     * 次のページを取得する.
+     * 返却したResultSetは次回の呼び出し時またはclose()時に本クラスでクローズする.
+     * @return 次のページ、全ページを読み終えた場合はnull
+     * @throws SQLException SQL実行エラー
+     */
+    ResultSet next() throws SQLException;
+
+    /**
+     * 次のページから、1ページの件数を変更する.
+     * 生成時に指定した件数を上限とし、それより大きい件数は生成時の件数とする.
+     * @param pageSize 1ページの件数
+     */
+    void setPageSize(int pageSize);
+
+    /**
+     * 読み込みを終了し、使用したリソースを解放する.
+     * @throws SQLException SQL実行エラー
+     */
+    void close() throws SQLException;
+}
@@ -0,0 +1,329 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * リカバリ元テーブルを主キー順に直接ページングして読み込むクラス.
+ * 前ページの最後の主キーを条件(id &gt; ?)に次ページを取得するため、一時テーブルへのコピーが不要で、MySQLへの書き込みは発生しない.
+ * ルーティングID順を指定した場合は、ルーティングID、主キーの順に読み込み、前ページの最後のレコードの両方の値を次ページの開始条件とする.
+ */
+public class KeysetTableReader implements ITableReader {
+
+    private static final String KEY_COLUMN = "id";
+    /** ルーティングID順に読み込む場合の、キー文字列におけるルーティングIDと主キーの区切り文字. */
+    private static final char ROUTING_SEPARATOR = '\t';
+
+    private final String dbName;
+    private final ITableHandler handler;
+    private final Connection connection;
+    private final int pageSize;
+    /** 次に読み込むページの件数. */
+    private int limit;
+    /** 読み込み中のページの読み込み時の件数. */
+    private int currentLimit;
+    private String startKey;
+    private Long updatedSince;
+    private boolean orderByRouting;
+    private String cellId;
+    /** 次ページ取得用DMLにおける、前ページの最後のキーのパラメータ位置. */
+    private int keyIndex;
+    private PreparedStatement firstStmt;
+    private PreparedStatement nextStmt;
+    private PreparedStatement nextNullRoutingStmt;
+    private ResultSet rs;
+    private String lastKey;
+    private String lastRouting;
+    private String lastId;
+    private boolean finished;
+
+    /**
+     * コンストラクタ.
+     * @param dbName DB名
+     * @param handler ESへのリストア用テーブル操作オブジェクト
+     * @param connection MySQLコネクション
+     * @param pageSize 1ページの件数
+     */
+    public KeysetTableReader(String dbName, ITableHandler handler, Connection connection, int pageSize) {
+        this.dbName = dbName;
+        this.handler = handler;
+        this.connection = connection;
+        this.pageSize = pageSize;
+        this.limit = pageSize;
+    }
+
+    /**
+     * 読み込みを開始する主キーを設定する.
+     * 指定した主キーより後のレコードから読み込む。中断したリカバリを再開する場合に使用する.
+     * @param key 前回バルク登録結果まで確認済みの最後の主キー、nullの場合は先頭から読み込む
+     */
+    public void setStartKey(String key) {
+        this.startKey = key;
+    }
+
+    /**
+     * 指定した更新日時(updated)以降に更新されたレコードのみ読み込むよう設定する.
+     * @param since 更新日時の下限（エポックミリ秒）、nullの場合は全レコードを読み込む
+     */
+    public void setUpdatedSince(Long since) {
+        this.updatedSince = since;
+    }
+
+    /**
+     * ルーティングID、主キーの順に読み込むよう設定する.
+     * ルーティングIDを保持するカラムを持たないテーブルの場合は、主キー順に読み込む.
+     * 中断したリカバリを再開する場合は、中断前と同じ設定とすること.
+     * @param orderByRouting ルーティングID順に読み込む場合はtrue
+     */
+    public void setOrderByRouting(boolean orderByRouting) {
+        this.orderByRouting = orderByRouting && null != handler.getRoutingColumn();
+    }
+
+    /**
+     * 指定したCellに属するレコードのみ読み込むよう設定する.
+     * 指定した場合は、更新日時、ルーティングID順の指定は無視して、Cell内を主キー順に読み込む.
+     * @param cellId CellのID、nullの場合は全レコードを読み込む
+     */
+    public void setCellId(String cellId) {
+        this.cellId = cellId;
+    }
+
+    @Override
+    public int open() throws SQLException {
+        if (null != this.cellId) {
+            return openCell();
+        }
+        int count = 0;
+        boolean delta = null != this.updatedSince;
+        if (delta) {
+            PreparedStatement stmt = this.connection.prepareStatement(handler.getSelectCountUpdatedSqlString(dbName));
+            try {
+                stmt.setLong(1, this.updatedSince);
+                ResultSet result = stmt.executeQuery();
+                if (result.next()) {
+                    count = result.getInt("CNT");
+                }
+                result.close();
+            } finally {
+                stmt.close();
+            }
+        } else {
+            Statement stmt = this.connection.createStatement();
+            try {
+                ResultSet result = stmt.executeQuery(handler.getSelectCountTableSqlString(dbName,
+                        handler.getTableName()));
+                if (result.next()) {
+                    count = result.getInt("CNT");
+                }
+                result.close();
+            } finally {
+                stmt.close();
+            }
+        }
+        // 読み終えたページの最終行へ移動して主キーを取得するため、スクロール可能なResultSetとする
+        if (this.orderByRouting) {
+            this.firstStmt = prepare(handler.getSelectTableByRoutingSqlString(dbName, false, false,
+                    this.pageSize, delta));
+            this.nextStmt = prepare(handler.getSelectTableByRoutingSqlString(dbName, true, false,
+                    this.pageSize, delta));
+            this.nextNullRoutingStmt = prepare(handler.getSelectTableByRoutingSqlString(dbName, true, true,
+                    this.pageSize, delta));
+            if (delta) {
+                this.nextNullRoutingStmt.setLong(1, this.updatedSince);
+            }
+        } else {
+            this.firstStmt = prepare(handler.getSelectTableByKeySqlString(dbName, false, this.pageSize, delta));
+            this.nextStmt = prepare(handler.getSelectTableByKeySqlString(dbName, true, this.pageSize, delta));
+        }
+        this.keyIndex = 1;
+        if (delta) {
+            this.firstStmt.setLong(1, this.updatedSince);
+            this.nextStmt.setLong(1, this.updatedSince);
+            this.keyIndex++;
+        }
+        setLastKey(this.startKey);
+        this.finished = false;
+        return count;
+    }
+
+    /**
+     * 指定したCellに属するレコードの読み込みを開始する.
+     * @return 読み込み対象の全レコード件数
+     * @throws SQLException SQL実行エラー
+     */
+    private int openCell() throws SQLException {
+        int count = 0;
+        PreparedStatement stmt = this.connection.prepareStatement(handler.getSelectCountCellSqlString(dbName));
+        try {
+            stmt.setString(1, this.cellId);
+            ResultSet result = stmt.executeQuery();
+            if (result.next()) {
+                count = result.getInt("CNT");
+            }
+            result.close();
+        } finally {
+            stmt.close();
+        }
+        this.orderByRouting = false;
+        this.firstStmt = prepare(handler.getSelectTableByCellSqlString(dbName, false, this.pageSize));
+        this.nextStmt = prepare(handler.getSelectTableByCellSqlString(dbName, true, this.pageSize));
+        this.firstStmt.setString(1, this.cellId);
+        this.nextStmt.setString(1, this.cellId);
+        this.keyIndex = 2;
+        setLastKey(this.startKey);
+        this.finished = false;
+        return count;
+    }
+
+    /**
+     * ページ取得用のスクロール可能なPreparedStatementを作成する.
+     * @param sql DML
+     * @return PreparedStatement
+     * @throws SQLException SQL実行エラー
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return this.connection.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * 次ページの開始条件とするキーを設定する.
+     * @param key キー文字列、nullの場合は先頭から読み込む
+     */
+    private void setLastKey(String key) {
+        this.lastKey = key;
+        this.lastRouting = null;
+        this.lastId = key;
+        if (null != key && this.orderByRouting) {
+            // 区切り文字を含まないキーはルーティングIDがNULLのレコード
+            int separator = key.indexOf(ROUTING_SEPARATOR);
+            if (separator >= 0) {
+                this.lastRouting = key.substring(0, separator);
+                this.lastId = key.substring(separator + 1);
+            }
+        }
+    }
+
+    /**
+     * ResultSetの現在行から、チェックポイントへ記録するキー文字列を取得する.
+     * 主キー順の場合は主キー、ルーティングID順の場合はルーティングIDと主キーを区切り文字で連結した文字列となる.
+     * @param row 現在行を指すResultSet
+     * @return キー文字列
+     * @throws SQLException SQL実行エラー
+     */
+    public String keyOf(ResultSet row) throws SQLException {
+        String id = row.getString(KEY_COLUMN);
+        if (!this.orderByRouting) {
+            return id;
+        }
+        String routing = row.getString(handler.getRoutingColumn());
+        if (null == routing) {
+            return id;
+        }
+        return routing + ROUTING_SEPARATOR + id;
+    }
+
+    @Override
+    public ResultSet next() throws SQLException {
+        if (null != this.rs) {
+            // 前ページの最後の主キーを次ページの開始条件とする。件数がページサイズに満たなければ最終ページ。
+            if (this.rs.last()) {
+                setLastKey(keyOf(this.rs));
+                this.finished = this.rs.getRow() < this.currentLimit;
+            } else {
+                this.finished = true;
+            }
+            this.rs.close();
+            this.rs = null;
+        }
+        if (this.finished) {
+            return null;
+        }
+        if (null == this.lastKey) {
+            this.rs = execute(this.firstStmt);
+        } else {
+            int keyIndex = this.keyIndex;
+            if (!this.orderByRouting) {
+                this.nextStmt.setString(keyIndex, this.lastId);
+                this.rs = execute(this.nextStmt);
+            } else if (null == this.lastRouting) {
+                this.nextNullRoutingStmt.setString(keyIndex, this.lastId);
+                this.rs = execute(this.nextNullRoutingStmt);
+            } else {
+                this.nextStmt.setString(keyIndex, this.lastRouting);
+                this.nextStmt.setString(keyIndex + 1, this.lastRouting);
+                this.nextStmt.setString(keyIndex + 2, this.lastId);
+                this.rs = execute(this.nextStmt);
+            }
+        }
+        return this.rs;
+    }
+
+    /**
+     * 現在のページの件数で1ページを読み込む.
+     * DMLのLIMITは生成時の件数のため、それより少ない件数は最大行数で制限する.
+     * @param stmt 実行するPreparedStatement
+     * @return 読み込んだページ
+     * @throws SQLException SQL実行エラー
+     */
+    private ResultSet execute(PreparedStatement stmt) throws SQLException {
+        this.currentLimit = this.limit;
+        stmt.setMaxRows(this.currentLimit);
+        return stmt.executeQuery();
+    }
+
+    @Override
+    public void setPageSize(int size) {
+        this.limit = Math.max(1, Math.min(this.pageSize, size));
+    }
+
+    /**
+     * 最後に読み込みを終えたページの最終主キーを取得する.
+     * ルーティングID順の場合は、{@link #keyOf(ResultSet)}と同じ形式のキー文字列となる.
+     * @return 最終主キー、1ページも読み終えていない場合はnull
+     */
+    public String getLastKey() {
+        return this.lastKey;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (null != this.rs) {
+                this.rs.close();
+                this.rs = null;
+            }
+        } finally {
+            if (null != this.firstStmt) {
+                this.firstStmt.close();
+                this.firstStmt = null;
+            }
+            if (null != this.nextStmt) {
+                this.nextStmt.close();
+                this.nextStmt = null;
+            }
+            if (null != this.nextNullRoutingStmt) {
+                this.nextNullRoutingStmt.close();
+                this.nextNullRoutingStmt = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * mysqldumpで出力したダンプファイルの目次.
+ * ダンプファイルを1回走査し、データベース・テーブル毎に、INSERT文の位置とカラム名、レコード件数を記録する.
+ * 1ファイルに複数データベースを含むダンプ(--databases, --all-databases)と、
+ * データベース毎のダンプファイル(*.sql, *.sql.gz)を格納したディレクトリのいずれにも対応する.
+ */
+public final class MySqlDumpIndex {
+
+    private static Logger log = LoggerFactory.getLogger(MySqlDumpIndex.class);
+
+    /** 読み込みバッファのサイズ(バイト). */
+    static final int BUFFER_SIZE = 1024 * 1024;
+    /** 行の判定に使用する行頭部分の最大サイズ(バイト). */
+    private static final int PREFIX_SIZE = 4096;
+
+    private static final String SQL_SUFFIX = ".sql";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String USE_PREFIX = "USE `";
+    private static final String HOST_PREFIX = "-- Host: ";
+    private static final String HOST_DATABASE = "Database: ";
+    private static final String CREATE_TABLE_PREFIX = "CREATE TABLE `";
+    private static final String COLUMN_PREFIX = "  `";
+    /** INSERT文の行頭. */
+    static final String INSERT_PREFIX = "INSERT INTO `";
+
+    /**
+     * ダンプファイル内の1テーブル分のデータ.
+     */
+    static final class Section {
+        private final List<String> columns;
+        private final List<File> files = new ArrayList<File>();
+        private final List<Long> offsets = new ArrayList<Long>();
+        private long rows;
+
+        private Section(List<String> columns) {
+            this.columns = columns;
+        }
+
+        /**
+         * @return カラム名の一覧、ダンプファイルに定義がない場合はnull
+         */
+        List<String> getColumns() {
+            return this.columns;
+        }
+
+        /**
+         * @return INSERT文が連続する区間の数
+         */
+        int getSegmentCount() {
+            return this.files.size();
+        }
+
+        /**
+         * @param segment 区間の番号
+         * @return 区間を含むダンプファイル
+         */
+        File getFile(int segment) {
+            return this.files.get(segment);
+        }
+
+        /**
+         * @param segment 区間の番号
+         * @return 区間の先頭のINSERT文の位置(展開後のバイト数)
+         */
+        long getOffset(int segment) {
+            return this.offsets.get(segment);
+        }
+
+        /**
+         * @return レコード件数
+         */
+        long getRows() {
+            return this.rows;
+        }
+    }
+
+    /** データベース毎、テーブル毎のデータ. */
+    private final Map<String, Map<String, Section>> databases = new LinkedHashMap<String, Map<String, Section>>();
+
+    private MySqlDumpIndex() {
+    }
+
+    /**
+     * ダンプファイルを走査して目次を作成する.
+     * @param path ダンプファイル、またはデータベース毎のダンプファイルを格納したディレクトリ
+     * @return 目次
+     * @throws IOException ダンプファイルの読み込みに失敗した場合
+     */
+    public static MySqlDumpIndex scan(String path) throws IOException {
+        File root = new File(path);
+        List<File> files = new ArrayList<File>();
+        if (root.isDirectory()) {
+            File[] children = root.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    String name = child.getName();
+                    if (child.isFile() && (name.endsWith(SQL_SUFFIX) || name.endsWith(SQL_SUFFIX + GZIP_SUFFIX))) {
+                        files.add(child);
+                    }
+                }
+            }
+        } else if (root.isFile()) {
+            files.add(root);
+        }
+        if (files.isEmpty()) {
+            throw new IOException("mysqldump file not found [" + path + "]");
+        }
+
+        MySqlDumpIndex index = new MySqlDumpIndex();
+        for (File file : files) {
+            long start = System.currentTimeMillis();
+            index.scanFile(file);
+            log.info(String.format("Scanned dump file [%s] (%dms)", file.getPath(),
+                    System.currentTimeMillis() - start));
+        }
+        for (Map.Entry<String, Map<String, Section>> database : index.databases.entrySet()) {
+            for (Map.Entry<String, Section> table : database.getValue().entrySet()) {
+                log.info(String.format("  %s.%s : %d rows", database.getKey(), table.getKey(),
+                        table.getValue().getRows()));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * ダンプファイルを読み込むストリームを開く. 拡張子が.gzの場合は展開しながら読み込む.
+     * @param file ダンプファイル
+     * @return ストリーム
+     * @throws IOException ダンプファイルを開けない場合
+     */
+    static InputStream openStream(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(GZIP_SUFFIX)) {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return ダンプファイルに含まれるデータベース名の一覧(出現順)
+     */
+    public List<String> getDatabaseNames() {
+        return new ArrayList<String>(this.databases.keySet());
+    }
+
+    /**
+     * テーブルのレコード件数を取得する.
+     * @param dbName データベース名
+     * @param tableName テーブル名
+     * @return レコード件数、ダンプファイルにINSERT文がない場合は0
+     */
+    public long getRowCount(String dbName, String tableName) {
+        Section section = getSection(dbName, tableName);
+        if (section == null) {
+            return 0;
+        }
+        return section.getRows();
+    }
+
+    /**
+     * テーブルのデータを取得する.
+     * @param dbName データベース名
+     * @param tableName テーブル名
+     * @return テーブルのデータ、ダンプファイルにINSERT文がない場合はnull
+     */
+    Section getSection(String dbName, String tableName) {
+        Map<String, Section> tables = this.databases.get(dbName);
+        if (tables == null) {
+            return null;
+        }
+        return tables.get(tableName);
+    }
+
+    /**
+     * 1ファイル分を走査する.
+     * INSERT文の行は長いため、行頭部分のみを文字列にして判定し、レコード件数は行全体をバイト単位で数える.
+     * @param file ダンプファイル
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private void scanFile(File file) throws IOException {
+        FileScanner scanner = new FileScanner(file);
+        InputStream in = openStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                scanner.scan(buffer, length);
+            }
+            scanner.endOfLine();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 1ファイル分の走査の状態.
+     */
+    private final class FileScanner {
+        private final File file;
+        private final byte[] prefix = new byte[PREFIX_SIZE];
+        private int prefixLength = 0;
+        private long offset = 0;
+        private long lineStart = 0;
+        private String dbName;
+        /** CREATE TABLE文で定義中のテーブル名. */
+        private String createTable;
+        private List<String> createColumns;
+        /** 直前の行がINSERT文だったテーブル. */
+        private Section lastSection;
+        /** CREATE TABLE文から取得したカラム名(データベース名.テーブル名毎). */
+        private final Map<String, List<String>> definitions = new HashMap<String, List<String>>();
+        // INSERT文の値の組を数えるための状態
+        private boolean quoted = false;
+        private boolean escaped = false;
+        private int depth = 0;
+        private long tuples = 0;
+
+        FileScanner(File file) {
+            this.file = file;
+            // データベースの指定がないダンプファイルは、ファイル名をデータベース名とする
+            String name = file.getName();
+            if (name.endsWith(GZIP_SUFFIX)) {
+                name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+            }
+            if (name.endsWith(SQL_SUFFIX)) {
+                name = name.substring(0, name.length() - SQL_SUFFIX.length());
+            }
+            this.dbName = name;
+        }
+
+        void scan(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    endOfLine();
+                    this.lineStart = this.offset + i + 1;
+                    continue;
+                }
+                if (this.prefixLength < PREFIX_SIZE) {
+                    this.prefix[this.prefixLength++] = b;
+                }
+                count(b);
+            }
+            this.offset += length;
+        }
+
+        /**
+         * 括弧の深さが0の位置にある開き括弧を、文字列リテラルを除いて数える.
+         * @param b 1バイト
+         */
+        private void count(byte b) {
+            if (this.quoted) {
+                if (this.escaped) {
+                    this.escaped = false;
+                } else if (b == '\\') {
+                    this.escaped = true;
+                } else if (b == '\'') {
+                    this.quoted = false;
+                }
+            } else if (b == '\'') {
+                this.quoted = true;
+            } else if (b == '(') {
+                if (this.depth == 0) {
+                    this.tuples++;
+                }
+                this.depth++;
+            } else if (b == ')') {
+                this.depth--;
+            }
+        }
+
+        void endOfLine() {
+            if (this.prefixLength > 0) {
+                onLine(new String(this.prefix, 0, this.prefixLength, StandardCharsets.UTF_8));
+            }
+            this.prefixLength = 0;
+            this.quoted = false;
+            this.escaped = false;
+            this.depth = 0;
+            this.tuples = 0;
+        }
+
+        private void onLine(String line) {
+            if (line.startsWith(INSERT_PREFIX)) {
+                onInsert(line);
+                return;
+            }
+            this.lastSection = null;
+            if (line.startsWith(USE_PREFIX)) {
+                this.dbName = quotedName(line, USE_PREFIX.length());
+            } else if (line.startsWith(HOST_PREFIX) && line.contains(HOST_DATABASE)) {
+                String name = line.substring(line.indexOf(HOST_DATABASE) + HOST_DATABASE.length()).trim();
+                if (!name.isEmpty()) {
+                    this.dbName = name;
+                }
+            } else if (line.startsWith(CREATE_TABLE_PREFIX)) {
+                this.createTable = quotedName(line, CREATE_TABLE_PREFIX.length());
+                this.createColumns = new ArrayList<String>();
+            } else if (this.createTable != null) {
+                if (line.startsWith(COLUMN_PREFIX)) {
+                    this.createColumns.add(quotedName(line, COLUMN_PREFIX.length()));
+                } else if (line.startsWith(")")) {
+                    this.definitions.put(this.dbName + "." + this.createTable, this.createColumns);
+                    this.createTable = null;
+                }
+            }
+        }
+
+        private void onInsert(String line) {
+            String table = quotedName(line, INSERT_PREFIX.length());
+            // --complete-insertで出力した場合は、テーブル名の後にカラム名の一覧がある
+            int rest = INSERT_PREFIX.length() + table.length() + 2;
+            boolean hasColumnList = line.startsWith("(", rest);
+            long rows = this.tuples;
+            if (hasColumnList) {
+                rows--;
+            }
+
+            Map<String, Section> tables = databases.get(this.dbName);
+            if (tables == null) {
+                tables = new LinkedHashMap<String, Section>();
+                databases.put(this.dbName, tables);
+            }
+            Section section = tables.get(table);
+            if (section == null) {
+                List<String> columns = this.definitions.get(this.dbName + "." + table);
+                if (columns == null && hasColumnList) {
+                    columns = columnList(line, rest);
+                }
+                section = new Section(columns);
+                tables.put(table, section);
+            }
+            // 別の文を挟んでINSERT文が再び現れた場合は、新しい区間とする
+            if (section != this.lastSection) {
+                section.files.add(this.file);
+                section.offsets.add(this.lineStart);
+            }
+            section.rows += rows;
+            this.lastSection = section;
+        }
+    }
+
+    /**
+     * バッククォートで囲まれた名前を取り出す.
+     * @param line 行
+     * @param start 名前の開始位置
+     * @return 名前
+     */
+    private static String quotedName(String line, int start) {
+        int end = line.indexOf('`', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        return line.substring(start, end);
+    }
+
+    /**
+     * INSERT文のカラム名の一覧を取り出す.
+     * @param line INSERT文の行頭部分
+     * @param start カラム名の一覧の開き括弧の位置
+     * @return カラム名の一覧
+     */
+    static List<String> columnList(String line, int start) {
+        int end = line.indexOf(')', start);
+        if (end < 0) {
+            return null;
+        }
+        List<String> columns = new ArrayList<String>();
+        for (String column : line.substring(start + 1, end).split(",")) {
+            column = column.trim();
+            if (column.startsWith("`") && column.endsWith("`") && column.length() > 1) {
+                column = column.substring(1, column.length() - 1);
+            }
+            columns.add(column);
+        }
+        return Collections.unmodifiableList(columns);
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import junit.framework.TestCase;
+
+/**
+ * JsonColumnParserのテスト.
+ * 解析できる場合はjson-simpleと同じ結果となり、不正な形式の場合はnullを返却する(呼び出し元でjson-simpleに切り替える)ことを確認する.
+ */
+public class JsonColumnParserTest extends TestCase {
+
+    /** ランダムな入力の生成に使用する字句. */
+    private static final String[] RANDOM_TOKENS = {
+        "{", "}", "[", "]", ":", ",", " ", "\"a\"", "\"\\n\"", "\"\\u3042\"", "\"", "\\", "0", "1", "-", "+",
+        ".", "e", "true", "false", "null", "x" };
+    private static final int RANDOM_COUNT = 20000;
+    private static final int RANDOM_MAX_TOKENS = 12;
+    private static final long RANDOM_SEED = 20161L;
+
+    /**
+     * 入れ子のオブジェクト・配列をjson-simpleと同じ結果に変換できること.
+     * @throws ParseException json-simpleで解析できない場合
+     */
+    public void testNested() throws ParseException {
+        assertSameAsJsonSimple("{}");
+        assertSameAsJsonSimple("{\"a\":{\"b\":[1,2,{\"c\":null}],\"d\":{}},\"e\":true,\"f\":false,\"g\":[]}");
+        assertSameAsJsonSimple("{\"a\":[[[\"x\"]],[{\"y\":[{}]}]]}");
+        assertSameAsJsonSimple(" \t\r\n{ \"a\" : [ 1 , \"b\" ] , \"c\" : { } } \n");
+        assertSameAsJsonSimple("{\"__id\":\"abc\",\"__published\":1480000000000,\"__updated\":1480000000001}");
+    }
+
+    /**
+     * エスケープを含む文字列をjson-simpleと同じ結果に変換できること.
+     * @throws ParseException json-simpleで解析できない場合
+     */
+    public void testEscaped() throws ParseException {
+        assertSameAsJsonSimple("{\"s\":\"a\\\"b\\\\c\\/d\\be\\ff\\ng\\rh\\ti\"}");
+        assertSameAsJsonSimple("{\"a\\\"b\":\"\\\\\"}");
+        assertSameAsJsonSimple("{\"s\":\"\\\"\"}");
+        assertSameAsJsonSimple("{\"s\":\"plain, [not] {json}: text\"}");
+    }
+
+    /**
+     * Unicodeの文字・エスケープをjson-simpleと同じ結果に変換できること.
+     * @throws ParseException json-simpleで解析できない場合
+     */
+    public void testUnicode() throws ParseException {
+        assertSameAsJsonSimple("{\"u\":\"\\u3042\\u00e9\\u00E9\\u0000\"}");
+        assertSameAsJsonSimple("{\"u\":\"\\ud83d\\ude00\"}");
+        assertSameAsJsonSimple("{\"日本語\":\"あいう\\u3048お\"}");
+    }
+
+    /**
+     * 数値をjson-simpleと同じ型・値に変換できること.
+     * @throws ParseException json-simpleで解析できない場合
+     */
+    public void testNumeric() throws ParseException {
+        assertSameAsJsonSimple("{\"i\":0,\"n\":-12,\"z\":-0,\"max\":9223372036854775807,\"min\":-9223372036854775808}");
+        assertSameAsJsonSimple("{\"d\":1.5,\"n\":-0.25,\"z\":0.0}");
+        assertSameAsJsonSimple("{\"e\":1e3,\"E\":2E10,\"p\":1.5e+2,\"m\":-2.5E-3}");
+        assertSameAsJsonSimple("{\"a\":[1,-1,1.0,-1.0e0]}");
+    }
+
+    /**
+     * 不正な形式の場合はnullを返却すること.
+     */
+    public void testMalformed() {
+        assertMalformed("");
+        assertMalformed("   ");
+        assertMalformed("[1]");
+        assertMalformed("\"a\"");
+        assertMalformed("{");
+        assertMalformed("{\"a\":1");
+        assertMalformed("{\"a\":1,}");
+        assertMalformed("{,\"a\":1}");
+        assertMalformed("{\"a\" 1}");
+        assertMalformed("{a:1}");
+        assertMalformed("{\"a\":[1,]}");
+        assertMalformed("{\"a\":[1 2]}");
+        assertMalformed("{\"a\":1} x");
+        assertMalformed("{\"a\":1}{}");
+        assertMalformed("{\"a\":tru}");
+        assertMalformed("{\"a\":nul}");
+        assertMalformed("{\"a\":\"b}");
+        assertMalformed("{\"a\":\"b\\\"}");
+        assertMalformed("{\"a\":\"\\x\"}");
+        assertMalformed("{\"a\":\"\\u12G4\"}");
+        assertMalformed("{\"a\":\"\\u12\"}");
+        assertMalformed("{\"a\":\"\\u+123\"}");
+        assertMalformed("{\"a\":\"\\u\uff10\uff10\uff14\uff11\"}");
+    }
+
+    /**
+     * 数値の書式に従わない場合はnullを返却すること.
+     */
+    public void testMalformedNumber() {
+        assertMalformed("{\"a\":1-2}");
+        assertMalformed("{\"a\":1+2}");
+        assertMalformed("{\"a\":--1}");
+        assertMalformed("{\"a\":+1}");
+        assertMalformed("{\"a\":-}");
+        assertMalformed("{\"a\":01}");
+        assertMalformed("{\"a\":-01}");
+        assertMalformed("{\"a\":1.}");
+        assertMalformed("{\"a\":.5}");
+        assertMalformed("{\"a\":1.2.3}");
+        assertMalformed("{\"a\":1e}");
+        assertMalformed("{\"a\":1e+}");
+        assertMalformed("{\"a\":1e5e5}");
+        assertMalformed("{\"a\":1.e5}");
+        assertMalformed("{\"a\":9223372036854775808}");
+    }
+
+    /**
+     * ランダムな入力で、解析できた場合はjson-simpleと同じ結果となること.
+     * @throws ParseException 解析できた入力をjson-simpleで解析できない場合
+     */
+    public void testRandomInputMatchesJsonSimple() throws ParseException {
+        Random random = new Random(RANDOM_SEED);
+        for (int i = 0; i < RANDOM_COUNT; i++) {
+            int count = random.nextInt(RANDOM_MAX_TOKENS);
+            StringBuilder text = new StringBuilder("{\"k\":");
+            for (int j = 0; j < count; j++) {
+                text.append(RANDOM_TOKENS[random.nextInt(RANDOM_TOKENS.length)]);
+            }
+            text.append("}");
+            HashMap<String, Object> parsed = JsonColumnParser.parseObject(text.toString());
+            if (parsed != null) {
+                assertEquals(text.toString(), new JSONParser().parse(text.toString()), parsed);
+            }
+        }
+    }
+
+    private static void assertSameAsJsonSimple(String text) throws ParseException {
+        Object expected = new JSONParser().parse(text);
+        HashMap<String, Object> parsed = JsonColumnParser.parseObject(text);
+        assertNotNull(text, parsed);
+        assertEquals(text, expected, parsed);
+        assertSameTypes(text, expected, parsed);
+    }
+
+    /**
+     * 数値の型(LongとDouble)を含めて一致することを確認する.
+     * @param text 入力
+     * @param expected json-simpleの結果
+     * @param actual JsonColumnParserの結果
+     */
+    private static void assertSameTypes(String text, Object expected, Object actual) {
+        if (expected instanceof Map) {
+            for (Object key : ((Map<?, ?>) expected).keySet()) {
+                assertSameTypes(text, ((Map<?, ?>) expected).get(key), ((Map<?, ?>) actual).get(key));
+            }
+        } else if (expected instanceof List) {
+            for (int i = 0; i < ((List<?>) expected).size(); i++) {
+                assertSameTypes(text, ((List<?>) expected).get(i), ((List<?>) actual).get(i));
+            }
+        } else if (expected != null) {
+            assertEquals(text, expected.getClass(), actual.getClass());
+        }
+    }
+
+    private static void assertMalformed(String text) {
+        assertNull(text, JsonColumnParser.parseObject(text));
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * LinksColumnParserのテスト.
+ * 以前の文字列加工(ブラケットの除去、カンマでの分割、前後の空白の除去、ダブルクォーテーションの除去)と
+ * 同じ結果となることを確認する.
+ */
+public class LinksColumnParserTest extends TestCase {
+
+    /** ランダムな入力の生成に使用する文字. */
+    private static final String RANDOM_ALPHABET = "[]\",, \t\nab1-";
+    private static final int RANDOM_COUNT = 10000;
+    private static final int RANDOM_MAX_LENGTH = 20;
+    private static final long RANDOM_SEED = 20161L;
+
+    /**
+     * 正しい形式のlinksカラムからリンク先IDを取り出せること.
+     */
+    public void testWellFormed() {
+        assertLinks("[\"a1b2\",\"c3d4\"]", "a1b2", "c3d4");
+        assertLinks("[\"a1b2\"]", "a1b2");
+        assertLinks("[ \"a1b2\" , \"c3d4\" ]", "a1b2", "c3d4");
+    }
+
+    /**
+     * 空の場合はリンク先IDを取り出さないこと.
+     */
+    public void testEmpty() {
+        assertLinks("");
+        assertLinks("[]");
+        assertLinks("[\"\"]");
+    }
+
+    /**
+     * 空白文字のみの場合はリンク先IDを取り出さないこと.
+     */
+    public void testWhitespaceOnly() {
+        assertLinks(" ");
+        assertLinks(" \t\r\n ");
+        assertLinks("[ ]");
+        assertLinks("[ , \t ]");
+    }
+
+    /**
+     * ブラケットがない場合も、以前の加工と同じ結果となること.
+     */
+    public void testMissingBrackets() {
+        assertLinks("\"a1b2\",\"c3d4\"", "a1b2", "c3d4");
+        assertLinks("[\"a1b2\",\"c3d4\"", "a1b2", "c3d4");
+        assertLinks("\"a1b2\",\"c3d4\"]", "a1b2", "c3d4");
+        assertLinks("\"a1[b2]\"", "a1b2");
+    }
+
+    /**
+     * ダブルクォーテーションがない、または対応していない場合も、以前の加工と同じ結果となること.
+     */
+    public void testMissingQuotes() {
+        assertLinks("[a1b2,c3d4]", "a1b2", "c3d4");
+        assertLinks("[\"a1b2,c3d4\"]", "a1b2", "c3d4");
+        assertLinks("[\"a1 b2\"]", "a1 b2");
+        assertLinks("[\" a1b2 \"]", " a1b2 ");
+        assertLinks("[\"\"\"]");
+    }
+
+    /**
+     * 余分なカンマがある場合は、空の要素を無視すること.
+     */
+    public void testStrayCommas() {
+        assertLinks("[,\"a1b2\"]", "a1b2");
+        assertLinks("[\"a1b2\",]", "a1b2");
+        assertLinks("[\"a1b2\",,\"c3d4\"]", "a1b2", "c3d4");
+        assertLinks(",,,");
+    }
+
+    /**
+     * ランダムな入力でも、以前の加工と同じ結果となること.
+     */
+    public void testRandomInputMatchesLegacy() {
+        Random random = new Random(RANDOM_SEED);
+        for (int i = 0; i < RANDOM_COUNT; i++) {
+            int length = random.nextInt(RANDOM_MAX_LENGTH);
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                text.append(RANDOM_ALPHABET.charAt(random.nextInt(RANDOM_ALPHABET.length())));
+            }
+            assertEquals(text.toString(), legacy(text.toString()), parse(text.toString()));
+        }
+    }
+
+    private static void assertLinks(String text, String... expected) {
+        List<String> links = parse(text);
+        assertEquals(text, Arrays.asList(expected), links);
+        assertEquals(text, legacy(text), links);
+    }
+
+    private static List<String> parse(String text) {
+        List<String> links = new ArrayList<String>();
+        LinksColumnParser.parse(text, links);
+        return links;
+    }
+
+    /**
+     * 以前の文字列加工でリンク先IDを取り出す.
+     * @param text linksカラムの値
+     * @return リンク先ID
+     */
+    private static List<String> legacy(String text) {
+        String str = text.replace("[", "");
+        str = str.replace("]", "");
+        List<String> links = new ArrayList<String>();
+        for (String link : str.split(",")) {
+            link = link.trim();
+            link = link.replace("\"", "");
+            if (!link.isEmpty()) {
+                links.add(link);
+            }
+        }
+        return links;
+    }
+}
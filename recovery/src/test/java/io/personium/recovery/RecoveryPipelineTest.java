@@ -0,0 +1,106 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import io.personium.recovery.tables.ITableReader;
+import junit.framework.TestCase;
+
+/**
+ * RecoveryPipelineのテスト.
+ */
+public class RecoveryPipelineTest extends TestCase {
+
+    /** 1ページで超える程度の小さな予算(バイト). */
+    private static final long TINY_BUDGET = 1L;
+    /** パイプラインの終了を待つ最大時間(ミリ秒). */
+    private static final long RUN_TIMEOUT_MILLIS = 10000L;
+    /** 予約が解放されたことの確認で待機する時間(ミリ秒). */
+    private static final long RELEASE_CHECK_MILLIS = 100L;
+
+    /**
+     * 読み込みステージがヒープ使用量の予算の解放を待っている間に他のステージが異常終了した場合、
+     * 待機を打ち切ってパイプラインが終了し、予約が解放されること.
+     * @throws Exception パイプラインの実行スレッドの待機に失敗した場合
+     */
+    public void testAbortWhileWaitingForMemoryBudget() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(TINY_BUDGET);
+        // EsRecoveryを設定しないため、最初のページの変換で変換ステージが異常終了する.
+        // 最初のページの予約はパイプラインの終了まで解放されず、読み込みステージは次のページの予約で待機する.
+        final RecoveryPipeline pipeline = new RecoveryPipeline(null, null, "u0_ad", "Cell", "u0");
+        pipeline.setMemoryBudget(budget);
+        final Exception[] thrown = new Exception[1];
+        Thread runner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.run(new EndlessReader(), Integer.MAX_VALUE, "CELL");
+                } catch (Exception e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        runner.start();
+        runner.join(RUN_TIMEOUT_MILLIS);
+
+        assertFalse("pipeline is still waiting for memory budget", runner.isAlive());
+        assertNotNull(thrown[0]);
+        assertTrue(budget.tryAcquire(TINY_BUDGET, RELEASE_CHECK_MILLIS));
+    }
+
+    /**
+     * 1件のレコードからなるページを無限に返却する読み込みオブジェクト.
+     */
+    private static class EndlessReader implements ITableReader {
+
+        @Override
+        public int open() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public ResultSet next() throws SQLException {
+            RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+            meta.setColumnCount(1);
+            meta.setColumnName(1, "id");
+            meta.setColumnType(1, Types.VARCHAR);
+            CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+            rows.setMetaData(meta);
+            rows.moveToInsertRow();
+            rows.updateString(1, "id");
+            rows.insertRow();
+            rows.moveToCurrentRow();
+            rows.beforeFirst();
+            return rows;
+        }
+
+        @Override
+        public void setPageSize(int pageSize) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
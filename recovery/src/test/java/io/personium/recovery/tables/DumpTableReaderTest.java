@@ -0,0 +1,230 @@
+/**
+ * Personium
+ * Copyright 2016 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.recovery.tables;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * DumpTableReaderのテスト.
+ * mysqldumpの出力形式のINSERT文を解析し、MySQLから読み込んだ場合と同じ値のページを返却することを確認する.
+ */
+public class DumpTableReaderTest extends TestCase {
+
+    private static final String DB_NAME = "u0_app";
+    /** 全件を1ページで読み込む件数. */
+    private static final int LARGE_PAGE = 100;
+    /** INSERT文の途中でページが終わる件数. */
+    private static final int SMALL_PAGE = 2;
+    /** 差分リカバリの更新日時の下限. */
+    private static final long UPDATED_SINCE = 250L;
+
+    /** CREATE TABLE文でカラムを定義し、1文に複数の値の組を含むダンプ. */
+    private static final String[] DUMP = {
+        "-- MySQL dump",
+        "USE `" + DB_NAME + "`;",
+        "CREATE TABLE `ENTITY` (",
+        "  `id` varchar(128) NOT NULL,",
+        "  `cell_id` varchar(128) DEFAULT NULL,",
+        "  `name` text,",
+        "  `updated` bigint(20) DEFAULT NULL,",
+        "  PRIMARY KEY (`id`)",
+        ") ENGINE=InnoDB DEFAULT CHARSET=utf8;",
+        "INSERT INTO `ENTITY` VALUES ('e1','c1','it\\'s',100),('e2','c1','a\\\\b',200),"
+            + "('e3','c2','x\\0y\\Zz',300);",
+        "INSERT INTO `ENTITY` VALUES ('e4','c2','O''Reilly',NULL),('e5','c1',NULL,500),"
+            + "('e6','c2','(a,b)',600);",
+        "UNLOCK TABLES;" };
+
+    /** CREATE TABLE文がなく、--complete-insertでカラム名の一覧を出力したダンプ. */
+    private static final String[] COMPLETE_INSERT_DUMP = {
+        "USE `" + DB_NAME + "`;",
+        "INSERT INTO `ENTITY` (`name`,`id`,`updated`,`cell_id`) VALUES ('n1','e1',100,'c1'),"
+            + "('n\\'2','e2',NULL,'c2');" };
+
+    private File dumpFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.dumpFile != null && !this.dumpFile.delete()) {
+            this.dumpFile.deleteOnExit();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * エスケープ、連続したシングルクォーテーション、NULLを含む値を解析できること.
+     * @throws Exception 読み込みに失敗した場合
+     */
+    public void testParseValues() throws Exception {
+        DumpTableReader reader = open(DUMP, LARGE_PAGE);
+        try {
+            assertEquals(6, reader.open());
+            List<String[]> rows = readPages(reader, null);
+            assertEquals(6, rows.size());
+            assertRow(rows.get(0), "e1", "c1", "it's", "100");
+            assertRow(rows.get(1), "e2", "c1", "a\\b", "200");
+            assertRow(rows.get(2), "e3", "c2", "x\0y\u001az", "300");
+            assertRow(rows.get(3), "e4", "c2", "O'Reilly", null);
+            assertRow(rows.get(4), "e5", "c1", null, "500");
+            assertRow(rows.get(5), "e6", "c2", "(a,b)", "600");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * ページの件数に達した場合はINSERT文の途中でページを終え、次のページは続きの値の組から読み込むこと.
+     * @throws Exception 読み込みに失敗した場合
+     */
+    public void testPageBoundaryInStatement() throws Exception {
+        DumpTableReader reader = open(DUMP, SMALL_PAGE);
+        try {
+            reader.open();
+            List<Integer> pageSizes = new ArrayList<Integer>();
+            List<String[]> rows = readPages(reader, pageSizes);
+            assertEquals("[2, 2, 2]", pageSizes.toString());
+            String[] expected = {"e1", "e2", "e3", "e4", "e5", "e6" };
+            assertEquals(expected.length, rows.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], rows.get(i)[0]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * --complete-insertで出力したカラム名の一覧から、カラムの並びを取得できること.
+     * @throws Exception 読み込みに失敗した場合
+     */
+    public void testCompleteInsert() throws Exception {
+        DumpTableReader reader = open(COMPLETE_INSERT_DUMP, LARGE_PAGE);
+        try {
+            assertEquals(2, reader.open());
+            List<String[]> rows = readPages(reader, null);
+            assertEquals(2, rows.size());
+            assertRow(rows.get(0), "e1", "c1", "n1", "100");
+            assertRow(rows.get(1), "e2", "c2", "n'2", null);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Cell単位のリカバリでは、指定したCellのレコードのみを読み込み、その件数を返却すること.
+     * @throws Exception 読み込みに失敗した場合
+     */
+    public void testCellFilter() throws Exception {
+        DumpTableReader reader = open(DUMP, SMALL_PAGE);
+        try {
+            reader.setCellId("c1");
+            assertEquals(3, reader.open());
+            List<String[]> rows = readPages(reader, null);
+            assertEquals(3, rows.size());
+            assertEquals("e1", rows.get(0)[0]);
+            assertEquals("e2", rows.get(1)[0]);
+            assertEquals("e5", rows.get(2)[0]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 差分リカバリでは、更新日時が下限以降のレコードのみを読み込み、その件数を返却すること.
+     * @throws Exception 読み込みに失敗した場合
+     */
+    public void testUpdatedSinceFilter() throws Exception {
+        DumpTableReader reader = open(DUMP, LARGE_PAGE);
+        try {
+            reader.setUpdatedSince(UPDATED_SINCE);
+            assertEquals(3, reader.open());
+            List<String[]> rows = readPages(reader, null);
+            assertEquals(3, rows.size());
+            assertEquals("e3", rows.get(0)[0]);
+            assertEquals("e5", rows.get(1)[0]);
+            assertEquals("e6", rows.get(2)[0]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * ダンプを一時ファイルに書き出し、ENTITYテーブルの読み込みオブジェクトを生成する.
+     * @param lines ダンプの行
+     * @param pageSize 1ページの件数
+     * @return 読み込みオブジェクト(open前)
+     * @throws IOException 一時ファイルの書き出し、走査に失敗した場合
+     */
+    private DumpTableReader open(String[] lines, int pageSize) throws IOException {
+        this.dumpFile = File.createTempFile("personium-recovery-test", ".sql");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.dumpFile), StandardCharsets.UTF_8);
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        MySqlDumpIndex index = MySqlDumpIndex.scan(this.dumpFile.getPath());
+        return new DumpTableReader(index, DB_NAME, new EntityTableHandler(), pageSize);
+    }
+
+    /**
+     * 全ページを読み込み、id, cell_id, name, updatedの値の組を取り出す.
+     * @param reader 読み込みオブジェクト(open済み)
+     * @param pageSizes 各ページの件数の格納先、不要な場合はnull
+     * @return 値の組
+     * @throws Exception 読み込みに失敗した場合
+     */
+    private static List<String[]> readPages(DumpTableReader reader, List<Integer> pageSizes) throws Exception {
+        List<String[]> rows = new ArrayList<String[]>();
+        while (true) {
+            ResultSet page = reader.next();
+            if (page == null) {
+                break;
+            }
+            int count = 0;
+            while (page.next()) {
+                rows.add(new String[] {page.getString("id"), page.getString("cell_id"), page.getString("name"),
+                    page.getString("updated") });
+                count++;
+            }
+            if (pageSizes != null) {
+                pageSizes.add(count);
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRow(String[] row, String id, String cellId, String name, String updated) {
+        assertEquals(id, row[0]);
+        assertEquals(cellId, row[1]);
+        assertEquals(name, row[2]);
+        assertEquals(updated, row[3]);
+    }
+}